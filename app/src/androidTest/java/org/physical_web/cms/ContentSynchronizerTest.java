@@ -9,13 +9,19 @@ import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.Drive;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.physical_web.cms.sync.ContentSynchronizer;
+import org.physical_web.cms.sync.DriveSyncBackend;
 import org.physical_web.cms.sync.SyncStatusListener;
+import org.physical_web.cms.sync.TreeSynchronizer;
 
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -33,7 +39,10 @@ import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 
+import util.MiscFile;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.eq;
@@ -51,18 +60,24 @@ public class ContentSynchronizerTest {
     Context context;
     ContentSynchronizer contentSynchronizer;
     File testingDirectory;
+    File freshDownloadDirectory;
+    File freshStateDirectory;
     String randomFileName;
     String randomFileSHA1;
     CountDownLatch lock;
     Boolean uploadRun;
+    boolean remoteCopyDeleted;
 
     @Before
     public void setupVariables() {
         context = InstrumentationRegistry.getTargetContext();
         randomFileName = UUID.randomUUID().toString().replaceAll("-", "");
         testingDirectory = context.getFilesDir();
+        freshDownloadDirectory = new File(context.getCacheDir(), "fresh-download");
+        freshStateDirectory = new File(context.getCacheDir(), "fresh-download-state");
         lock = new CountDownLatch(1);
         uploadRun = true;
+        remoteCopyDeleted = false;
     }
 
     @Before
@@ -82,6 +97,42 @@ public class ContentSynchronizerTest {
 
     @Test
     public void uploadAndDownloadTest() {
+        try {
+            createRandomFile();
+            Log.d(TAG, "random file created");
+
+            SyncStatusListener mockUploadListener = mock(SyncStatusListener.class);
+            contentSynchronizer = ContentSynchronizer.getInstance();
+            contentSynchronizer.init(context, context.getFilesDir());
+            contentSynchronizer.registerSyncStatusListener(mockUploadListener);
+
+            contentSynchronizer.kickStartSync();
+
+            ArgumentCaptor<Integer> captor = ArgumentCaptor.forClass(Integer.class);
+            verify(mockUploadListener, timeout(20000).atLeast(2)).syncStatusChanged(captor.capture());
+            List<Integer> status = captor.getAllValues();
+
+            if (status.contains(SYNC_COMPLETE)) {
+                Log.d(TAG, "Upload complete. Downloading a fresh copy");
+                uploadRun = false;
+            } else {
+                fail("Upload got wrong status code: " + status);
+            }
+
+            // deleting the local copy would now be synced as a deletion, so the uploaded copy
+            // is fetched into a folder of its own instead
+            File downloadedFile = new File(downloadFreshCopy(), randomFileName);
+            assertTrue(downloadedFile.exists());
+            assertEquals(randomFileSHA1, sha1(downloadedFile));
+        } catch (Exception e) {
+            fail("Failed due to exception: " + e.toString());
+        } finally {
+            (new File(testingDirectory, randomFileName)).delete();
+        }
+    }
+
+    @Test
+    public void uploadAndDeleteTest() {
         try {
             createRandomFile();
             Log.d(TAG, "random file created");
@@ -99,30 +150,32 @@ public class ContentSynchronizerTest {
 
             if (status.contains(SYNC_COMPLETE)) {
                 Log.d(TAG, "Upload complete. deleting local copy");
-                (new File(testingDirectory, randomFileName)).delete();
+                File uploadedFile = new File(testingDirectory, randomFileName);
+                uploadedFile.delete();
+                contentSynchronizer.recordDeletion(uploadedFile);
                 uploadRun = false;
             } else {
                 fail("Upload got wrong status code: " + status);
             }
 
-            SyncStatusListener mockDownloadListener = mock(SyncStatusListener.class);
+            SyncStatusListener mockDeletionListener = mock(SyncStatusListener.class);
             doNothing().when(mockUploadListener).syncStatusChanged(eq(1));
-            contentSynchronizer.registerSyncStatusListener(mockDownloadListener);
+            contentSynchronizer.registerSyncStatusListener(mockDeletionListener);
             contentSynchronizer.kickStartSync();
 
-            ArgumentCaptor<Integer> downloadCaptor = ArgumentCaptor.forClass(Integer.class);
-            verify(mockDownloadListener, timeout(20000).atLeast(2))
-                    .syncStatusChanged(downloadCaptor.capture());
-            List<Integer> status2 = downloadCaptor.getAllValues();
+            ArgumentCaptor<Integer> deletionCaptor = ArgumentCaptor.forClass(Integer.class);
+            verify(mockDeletionListener, timeout(20000).atLeast(2))
+                    .syncStatusChanged(deletionCaptor.capture());
+            List<Integer> status2 = deletionCaptor.getAllValues();
 
             if (status2.contains(SYNC_COMPLETE))
-                Log.d(TAG, "Download complete. Checking integrity of fetched copy");
+                Log.d(TAG, "Deletion synced. Checking the remote copy is gone");
             else
-                fail("Download got wrong status code: " + status);
+                fail("Deletion got wrong status code: " + status);
 
-            File downloadedFile = new File(testingDirectory, randomFileName);
-            assertTrue(downloadedFile.exists());
-            assertEquals(randomFileSHA1, sha1(downloadedFile));
+            // a device that never had the file doesn't get it either
+            assertFalse(new File(downloadFreshCopy(), randomFileName).exists());
+            remoteCopyDeleted = true;
         } catch (Exception e) {
             fail("Failed due to exception: " + e.toString());
         } finally {
@@ -148,6 +201,36 @@ public class ContentSynchronizerTest {
         randomFileSHA1 = sha1(randomFile);
     }
 
+    // download everything synced to Drive into an empty folder, with no sync history, as a
+    // device that never synced before would. Returns the folder.
+    private File downloadFreshCopy() throws IOException {
+        deleteFreshCopy();
+        freshDownloadDirectory.mkdirs();
+        freshStateDirectory.mkdirs();
+
+        GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
+                .addApi(Drive.API)
+                .addScope(Drive.SCOPE_APPFOLDER)
+                .build();
+        ConnectionResult result = apiClient.blockingConnect();
+        if (!result.isSuccess())
+            throw new IOException("Couldn't connect to Drive: " + result.getErrorMessage());
+        try {
+            new TreeSynchronizer(freshDownloadDirectory, new DriveSyncBackend(apiClient),
+                    freshStateDirectory).synchronize();
+        } finally {
+            apiClient.disconnect();
+        }
+        return freshDownloadDirectory;
+    }
+
+    private void deleteFreshCopy() {
+        if (freshDownloadDirectory.exists())
+            MiscFile.deleteDir(freshDownloadDirectory);
+        if (freshStateDirectory.exists())
+            MiscFile.deleteDir(freshStateDirectory);
+    }
+
     /**
      * Read the file and calculate the SHA-1 checksum
      * source: http://www.javacreed.com/how-to-generate-sha1-hash-value-of-file/
@@ -179,6 +262,9 @@ public class ContentSynchronizerTest {
 
     @After
     public void deleteDriveTestingFiles() {
+        deleteFreshCopy();
+        if (remoteCopyDeleted)
+            return;
         contentSynchronizer.deleteSyncedEquivalent((new File(testingDirectory, randomFileName)));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package org.physical_web.cms;
+
+import android.arch.persistence.room.Room;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.physical_web.cms.beacons.BeaconDatabase;
+import org.physical_web.cms.beacons.MacAddress;
+import org.physical_web.cms.exhibits.CatalogExhibit;
+import org.physical_web.cms.exhibits.ExhibitCatalog;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ExhibitCatalogTest {
+    private static final MacAddress FIRST_BEACON = MacAddress.fromString("00-11-22-33-44-55");
+    private static final MacAddress SECOND_BEACON = MacAddress.fromString("66-77-88-99-aa-bb");
+
+    BeaconDatabase db;
+    ExhibitCatalog catalog;
+
+    @Before
+    public void openCatalog() {
+        db = Room.inMemoryDatabaseBuilder(InstrumentationRegistry.getTargetContext(),
+                BeaconDatabase.class).build();
+        catalog = new ExhibitCatalog(db);
+    }
+
+    @After
+    public void closeCatalog() {
+        db.close();
+    }
+
+    @Test
+    public void catalogFollowsRecordedMetadata() throws Exception {
+        assertNull(catalog.getActiveExhibitId());
+
+        // the active exhibit is usually marked before it is recorded
+        catalog.setActiveExhibit(2);
+        assertTrue(catalog.refresh(1, metadata(FIRST_BEACON, "a.jpg", "b.txt"), 100));
+        assertTrue(catalog.refresh(2, metadata(SECOND_BEACON, "c.txt"), 100));
+        assertEquals(Long.valueOf(2), catalog.getActiveExhibitId());
+
+        List<CatalogExhibit> rows = awaitRows(2);
+        for (CatalogExhibit row : rows) {
+            assertEquals(100, row.metadataModified);
+            assertEquals(row.id == 2, row.active);
+        }
+
+        // unchanged metadata isn't recorded again, changed metadata replaces the old rows
+        assertFalse(catalog.refresh(1, metadata(FIRST_BEACON, "a.jpg", "b.txt"), 100));
+        assertTrue(catalog.refresh(1, metadata(SECOND_BEACON, "d.txt"), 200));
+
+        // the rows outlive the catalog, so they aren't rebuilt on every start
+        ExhibitCatalog reopened = new ExhibitCatalog(db);
+        assertFalse(reopened.refresh(2, metadata(SECOND_BEACON, "c.txt"), 100));
+
+        // exhibits no longer stored are forgotten
+        catalog.retainOnly(Collections.singletonList(1L));
+        assertEquals(1L, awaitRows(1).get(0).id);
+        assertNull(catalog.getActiveExhibitId());
+    }
+
+    // wait for the catalog to have written the rows of the given number of exhibits
+    private List<CatalogExhibit> awaitRows(int exhibitCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        List<CatalogExhibit> rows = db.exhibitCatalogDao().getAllExhibits();
+        while (rows.size() != exhibitCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            rows = db.exhibitCatalogDao().getAllExhibits();
+        }
+        assertEquals(exhibitCount, rows.size());
+        return rows;
+    }
+
+    // metadata of an exhibit showing the given contents at a single beacon
+    private static JSONObject metadata(MacAddress beacon, String... contentNames)
+            throws Exception {
+        JSONArray contents = new JSONArray();
+        JSONObject blobs = new JSONObject();
+        for (String contentName : contentNames) {
+            contents.put(contentName);
+            blobs.put(contentName, "blob-" + contentName);
+        }
+        JSONObject beaconMetadata = new JSONObject().put("address", beacon.toString())
+                .put("contents", contents).put("blobs", blobs);
+        return new JSONObject().put("name", "Exhibit").put("description", "")
+                .put("active", false).put("beacons", new JSONArray().put(beaconMetadata));
+    }
+}
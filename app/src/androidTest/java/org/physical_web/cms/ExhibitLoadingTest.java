@@ -0,0 +1,139 @@
+package org.physical_web.cms;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.physical_web.cms.exhibits.Exhibit;
+import org.physical_web.cms.exhibits.ExhibitLoader;
+import org.physical_web.cms.exhibits.MediaBlobStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.MiscFile;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures what loading the exhibit list costs, for libraries of exhibits holding more or fewer
+ * contents. Results are written to the log under this class' tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ExhibitLoadingTest {
+    private static final String TAG = ExhibitLoadingTest.class.getSimpleName();
+
+    private static final int EXHIBIT_COUNT = 100;
+    private static final int LARGE_EXHIBIT_COUNT = 500;
+    private static final int BEACONS_PER_EXHIBIT = 10;
+
+    File exhibitsDirectory;
+
+    @Before
+    public void setupFolders() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        exhibitsDirectory = new File(context.getCacheDir(), "exhibit-loading");
+        if (exhibitsDirectory.exists())
+            MiscFile.deleteDir(exhibitsDirectory);
+        exhibitsDirectory.mkdirs();
+    }
+
+    @After
+    public void deleteFolders() {
+        MiscFile.deleteDir(exhibitsDirectory);
+    }
+
+    @Test
+    public void exhibitListLoadsFromMetadataAlone() throws Exception {
+        int[] contentsPerBeacon = {1, 100};
+        for (int contentCount : contentsPerBeacon) {
+            // only the metadata is written: loading the list must not touch any content
+            File root = new File(exhibitsDirectory, "contents-" + contentCount);
+            createLibrary(root, contentCount);
+
+            long start = System.nanoTime();
+            List<Exhibit> exhibits = new ArrayList<>();
+            for (File exhibitFolder : root.listFiles()) {
+                exhibits.add(Exhibit.loadFromFolder(exhibitFolder));
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            Log.i(TAG, "loading " + EXHIBIT_COUNT + " exhibits of " + contentCount
+                    + " contents per beacon: " + elapsedMillis + " ms");
+
+            assertEquals(EXHIBIT_COUNT, exhibits.size());
+            for (Exhibit exhibit : exhibits) {
+                assertEquals("Exhibit " + exhibit.getId(), exhibit.getTitle());
+                assertEquals(BEACONS_PER_EXHIBIT, exhibit.getBeaconCount());
+                assertEquals(BEACONS_PER_EXHIBIT * contentCount, exhibit.getContentCount());
+            }
+        }
+    }
+
+    @Test
+    public void exhibitsLoadInParallelInFolderOrder() throws Exception {
+        File root = new File(exhibitsDirectory, "large");
+        createLibrary(root, 10, LARGE_EXHIBIT_COUNT);
+        MediaBlobStore blobStore = new MediaBlobStore(root);
+
+        ExhibitLoader sequentialLoader = new ExhibitLoader(root, blobStore);
+        sequentialLoader.setThreadCount(1);
+        long start = System.nanoTime();
+        List<Exhibit> sequential = sequentialLoader.loadAll();
+        long sequentialMillis = (System.nanoTime() - start) / 1000000;
+
+        ExhibitLoader parallelLoader = new ExhibitLoader(root, blobStore);
+        parallelLoader.setFirstFolderName(String.valueOf(LARGE_EXHIBIT_COUNT - 1));
+        start = System.nanoTime();
+        List<Exhibit> parallel = parallelLoader.loadAll();
+        long parallelMillis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, "loading " + LARGE_EXHIBIT_COUNT + " exhibits: " + sequentialMillis
+                + " ms on one thread, " + parallelMillis + " ms on "
+                + Runtime.getRuntime().availableProcessors());
+
+        // however loading interleaves, exhibits come in folder name order
+        List<File> folders = parallelLoader.findExhibitFolders();
+        assertEquals(LARGE_EXHIBIT_COUNT, folders.size());
+        assertEquals(LARGE_EXHIBIT_COUNT, parallel.size());
+        for (int i = 0; i < LARGE_EXHIBIT_COUNT; i++) {
+            assertEquals(folders.get(i).getName(), String.valueOf(parallel.get(i).getId()));
+            assertEquals(sequential.get(i).getId(), parallel.get(i).getId());
+        }
+    }
+
+    // write the metadata of EXHIBIT_COUNT exhibits whose beacons list contentCount contents each
+    private static void createLibrary(File root, int contentCount) throws Exception {
+        createLibrary(root, contentCount, EXHIBIT_COUNT);
+    }
+
+    // write the metadata of exhibitCount exhibits whose beacons list contentCount contents each
+    private static void createLibrary(File root, int contentCount, int exhibitCount)
+            throws Exception {
+        for (int i = 0; i < exhibitCount; i++) {
+            File exhibitFolder = new File(root, String.valueOf(i));
+            exhibitFolder.mkdirs();
+
+            JSONArray beacons = new JSONArray();
+            for (int j = 0; j < BEACONS_PER_EXHIBIT; j++) {
+                JSONArray contents = new JSONArray();
+                for (int k = 0; k < contentCount; k++) {
+                    contents.put(k + ".txt");
+                }
+                beacons.put(new JSONObject().put("address", "beacon-" + j)
+                        .put("contents", contents));
+            }
+            JSONObject metadata = new JSONObject().put("name", "Exhibit " + i)
+                    .put("description", "").put("active", false).put("beacons", beacons);
+            MiscFile.writeToFile(new File(exhibitFolder, "metadata.json"), metadata.toString());
+        }
+    }
+}
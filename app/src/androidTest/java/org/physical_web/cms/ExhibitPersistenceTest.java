@@ -0,0 +1,81 @@
+package org.physical_web.cms;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.physical_web.cms.exhibits.Exhibit;
+
+import java.io.File;
+
+import util.MiscFile;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ExhibitPersistenceTest {
+    private static final int CHANGE_COUNT = 20;
+    // longer than the window in which metadata changes are coalesced
+    private static final long SETTLE_MILLIS = 2000;
+
+    File exhibitFolder;
+
+    @Before
+    public void createExhibit() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        File exhibitsDirectory = new File(context.getCacheDir(), "exhibit-persistence");
+        if (exhibitsDirectory.exists())
+            MiscFile.deleteDir(exhibitsDirectory);
+        exhibitFolder = new File(exhibitsDirectory, "1");
+        exhibitFolder.mkdirs();
+
+        JSONObject metadata = new JSONObject().put("name", "Exhibit").put("description", "")
+                .put("active", false).put("beacons", new JSONArray());
+        MiscFile.writeToFile(new File(exhibitFolder, "metadata.json"), metadata.toString());
+    }
+
+    @After
+    public void deleteExhibit() {
+        MiscFile.deleteDir(exhibitFolder.getParentFile());
+    }
+
+    @Test
+    public void burstOfChangesIsWrittenOnce() throws Exception {
+        Exhibit exhibit = Exhibit.loadFromFolder(exhibitFolder);
+        for (int i = 0; i < CHANGE_COUNT; i++) {
+            exhibit.setTitle("Exhibit " + i);
+        }
+        assertEquals(0, exhibit.getMetadataWriteCount());
+        assertEquals("Exhibit", readMetadata().getString("name"));
+
+        exhibit.flushMetadata();
+        assertEquals(1, exhibit.getMetadataWriteCount());
+        assertEquals("Exhibit " + (CHANGE_COUNT - 1), readMetadata().getString("name"));
+        // nothing but the metadata is left in the folder
+        assertEquals(1, exhibitFolder.listFiles().length);
+
+        // changes not flushed are written once the window passes
+        for (int i = 0; i < CHANGE_COUNT; i++) {
+            exhibit.setDescription("Description " + i);
+        }
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(2, exhibit.getMetadataWriteCount());
+        assertEquals("Description " + (CHANGE_COUNT - 1),
+                readMetadata().getString("description"));
+
+        exhibit.flushMetadata();
+        assertEquals(2, exhibit.getMetadataWriteCount());
+    }
+
+    private JSONObject readMetadata() throws Exception {
+        return new JSONObject(MiscFile.readFile(new File(exhibitFolder, "metadata.json")));
+    }
+}
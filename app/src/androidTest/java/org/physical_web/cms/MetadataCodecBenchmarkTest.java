@@ -0,0 +1,130 @@
+package org.physical_web.cms;
+
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.physical_web.cms.exhibits.MetadataCodec;
+
+import java.io.File;
+
+import util.MiscFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures what reading multi-megabyte exhibit metadata costs, in time and in memory allocated,
+ * parsing a string of the whole file with org.json against streaming it with
+ * {@link MetadataCodec}. Results are written to the log under this class' tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MetadataCodecBenchmarkTest {
+    private static final String TAG = MetadataCodecBenchmarkTest.class.getSimpleName();
+
+    private static final int BEACON_COUNT = 100;
+    private static final int CONTENTS_PER_BEACON = 500;
+    private static final int MIN_FILE_SIZE = 2 * 1024 * 1024;
+
+    File metadataFile;
+
+    @Before
+    public void createMetadata() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        metadataFile = new File(context.getCacheDir(), "codec-benchmark.json");
+
+        JSONArray beacons = new JSONArray();
+        for (int i = 0; i < BEACON_COUNT; i++) {
+            JSONArray contents = new JSONArray();
+            JSONObject blobs = new JSONObject();
+            for (int j = 0; j < CONTENTS_PER_BEACON; j++) {
+                String contentName = "content-" + j + ".jpg";
+                contents.put(contentName);
+                blobs.put(contentName, blobName(i, j));
+            }
+            beacons.put(new JSONObject().put("address", "beacon-" + i)
+                    .put("contents", contents).put("blobs", blobs));
+        }
+        JSONObject metadata = new JSONObject().put("name", "Exhibit \u00e9t\u00e9")
+                .put("description", "").put("active", false).put("beacons", beacons);
+        MetadataCodec.write(metadataFile, metadata);
+    }
+
+    @After
+    public void deleteMetadata() {
+        metadataFile.delete();
+    }
+
+    @Test
+    public void streamingReadsLargeMetadata() throws Exception {
+        Log.i(TAG, "metadata file of " + metadataFile.length() / 1024 + " KB");
+        assertTrue(metadataFile.length() > MIN_FILE_SIZE);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            JSONObject parsed = new JSONObject(MiscFile.readFile(metadataFile));
+            logCost("parsing string of whole file", start);
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            JSONObject streamed = MetadataCodec.read(metadataFile);
+            logCost("streaming into tree", start);
+
+            // both give the same tree
+            assertEquals(parsed.getString("name"), streamed.getString("name"));
+            JSONArray parsedBeacons = parsed.getJSONArray("beacons");
+            JSONArray streamedBeacons = streamed.getJSONArray("beacons");
+            assertEquals(BEACON_COUNT, streamedBeacons.length());
+            for (int i = 0; i < BEACON_COUNT; i++) {
+                JSONObject beacon = streamedBeacons.getJSONObject(i);
+                assertEquals(CONTENTS_PER_BEACON, beacon.getJSONArray("contents").length());
+                assertEquals(parsedBeacons.getJSONObject(i).getJSONObject("blobs")
+                                .getString("content-7.jpg"),
+                        beacon.getJSONObject("blobs").getString("content-7.jpg"));
+            }
+
+            // a single reference is found holding no tree, even at the very end of the file
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            boolean found = MetadataCodec.refersToBlob(metadataFile,
+                    blobName(BEACON_COUNT - 1, CONTENTS_PER_BEACON - 1));
+            int scanAllocated = logCost("streaming blob lookup", start);
+            assertTrue(found);
+            assertFalse(MetadataCodec.refersToBlob(metadataFile, blobName(BEACON_COUNT, 0)));
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            MetadataCodec.read(metadataFile);
+            int treeAllocated = logCost("tree for blob lookup", start);
+            assertTrue(scanAllocated < treeAllocated);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    // log the time since start and the memory allocated since the count was reset
+    private static int logCost(String operation, long start) {
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        int allocated = Debug.getThreadAllocSize();
+        Log.i(TAG, operation + ": " + elapsedMillis + " ms, " + allocated / 1024
+                + " KB allocated");
+        return allocated;
+    }
+
+    private static String blobName(int beacon, int content) {
+        return String.format("%064x.jpg", beacon * CONTENTS_PER_BEACON + content);
+    }
+}
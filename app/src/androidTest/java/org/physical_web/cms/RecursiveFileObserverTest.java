@@ -0,0 +1,117 @@
+package org.physical_web.cms;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import util.MiscFile;
+import util.RecursiveFileObserver;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures what watching the exhibits tree costs: inotify watches and the startup walk, for
+ * trees shaped like exhibits/&lt;exhibit&gt;/&lt;beacon&gt;. Results are written to the log
+ * under this class' tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RecursiveFileObserverTest {
+    private static final String TAG = RecursiveFileObserverTest.class.getSimpleName();
+
+    private static final int BEACONS_PER_EXHIBIT = 40;
+    private static final long EVENT_TIMEOUT_MILLIS = 5000;
+
+    File treeDirectory;
+    RecursiveFileObserver observer;
+
+    @Before
+    public void setupFolders() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        treeDirectory = new File(context.getCacheDir(), "observer-benchmark");
+        if (treeDirectory.exists())
+            MiscFile.deleteDir(treeDirectory);
+        treeDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        if (observer != null)
+            observer.stopWatching();
+        MiscFile.deleteDir(treeDirectory);
+    }
+
+    @Test
+    public void startupCostAgainstTreeSize() {
+        int[] exhibitCounts = {10, 50, 150};
+        for (int exhibitCount : exhibitCounts) {
+            File root = new File(treeDirectory, "exhibits-" + exhibitCount);
+            int folderCount = createExhibitTree(root, exhibitCount);
+
+            observer = new RecursiveFileObserver(root.getAbsolutePath(), null);
+            observer.startWatching();
+            Log.i(TAG, "watching " + folderCount + " folders: " + observer.getWatchCount()
+                    + " watches, registered in " + observer.getRegistrationMillis() + " ms");
+            // the root is watched too
+            assertEquals(folderCount + 1, observer.getWatchCount());
+
+            // already watching, so no second walk
+            long registrationMillis = observer.getRegistrationMillis();
+            observer.startWatching();
+            assertEquals(folderCount + 1, observer.getWatchCount());
+            assertEquals(registrationMillis, observer.getRegistrationMillis());
+
+            observer.stopWatching();
+            assertEquals(0, observer.getWatchCount());
+        }
+    }
+
+    @Test
+    public void foldersAreWatchedAsTheyComeAndGo() throws InterruptedException {
+        File root = new File(treeDirectory, "exhibits");
+        int folderCount = createExhibitTree(root, 2);
+        observer = new RecursiveFileObserver(root.getAbsolutePath(), null);
+        observer.startWatching();
+        assertEquals(folderCount + 1, observer.getWatchCount());
+
+        File exhibit = new File(root, "new-exhibit");
+        exhibit.mkdir();
+        awaitWatchCount(folderCount + 2);
+        new File(exhibit, "beacon").mkdir();
+        awaitWatchCount(folderCount + 3);
+
+        MiscFile.deleteDir(exhibit);
+        awaitWatchCount(folderCount + 1);
+        MiscFile.deleteDir(new File(root, "exhibit-0"));
+        awaitWatchCount(folderCount + 1 - (BEACONS_PER_EXHIBIT + 1));
+    }
+
+    // events arrive on the observer thread, wait for them to be handled
+    private void awaitWatchCount(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MILLIS;
+        while (observer.getWatchCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, observer.getWatchCount());
+    }
+
+    // create exhibits/<exhibit>/<beacon> folders, returning how many folders are under root
+    private static int createExhibitTree(File root, int exhibitCount) {
+        for (int i = 0; i < exhibitCount; i++) {
+            File exhibit = new File(root, "exhibit-" + i);
+            for (int j = 0; j < BEACONS_PER_EXHIBIT; j++) {
+                new File(exhibit, "beacon-" + j).mkdirs();
+            }
+        }
+        return exhibitCount * (BEACONS_PER_EXHIBIT + 1);
+    }
+}
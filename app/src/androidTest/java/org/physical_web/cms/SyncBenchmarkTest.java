@@ -0,0 +1,864 @@
+package org.physical_web.cms;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.runner.RunWith;
+import org.physical_web.cms.exhibits.ExhibitMetadataMerger;
+import org.physical_web.cms.exhibits.MediaBlobStore;
+import org.physical_web.cms.sync.LocalSyncBackend;
+import org.physical_web.cms.sync.RemoteFile;
+import org.physical_web.cms.sync.SyncLane;
+import org.physical_web.cms.sync.SyncMetrics;
+import org.physical_web.cms.sync.SyncPrioritizer;
+import org.physical_web.cms.sync.TreeSynchronizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.MiscFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures synchronization cost against a {@link LocalSyncBackend}, so no network or Google
+ * account is needed. Results are written to the log under this class' tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SyncBenchmarkTest {
+    private static final String TAG = SyncBenchmarkTest.class.getSimpleName();
+
+    private static final int FOLDER_COUNT = 100;
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int FILE_SIZE = 1024;
+
+    File benchmarkDirectory;
+    File localFolder;
+    File remoteFolder;
+
+    @Before
+    public void setupFolders() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        benchmarkDirectory = new File(context.getCacheDir(), "sync-benchmark");
+        if (benchmarkDirectory.exists())
+            MiscFile.deleteDir(benchmarkDirectory);
+
+        localFolder = new File(benchmarkDirectory, "local");
+        remoteFolder = new File(benchmarkDirectory, "remote");
+        localFolder.mkdirs();
+        remoteFolder.mkdirs();
+    }
+
+    @After
+    public void deleteFolders() {
+        MiscFile.deleteDir(benchmarkDirectory);
+    }
+
+    @Test
+    public void syntheticTreeBenchmark() throws IOException {
+        createSyntheticTree(localFolder, FOLDER_COUNT, FILES_PER_FOLDER);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+
+        TreeSynchronizer uploader = new TreeSynchronizer(localFolder, backend,
+                stateFolder("upload"));
+        runPass("initial upload", uploader, backend, false);
+        assertEquals(FOLDER_COUNT * FILES_PER_FOLDER, countFiles(remoteFolder));
+
+        runPass("no-op sync", uploader, backend, false);
+        // nothing changed locally, so the manifest alone should settle it
+        assertEquals(0, backend.getRoundTrips());
+        runPass("no-op sync with remote scan", uploader, backend, true);
+
+        File downloadFolder = new File(benchmarkDirectory, "download");
+        downloadFolder.mkdirs();
+        TreeSynchronizer downloader = new TreeSynchronizer(downloadFolder, backend,
+                stateFolder("download"));
+        runPass("initial download", downloader, backend, false);
+        assertEquals(FOLDER_COUNT * FILES_PER_FOLDER, countFiles(downloadFolder));
+    }
+
+    @Test
+    public void timestampDriftTransfersNothing() throws IOException {
+        createSyntheticTree(localFolder, 10, 100);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("drift"));
+        synchronizer.synchronize();
+
+        // what a restore or a clock change does: same bytes, newer modification times
+        long driftedTime = System.currentTimeMillis() + 60 * 60 * 1000;
+        for (File folder : localFolder.listFiles()) {
+            for (File file : folder.listFiles()) {
+                file.setLastModified(driftedTime);
+            }
+        }
+
+        runPass("sync after timestamp drift", synchronizer, backend, true);
+        assertEquals(0, backend.getBytesUploaded());
+        assertEquals(0, backend.getBytesDownloaded());
+    }
+
+    @Test
+    public void interruptedTransfersResume() throws IOException {
+        int size = 8 * 1024 * 1024;
+        // bytes between two transfer checkpoints, the most an interruption may cost
+        int checkpointInterval = 1024 * 1024;
+        File video = new File(localFolder, "video.mp4");
+        writeRandomFile(video, size);
+
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        backend.setInterruptAfter(size / 2 + 1000);
+        TreeSynchronizer uploader = new TreeSynchronizer(localFolder, backend,
+                stateFolder("resume-upload"));
+        runPass("interrupted upload", uploader, backend, false);
+        assertEquals(size, new File(remoteFolder, video.getName()).length());
+        assertTrue(backend.getBytesUploaded() <= size + checkpointInterval);
+
+        File downloadFolder = new File(benchmarkDirectory, "download");
+        downloadFolder.mkdirs();
+        backend.setInterruptAfter(size / 2 + 1000);
+        TreeSynchronizer downloader = new TreeSynchronizer(downloadFolder, backend,
+                stateFolder("resume-download"));
+        runPass("interrupted download", downloader, backend, false);
+        assertEquals(size, new File(downloadFolder, video.getName()).length());
+        assertTrue(backend.getBytesDownloaded() <= size + checkpointInterval);
+    }
+
+    @Test
+    public void interruptedPassResumesFromJournal() throws Exception {
+        final int fileCount = 2000;
+        final int completedUploads = 700;
+        final int concurrency = TreeSynchronizer.DEFAULT_TRANSFER_CONCURRENCY;
+        createSyntheticTree(localFolder, 20, fileCount / 20);
+        File stateFolder = stateFolder("journal");
+
+        // stands for the process dying: once enough uploads completed, every transfer thread
+        // hangs and nothing the first synchronizer does afterwards is looked at
+        final CountDownLatch stalled = new CountDownLatch(concurrency);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger uploads = new AtomicInteger();
+        LocalSyncBackend dyingBackend = new LocalSyncBackend(remoteFolder) {
+            @Override
+            public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                         long offset, InputStream contents) throws IOException {
+                if (uploads.incrementAndGet() > completedUploads) {
+                    stalled.countDown();
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IOException("Process killed");
+                }
+                return super.createFile(parent, title, modifiedTime, offset, contents);
+            }
+        };
+        final TreeSynchronizer dying = new TreeSynchronizer(localFolder, dyingBackend,
+                stateFolder);
+        Thread dyingPass = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dying.synchronize();
+                } catch (IOException e) {
+                    Log.v(TAG, "Interrupted pass failed as expected: " + e);
+                }
+            }
+        });
+        dyingPass.start();
+
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        try {
+            stalled.await();
+            TreeSynchronizer restarted = new TreeSynchronizer(localFolder, backend, stateFolder);
+            long start = System.nanoTime();
+            restarted.synchronize();
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            Log.i(TAG, "sync after interrupted initial upload: " + backend.getRoundTrips()
+                    + " round trips, " + backend.getBytesUploaded() + " bytes up, "
+                    + elapsedMillis + " ms");
+        } finally {
+            released.countDown();
+            dyingPass.join();
+        }
+
+        assertEquals(fileCount, countFiles(remoteFolder));
+        // only what the interrupted pass didn't finish is uploaded again, and the folders it
+        // walked aren't listed again
+        assertEquals((fileCount - completedUploads) * FILE_SIZE, backend.getBytesUploaded());
+        assertTrue(backend.getRoundTrips() <= fileCount - completedUploads + concurrency);
+    }
+
+    @Test
+    public void modifiedFilesUpdateInPlace() throws IOException {
+        int fileCount = 100;
+        createSyntheticTree(localFolder, 1, fileCount);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("update"));
+        synchronizer.synchronize();
+
+        File folder = new File(localFolder, "folder-0");
+        for (File file : folder.listFiles()) {
+            writeRandomFile(file, FILE_SIZE * 2);
+        }
+
+        runPass("update of modified files", synchronizer, backend, false);
+        // one listing of the changed folder, then a single call per file. Deleting and
+        // re-creating every file took twice as many.
+        assertEquals(1 + fileCount, backend.getRoundTrips());
+        assertEquals(fileCount * FILE_SIZE * 2, backend.getBytesUploaded());
+    }
+
+    @Test
+    public void editedMediaUploadsOnlyChangedChunks() throws IOException {
+        int size = 32 * 1024 * 1024;
+        File video = new File(localFolder, "video.mp4");
+        writeRandomFile(video, size);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("delta"));
+        synchronizer.synchronize();
+
+        // what a small edit and re-export does: a few bytes inserted, some overwritten and a
+        // little appended, shifting everything after the insertion
+        byte[] contents = readFile(video);
+        byte[] edited = new byte[size + 1000 + 10 * 1024];
+        int insertAt = size / 3;
+        System.arraycopy(contents, 0, edited, 0, insertAt);
+        System.arraycopy(contents, insertAt, edited, insertAt + 1000, size - insertAt);
+        new Random(1).nextBytes(contents);
+        System.arraycopy(contents, 0, edited, insertAt, 1000);
+        System.arraycopy(contents, 1000, edited, 2 * size / 3, 4096);
+        System.arraycopy(contents, 8192, edited, size + 1000, 10 * 1024);
+        FileOutputStream outputStream = new FileOutputStream(video);
+        outputStream.write(edited);
+        outputStream.close();
+        video.setLastModified(System.currentTimeMillis() + 60 * 1000);
+
+        runPass("upload of an edited " + size + " byte file", synchronizer, backend, false);
+        assertTrue(Arrays.equals(edited, readFile(new File(remoteFolder, video.getName()))));
+        // sending the whole file again would have cost edited.length bytes
+        assertTrue("Delta upload sent " + backend.getBytesUploaded() + " bytes",
+                backend.getBytesUploaded() < edited.length / 20);
+    }
+
+    @Test
+    public void deletesUseRecordedRemoteIds() throws IOException {
+        int fileCount = 50;
+        // as deep as exhibit content: exhibits/<exhibit>/<beacon>/<file>
+        File deepFolder = new File(localFolder, "exhibits/exhibit/beacon");
+        deepFolder.mkdirs();
+        createSyntheticTree(deepFolder, 1, fileCount);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("delete"));
+        synchronizer.synchronize();
+
+        backend.resetCounters();
+        long start = System.nanoTime();
+        for (File file : new File(deepFolder, "folder-0").listFiles()) {
+            synchronizer.deleteRemoteEquivalent(file);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(TAG, "deleting " + fileCount + " files: " + backend.getRoundTrips()
+                + " round trips, " + elapsedMillis + " ms");
+        assertEquals(fileCount, backend.getRoundTrips());
+        assertEquals(0, countFiles(remoteFolder));
+    }
+
+    @Test
+    public void deletionsPropagateBothWays() throws IOException {
+        int fileCount = 100;
+        createSyntheticTree(localFolder, 1, fileCount);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("tombstones"));
+        synchronizer.synchronize();
+
+        // half deleted through the app, half behind its back, e.g. while it wasn't running
+        File localSubfolder = new File(localFolder, "folder-0");
+        for (int i = 0; i < fileCount / 2; i++) {
+            File file = new File(localSubfolder, i + ".bin");
+            file.delete();
+            if (i % 2 == 0)
+                synchronizer.recordDeletion(file);
+        }
+        runPass("sync of " + fileCount / 2 + " local deletions", synchronizer, backend, true);
+        assertEquals(fileCount / 2, countFiles(remoteFolder));
+        assertEquals(0, backend.getBytesDownloaded());
+
+        File remoteSubfolder = new File(remoteFolder, "folder-0");
+        for (int i = fileCount / 2; i < fileCount * 3 / 4; i++) {
+            new File(remoteSubfolder, i + ".bin").delete();
+        }
+        runPass("sync of " + fileCount / 4 + " remote deletions", synchronizer, backend, true);
+        assertEquals(fileCount / 4, countFiles(localFolder));
+        assertEquals(0, backend.getBytesUploaded());
+
+        // nothing deleted comes back
+        runPass("sync after deletions", synchronizer, backend, true);
+        assertEquals(fileCount / 4, countFiles(localFolder));
+        assertEquals(fileCount / 4, countFiles(remoteFolder));
+    }
+
+    @Test
+    public void filesGoneFromBothSidesAreForgotten() throws IOException {
+        createSyntheticTree(localFolder, 1, 10);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("vanished"));
+        synchronizer.synchronize();
+
+        // deleted on both sides behind the app's back
+        new File(localFolder, "folder-0/0.bin").delete();
+        new File(remoteFolder, "folder-0/0.bin").delete();
+        synchronizer.synchronize();
+
+        // the folder isn't found changed again
+        backend.resetCounters();
+        synchronizer.synchronize();
+        assertEquals(0, backend.getRoundTrips());
+    }
+
+    @Test
+    public void syncWritesAreToldApartFromUserEdits() throws IOException {
+        int fileCount = 20;
+        createSyntheticTree(localFolder, 2, fileCount);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("self-writes"));
+        synchronizer.synchronize();
+
+        // a folder added and a folder deleted on another device
+        File addedRemoteFolder = new File(remoteFolder, "added");
+        addedRemoteFolder.mkdir();
+        for (int i = 0; i < fileCount; i++) {
+            writeRandomFile(new File(addedRemoteFolder, i + ".bin"), FILE_SIZE);
+        }
+        MiscFile.deleteDir(new File(remoteFolder, "folder-0"));
+        synchronizer.synchronize(true);
+
+        File addedFolder = new File(localFolder, "added");
+        File downloaded = new File(addedFolder, "0.bin");
+        assertTrue(synchronizer.isOwnChange(addedFolder));
+        assertTrue(synchronizer.isOwnChange(downloaded));
+        assertTrue(synchronizer.isOwnChange(new File(localFolder, "folder-0")));
+        assertTrue(synchronizer.isOwnChange(new File(localFolder, "folder-0/0.bin")));
+
+        // the user edits right after the sync wrote
+        File created = new File(localFolder, "folder-1/created.bin");
+        writeRandomFile(created, FILE_SIZE);
+        writeRandomFile(downloaded, FILE_SIZE * 2);
+        assertFalse(synchronizer.isOwnChange(created));
+        assertFalse(synchronizer.isOwnChange(downloaded));
+        assertTrue(synchronizer.isOwnChange(new File(addedFolder, "1.bin")));
+    }
+
+    @Test
+    public void atomicWritesInProgressAreNotSynced() throws IOException {
+        File exhibitFolder = new File(localFolder, "exhibits/exhibit");
+        exhibitFolder.mkdirs();
+        File metadata = new File(exhibitFolder, "metadata.json");
+        MiscFile.writeToFileAtomically(metadata, "{}".getBytes("UTF-8"));
+        // what a pass listing the folder mid-write finds next to it
+        MiscFile.writeToFile(new File(exhibitFolder, ".metadata.json.tmp"), "{\"name\":");
+
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("atomic"));
+        synchronizer.synchronize();
+
+        File remoteExhibitFolder = new File(remoteFolder, "exhibits/exhibit");
+        assertTrue(new File(remoteExhibitFolder, "metadata.json").isFile());
+        assertEquals(1, remoteExhibitFolder.listFiles().length);
+    }
+
+    @Test
+    public void filesEditedMidUploadAreSentAgain() throws IOException {
+        final File video = new File(localFolder, "video.mp4");
+        writeRandomFile(video, FILE_SIZE);
+
+        final AtomicInteger uploads = new AtomicInteger();
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder) {
+            @Override
+            public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                         long offset, InputStream contents) throws IOException {
+                RemoteFile created = super.createFile(parent, title, modifiedTime, offset,
+                        contents);
+                // the user saves over the file while the first upload is reading it
+                if (uploads.incrementAndGet() == 1)
+                    writeRandomFile(video, FILE_SIZE * 2);
+                return created;
+            }
+        };
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("edited-mid-upload"));
+        synchronizer.synchronize();
+
+        assertEquals(1, remoteFolder.listFiles().length);
+        assertTrue(Arrays.equals(readFile(video),
+                readFile(new File(remoteFolder, video.getName()))));
+        assertEquals(FILE_SIZE + FILE_SIZE * 2, backend.getBytesUploaded());
+    }
+
+    @Test
+    public void metadataUploadsBeforeBulkMedia() throws Exception {
+        // exhibit 2 is active, the contents of exhibit 1 are bulk
+        File exhibits = new File(localFolder, "exhibits");
+        exhibits.mkdir();
+        writeRandomFile(new File(exhibits, "metadata.json"), 100);
+        writeExhibit(new File(exhibits, "1"), 200, 5);
+        writeExhibit(new File(exhibits, "2"), 300, 3);
+
+        final List<String> uploadOrder = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch walkComplete = new CountDownLatch(1);
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder) {
+            @Override
+            public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                         long offset, InputStream contents) throws IOException {
+                try {
+                    // hold the first upload until everything else is queued
+                    walkComplete.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                uploadOrder.add(parent.getTitle() + "/" + title);
+                return super.createFile(parent, title, modifiedTime, offset, contents);
+            }
+        };
+        final TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("lanes"));
+        synchronizer.setTransferConcurrency(1);
+        synchronizer.setPrioritizer(new SyncPrioritizer() {
+            @Override
+            public SyncLane laneFor(String path) {
+                if (path.endsWith("/metadata.json"))
+                    return SyncLane.METADATA;
+                return path.startsWith("exhibits/2/") ? SyncLane.ACTIVE_CONTENT : SyncLane.BULK;
+            }
+        });
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (synchronizer.getMetrics().getQueuedFiles() < 11) {
+                        Thread.sleep(10);
+                    }
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // released early, the order check fails
+                }
+                walkComplete.countDown();
+            }
+        };
+        releaser.start();
+        try {
+            runPass("prioritized upload", synchronizer, backend, false);
+        } finally {
+            walkComplete.countDown();
+            releaser.interrupt();
+            releaser.join();
+        }
+
+        // the first file queued runs right away, the rest by lane, then smallest first
+        assertEquals(Arrays.asList("exhibits/metadata.json",
+                "1/metadata.json", "2/metadata.json",
+                "beacon/2.bin", "beacon/1.bin", "beacon/0.bin",
+                "beacon/4.bin", "beacon/3.bin", "beacon/2.bin", "beacon/1.bin", "beacon/0.bin"),
+                uploadOrder);
+        assertEquals(11, countFiles(remoteFolder));
+    }
+
+    @Test
+    public void bandwidthCapThrottlesBulkLane() throws IOException {
+        int size = 2 * 1024 * 1024;
+        writeRandomFile(new File(localFolder, "video.mp4"), size);
+        writeRandomFile(new File(localFolder, "metadata.json"), 100);
+
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("bandwidth"));
+        synchronizer.setPrioritizer(new SyncPrioritizer() {
+            @Override
+            public SyncLane laneFor(String path) {
+                return path.equals("metadata.json") ? SyncLane.METADATA : SyncLane.BULK;
+            }
+        });
+        synchronizer.setBandwidthLimit(SyncLane.BULK, size / 2);
+
+        long start = System.nanoTime();
+        runPass("capped upload", synchronizer, backend, false);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // a second of burst, then a second at the capped rate
+        assertEquals(size + 100, backend.getBytesUploaded());
+        assertTrue("Capped upload took " + elapsedMillis + " ms", elapsedMillis >= 900);
+        assertTrue("Capped upload took " + elapsedMillis + " ms", elapsedMillis < 5000);
+    }
+
+    @Test
+    public void concurrentMetadataEditsMerge() throws Exception {
+        File firstDevice = new File(benchmarkDirectory, "first");
+        File secondDevice = new File(benchmarkDirectory, "second");
+        File firstMetadata = new File(firstDevice, "exhibits/1/metadata.json");
+        File secondMetadata = new File(secondDevice, "exhibits/1/metadata.json");
+        firstMetadata.getParentFile().mkdirs();
+        secondDevice.mkdirs();
+        MiscFile.writeToFile(firstMetadata, "{\"name\":\"Hall\",\"description\":\"\","
+                + "\"beacons\":[{\"address\":\"A\",\"contents\":[\"a\",\"b\",\"c\"]},"
+                + "{\"address\":\"B\",\"contents\":[\"x\",\"y\"]}]}");
+
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer first = new TreeSynchronizer(firstDevice, backend,
+                stateFolder("merge-first"));
+        TreeSynchronizer second = new TreeSynchronizer(secondDevice, backend,
+                stateFolder("merge-second"));
+        first.setMerger(new ExhibitMetadataMerger());
+        second.setMerger(new ExhibitMetadataMerger());
+        first.synchronize(true);
+        second.synchronize(true);
+
+        // the first device reorders beacon A and describes the exhibit...
+        long now = System.currentTimeMillis();
+        MiscFile.writeToFile(firstMetadata, "{\"name\":\"Hall\",\"description\":\"Old\","
+                + "\"beacons\":[{\"address\":\"A\",\"contents\":[\"c\",\"a\",\"b\"]},"
+                + "{\"address\":\"B\",\"contents\":[\"x\",\"y\"]}]}");
+        firstMetadata.setLastModified(now + 30000);
+        runPass("edit on first device", first, backend, true);
+
+        // ...while the second renames it, drops b from beacon A and adds z to beacon B
+        MiscFile.writeToFile(secondMetadata, "{\"name\":\"Hall 2\",\"description\":\"\","
+                + "\"beacons\":[{\"address\":\"A\",\"contents\":[\"a\",\"c\"]},"
+                + "{\"address\":\"B\",\"contents\":[\"x\",\"y\",\"z\"]}]}");
+        secondMetadata.setLastModified(now + 60000);
+        runPass("merge on second device", second, backend, true);
+        runPass("merged copy to first device", first, backend, true);
+
+        for (File metadataFile : Arrays.asList(firstMetadata, secondMetadata)) {
+            JSONObject metadata = new JSONObject(MiscFile.readFile(metadataFile));
+            assertEquals("Hall 2", metadata.getString("name"));
+            assertEquals("Old", metadata.getString("description"));
+            assertEquals("[\"c\",\"a\"]", metadata.getJSONArray("beacons")
+                    .getJSONObject(0).getJSONArray("contents").toString());
+            assertEquals("[\"x\",\"y\",\"z\"]", metadata.getJSONArray("beacons")
+                    .getJSONObject(1).getJSONArray("contents").toString());
+        }
+    }
+
+    @Test
+    public void sharedMediaIsStoredAndSyncedOnce() throws Exception {
+        int exhibitCount = 5;
+        int beaconCount = 20;
+        byte[] video = new byte[512 * 1024];
+        new Random(0).nextBytes(video);
+        File exhibits = new File(localFolder, "exhibits");
+        exhibits.mkdir();
+        MediaBlobStore blobStore = new MediaBlobStore(exhibits);
+
+        // the same intro video on every beacon of every exhibit
+        String blobName = null;
+        for (int i = 0; i < exhibitCount; i++) {
+            JSONArray beacons = new JSONArray();
+            for (int j = 0; j < beaconCount; j++) {
+                blobName = blobStore.add(new ByteArrayInputStream(video), "intro.mp4",
+                        benchmarkDirectory);
+                beacons.put(new JSONObject()
+                        .put("address", "beacon-" + j)
+                        .put("contents", new JSONArray().put("intro.mp4"))
+                        .put("blobs", new JSONObject().put("intro.mp4", blobName)));
+            }
+            writeExhibitMetadata(new File(exhibits, String.valueOf(i)), beacons);
+        }
+        assertEquals(1, countFiles(new File(exhibits, MediaBlobStore.BLOB_FOLDER_NAME)));
+        assertEquals(exhibitCount * beaconCount, blobStore.getReferenceCount(blobName));
+
+        LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder("blobs"));
+        runPass("sync of " + exhibitCount * beaconCount + " placements of one video",
+                synchronizer, backend, false);
+        assertTrue("Uploaded " + backend.getBytesUploaded() + " bytes",
+                backend.getBytesUploaded() < video.length * 2);
+
+        // dropping every reference the loaded exhibits had keeps a blob metadata refers to...
+        for (int i = 0; i < exhibitCount * beaconCount; i++) {
+            assertFalse(blobStore.release(blobName));
+        }
+        assertTrue(blobStore.getBlob(blobName).isFile());
+
+        // ...until no metadata does
+        for (int i = 0; i < exhibitCount; i++) {
+            writeExhibitMetadata(new File(exhibits, String.valueOf(i)), new JSONArray());
+        }
+        blobStore.acquire(blobName);
+        assertTrue(blobStore.release(blobName));
+        assertFalse(blobStore.getBlob(blobName).exists());
+    }
+
+    @Test
+    public void mediaAddedAgainOutlivesItsRemoval() throws Exception {
+        File exhibits = new File(localFolder, "exhibits");
+        exhibits.mkdir();
+        MediaBlobStore blobStore = new MediaBlobStore(exhibits);
+        byte[] photo = new byte[FILE_SIZE];
+        new Random(0).nextBytes(photo);
+        String blobName = blobStore.add(new ByteArrayInputStream(photo), "photo.jpg",
+                benchmarkDirectory);
+
+        // the content is removed, and added again before its release runs in the background
+        assertEquals(blobName, blobStore.add(new ByteArrayInputStream(photo), "photo.jpg",
+                benchmarkDirectory));
+        assertFalse(blobStore.release(blobName));
+        assertTrue(blobStore.getBlob(blobName).isFile());
+        assertEquals(1, blobStore.getReferenceCount(blobName));
+    }
+
+    @Test
+    public void remoteChangesCostWhatChanged() throws IOException {
+        long smallTreeListings = measureRemoteChangePickup(10);
+        long largeTreeListings = measureRemoteChangePickup(50);
+
+        // only the folders the other device touched are listed, whatever the size of the tree
+        assertEquals(smallTreeListings, largeTreeListings);
+        assertTrue(smallTreeListings <= 5);
+    }
+
+    // sync a tree of folderCount folders to two devices, make a few changes on one and pick them
+    // up on the other through the change feed, returning the number of folders it listed
+    private long measureRemoteChangePickup(int folderCount) throws IOException {
+        String name = "feed-" + folderCount;
+        File remote = new File(remoteFolder, name);
+        File firstLocal = new File(localFolder, name + "-first");
+        File secondLocal = new File(localFolder, name + "-second");
+        remote.mkdirs();
+        firstLocal.mkdirs();
+        secondLocal.mkdirs();
+        createSyntheticTree(firstLocal, folderCount, 20);
+
+        LocalSyncBackend firstBackend = new LocalSyncBackend(remote);
+        LocalSyncBackend secondBackend = new LocalSyncBackend(remote);
+        firstBackend.setChangeFeedEnabled(true);
+        secondBackend.setChangeFeedEnabled(true);
+        TreeSynchronizer first = new TreeSynchronizer(firstLocal, firstBackend,
+                stateFolder(name + "-first"));
+        TreeSynchronizer second = new TreeSynchronizer(secondLocal, secondBackend,
+                stateFolder(name + "-second"));
+        first.synchronize();
+        // the first device's own uploads come back through the feed once
+        first.synchronize();
+        second.synchronize();
+        assertEquals(folderCount * 20, countFiles(secondLocal));
+
+        // an edit, a deletion and a new folder of two files
+        writeRandomFile(new File(secondLocal, "folder-0/0.bin"), 2 * FILE_SIZE);
+        new File(secondLocal, "folder-1/0.bin").delete();
+        File newFolder = new File(secondLocal, "new");
+        newFolder.mkdir();
+        createSyntheticTree(newFolder, 1, 2);
+        second.synchronize();
+
+        runPass("pickup of 3 remote changes in " + folderCount + " folders", first,
+                firstBackend, false);
+        SyncMetrics metrics = first.getMetrics();
+        assertEquals(1, metrics.getRemoteCalls(SyncMetrics.RemoteCall.GET_CHANGES));
+        assertEquals(2 * FILE_SIZE, new File(firstLocal, "folder-0/0.bin").length());
+        assertFalse(new File(firstLocal, "folder-1/0.bin").exists());
+        assertEquals(2, countFiles(new File(firstLocal, "new")));
+        long listings = metrics.getRemoteCalls(SyncMetrics.RemoteCall.LIST_CHILDREN);
+
+        // once the cursor expires, everything is listed again
+        firstBackend.clearChangeLog();
+        runPass("sync after change log expiry in " + folderCount + " folders", first,
+                firstBackend, false);
+        assertEquals(folderCount + 3, metrics.getRemoteCalls(SyncMetrics.RemoteCall.LIST_CHILDREN));
+        return listings;
+    }
+
+    @Test
+    public void nameMatchingScalesLinearly() throws IOException {
+        double smallFolderCost = measureFolderMatching(1000);
+        double largeFolderCost = measureFolderMatching(5000);
+
+        // quadratic matching would make every file in the large folder five times as costly
+        assertTrue("Per-file matching cost grew from " + smallFolderCost + " to "
+                + largeFolderCost + " ms", largeFolderCost < smallFolderCost * 2.5);
+    }
+
+    @Test
+    public void parallelUploadBenchmark() throws IOException {
+        createSyntheticTree(localFolder, 5, 100);
+
+        long sequentialMillis = measureInitialUpload(1);
+        long parallelMillis = measureInitialUpload(8);
+
+        assertTrue("Parallel upload took " + parallelMillis + " ms against "
+                + sequentialMillis + " ms sequentially", parallelMillis * 4 <= sequentialMillis);
+    }
+
+    // upload the local folder to an empty remote with 200 ms of latency per call, returning the
+    // wall time in milliseconds
+    private long measureInitialUpload(int concurrency) throws IOException {
+        String name = "upload-" + concurrency;
+        LocalSyncBackend backend = new LocalSyncBackend(new File(benchmarkDirectory, name));
+        backend.setLatency(200);
+
+        TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder(name));
+        synchronizer.setTransferConcurrency(concurrency);
+
+        long start = System.nanoTime();
+        synchronizer.synchronize();
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(TAG, "initial upload of 500 files with " + concurrency + " transfers: "
+                + backend.getRoundTrips() + " round trips, " + elapsedMillis + " ms");
+        return elapsedMillis;
+    }
+
+    // sync a single beacon-like folder holding fileCount files against an up to date remote,
+    // returning the wall time per file in milliseconds
+    private double measureFolderMatching(int fileCount) throws IOException {
+        String name = "folder-" + fileCount;
+        File local = new File(localFolder, name);
+        File remote = new File(remoteFolder, name);
+        local.mkdirs();
+        remote.mkdirs();
+        createSyntheticTree(local, 1, fileCount);
+
+        LocalSyncBackend backend = new LocalSyncBackend(remote);
+        TreeSynchronizer synchronizer = new TreeSynchronizer(local, backend, stateFolder(name));
+        synchronizer.synchronize(true);
+
+        long start = System.nanoTime();
+        synchronizer.synchronize(true);
+        double costPerFile = (System.nanoTime() - start) / 1000000.0 / fileCount;
+
+        Log.i(TAG, "matching " + fileCount + " files: " + costPerFile + " ms per file");
+        return costPerFile;
+    }
+
+    // run a single sync pass and report its cost
+    private void runPass(String label, TreeSynchronizer synchronizer, LocalSyncBackend backend,
+                         boolean forceRemoteScan) throws IOException {
+        backend.resetCounters();
+        long start = System.nanoTime();
+        synchronizer.synchronize(forceRemoteScan);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(TAG, label + ": " + backend.getRoundTrips() + " round trips, "
+                + backend.getBytesUploaded() + " bytes up, "
+                + backend.getBytesDownloaded() + " bytes down, "
+                + elapsedMillis + " ms");
+
+        // the synchronizer's own measurements must agree with the backend's
+        SyncMetrics metrics = synchronizer.getMetrics();
+        Log.i(TAG, label + ": " + metrics);
+        assertEquals(backend.getRoundTrips(), metrics.getRemoteCalls());
+        assertEquals(metrics.getQueuedFiles(), metrics.getFinishedFiles());
+    }
+
+    // separate sync state for every synchronizer under test
+    private File stateFolder(String name) {
+        File stateFolder = new File(benchmarkDirectory, "state-" + name);
+        stateFolder.mkdirs();
+        return stateFolder;
+    }
+
+    static void createSyntheticTree(File root, int folderCount, int filesPerFolder)
+            throws IOException {
+        Random random = new Random(0);
+        byte[] contents = new byte[FILE_SIZE];
+
+        for (int i = 0; i < folderCount; i++) {
+            File folder = new File(root, "folder-" + i);
+            folder.mkdir();
+            for (int j = 0; j < filesPerFolder; j++) {
+                random.nextBytes(contents);
+                FileOutputStream outputStream = new FileOutputStream(new File(folder, j + ".bin"));
+                outputStream.write(contents);
+                outputStream.close();
+            }
+        }
+    }
+
+    // an exhibit folder with its metadata and a beacon folder of files, each smaller than the
+    // one before
+    private static void writeExhibit(File exhibitFolder, int metadataSize, int fileCount)
+            throws IOException {
+        File beaconFolder = new File(exhibitFolder, "beacon");
+        beaconFolder.mkdirs();
+        writeRandomFile(new File(exhibitFolder, "metadata.json"), metadataSize);
+        for (int i = 0; i < fileCount; i++) {
+            writeRandomFile(new File(beaconFolder, i + ".bin"), (fileCount - i) * 64 * 1024);
+        }
+    }
+
+    private static void writeExhibitMetadata(File exhibitFolder, JSONArray beacons)
+            throws Exception {
+        exhibitFolder.mkdirs();
+        JSONObject metadata = new JSONObject().put("name", exhibitFolder.getName())
+                .put("description", "").put("beacons", beacons);
+        MiscFile.writeToFile(new File(exhibitFolder, "metadata.json"), metadata.toString());
+    }
+
+    static void writeRandomFile(File file, int size) throws IOException {
+        byte[] contents = new byte[size];
+        new Random(0).nextBytes(contents);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(contents);
+        outputStream.close();
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                int len = inputStream.read(contents, offset, contents.length - offset);
+                if (len == -1)
+                    throw new IOException("File shorter than its length");
+                offset += len;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return contents;
+    }
+
+    static int countFiles(File folder) {
+        int count = 0;
+        for (File file : folder.listFiles()) {
+            if (file.isFile())
+                count++;
+            else
+                count += countFiles(file);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,212 @@
+package org.physical_web.cms;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.physical_web.cms.sync.LocalSyncBackend;
+import org.physical_web.cms.sync.SyncExecutor;
+import org.physical_web.cms.sync.TreeSynchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.MiscFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests of {@link SyncExecutor}: syncs requested from many threads never overlap and
+ * never get lost, and cancelling stops a running pass against a fake backend.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SyncExecutorTest {
+    private static final long TIMEOUT_MILLIS = 30 * 1000;
+
+    File testDirectory;
+    SyncExecutor executor;
+
+    @Before
+    public void setupFolders() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        testDirectory = new File(context.getCacheDir(), "sync-executor");
+        if (testDirectory.exists())
+            MiscFile.deleteDir(testDirectory);
+        testDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdown();
+        MiscFile.deleteDir(testDirectory);
+    }
+
+    @Test
+    public void concurrentRequestsCoalesceWithoutOverlapping() throws Exception {
+        final AtomicInteger runningSyncs = new AtomicInteger();
+        final AtomicInteger maxRunningSyncs = new AtomicInteger();
+        final AtomicLong requestCount = new AtomicLong();
+        // requests made before the latest run started, so covered by it
+        final AtomicLong coveredRequests = new AtomicLong();
+
+        executor = new SyncExecutor(new SyncExecutor.SyncTask() {
+            @Override
+            public void run(CancellationSignal signal) {
+                coveredRequests.set(requestCount.get());
+                int running = runningSyncs.incrementAndGet();
+                if (running > maxRunningSyncs.get())
+                    maxRunningSyncs.set(running);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                runningSyncs.decrementAndGet();
+            }
+        });
+
+        int threadCount = 8;
+        final int requestsPerThread = 500;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(i);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < requestsPerThread; j++) {
+                        requestCount.incrementAndGet();
+                        executor.request();
+                        if (random.nextInt(10) == 0)
+                            Thread.yield();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(executor.awaitIdle(TIMEOUT_MILLIS));
+        assertEquals(1, maxRunningSyncs.get());
+        // the last request was followed by a run
+        assertEquals(requestCount.get(), coveredRequests.get());
+        assertTrue("Ran " + executor.getCompletedRuns() + " times",
+                executor.getCompletedRuns() < threadCount * requestsPerThread / 10);
+    }
+
+    @Test
+    public void cancelDropsFollowUpAndLaterRequestsRunAgain() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean sawCancellation = new AtomicBoolean();
+        executor = new SyncExecutor(new SyncExecutor.SyncTask() {
+            @Override
+            public void run(CancellationSignal signal) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (signal.isCanceled())
+                    sawCancellation.set(true);
+            }
+        });
+
+        executor.request();
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(SyncExecutor.State.RUNNING, executor.getState());
+
+        // the follow-up is dropped with the running sync
+        executor.request();
+        executor.cancel();
+        assertEquals(SyncExecutor.State.CANCELLING, executor.getState());
+        release.countDown();
+        assertTrue(executor.awaitIdle(TIMEOUT_MILLIS));
+        assertTrue(sawCancellation.get());
+        assertEquals(1, executor.getCompletedRuns());
+
+        // a scheduled sync that is cancelled never runs
+        executor.request();
+        executor.cancel();
+        assertTrue(executor.awaitIdle(TIMEOUT_MILLIS));
+        executor.request();
+        assertTrue(executor.awaitIdle(TIMEOUT_MILLIS));
+        assertTrue(executor.getCompletedRuns() <= 3);
+        assertEquals(SyncExecutor.State.IDLE, executor.getState());
+    }
+
+    @Test
+    public void cancelStopsRunningPass() throws Exception {
+        File localFolder = new File(testDirectory, "local");
+        File remoteFolder = new File(testDirectory, "remote");
+        localFolder.mkdirs();
+        remoteFolder.mkdirs();
+        int fileCount = 10 * 20;
+        SyncBenchmarkTest.createSyntheticTree(localFolder, 10, 20);
+
+        final LocalSyncBackend backend = new LocalSyncBackend(remoteFolder);
+        backend.setLatency(20);
+        File stateFolder = new File(testDirectory, "state");
+        stateFolder.mkdirs();
+        final TreeSynchronizer synchronizer = new TreeSynchronizer(localFolder, backend,
+                stateFolder);
+        synchronizer.setTransferConcurrency(2);
+
+        final AtomicInteger cancelledPasses = new AtomicInteger();
+        final AtomicInteger completePasses = new AtomicInteger();
+        executor = new SyncExecutor(new SyncExecutor.SyncTask() {
+            @Override
+            public void run(CancellationSignal signal) {
+                try {
+                    synchronizer.synchronize(false, signal);
+                    completePasses.incrementAndGet();
+                } catch (InterruptedIOException e) {
+                    cancelledPasses.incrementAndGet();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        executor.request();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (synchronizer.getMetrics().getFinishedFiles() < 10
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        executor.cancel();
+        assertTrue(executor.awaitIdle(TIMEOUT_MILLIS));
+        assertEquals(1, cancelledPasses.get());
+        int uploadedBeforeCancel = SyncBenchmarkTest.countFiles(remoteFolder);
+        assertTrue("Uploaded " + uploadedBeforeCancel + " files before stopping",
+                uploadedBeforeCancel < fileCount / 2);
+
+        // the next sync picks up where the cancelled one stopped
+        executor.request();
+        assertTrue(executor.awaitIdle(TIMEOUT_MILLIS));
+        assertEquals(1, completePasses.get());
+        assertEquals(fileCount, SyncBenchmarkTest.countFiles(remoteFolder));
+        assertEquals(SyncExecutor.State.IDLE, executor.getState());
+    }
+}
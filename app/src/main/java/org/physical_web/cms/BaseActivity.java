@@ -19,6 +19,8 @@ import org.physical_web.cms.beacons.BeaconFragment;
 import org.physical_web.cms.beacons.BeaconManager;
 import org.physical_web.cms.exhibits.ExhibitFragment;
 import org.physical_web.cms.exhibits.ExhibitManager;
+import org.physical_web.cms.exhibits.ExhibitMetadataMerger;
+import org.physical_web.cms.exhibits.ExhibitSyncPrioritizer;
 import org.physical_web.cms.maps.PhysicalMapFragment;
 import org.physical_web.cms.setup.SettingsFragment;
 import org.physical_web.cms.setup.SetupManager;
@@ -56,6 +58,9 @@ public class BaseActivity extends AppCompatActivity {
         File folderToSync = getFilesDir();
         contentSynchronizer = ContentSynchronizer.getInstance();
         contentSynchronizer.init(this, folderToSync);
+        contentSynchronizer.setSyncPrioritizer(new ExhibitSyncPrioritizer(exhibitManager));
+        contentSynchronizer.setSyncMerger(new ExhibitMetadataMerger());
+        exhibitManager.followSyncs();
 
         setupNavigationDrawer();
         setupActionBar();
@@ -76,6 +81,7 @@ public class BaseActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         contentSynchronizer.disconnectReceiver();
+        exhibitManager.flushMetadata();
     }
 
     @Override
@@ -13,6 +13,8 @@ import android.widget.TextView;
 import org.physical_web.cms.exhibits.Exhibit;
 import org.physical_web.cms.exhibits.ExhibitManager;
 import org.physical_web.cms.sync.ContentSynchronizer;
+import org.physical_web.cms.sync.SyncMetrics;
+import org.physical_web.cms.sync.SyncProgressListener;
 import org.physical_web.cms.sync.SyncStatusListener;
 
 
@@ -20,7 +22,8 @@ import org.physical_web.cms.sync.SyncStatusListener;
  * Home page fragment: tells user about the currently deployed exhibition, as well as the
  * status of Google Drive synchronization.
  */
-public class WelcomeFragment extends Fragment implements SyncStatusListener {
+public class WelcomeFragment extends Fragment implements SyncStatusListener,
+        SyncProgressListener {
     private final static String FRAGMENT_TITLE = "Home";
     ContentSynchronizer contentSynchronizer;
 
@@ -36,16 +39,28 @@ public class WelcomeFragment extends Fragment implements SyncStatusListener {
         // register for changes in sync status
         contentSynchronizer = ContentSynchronizer.getInstance();
         contentSynchronizer.registerSyncStatusListener(this);
+        contentSynchronizer.registerSyncProgressListener(this);
+        // the active exhibit may still be loading
+        ExhibitManager.getInstance().addLoadListener(loadListener);
 
         return welcomeFragmentView;
     }
 
+    @Override
+    public void onDestroyView() {
+        ExhibitManager.getInstance().removeLoadListener(loadListener);
+        super.onDestroyView();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
         contentSynchronizer.kickStartSync();
         ((AppCompatActivity) getActivity()).getSupportActionBar().setTitle(FRAGMENT_TITLE);
+        showActiveExhibit();
+    }
 
+    private void showActiveExhibit() {
         Exhibit activeExhibit = ExhibitManager.getInstance().getActiveExhibit();
         if (activeExhibit != null) {
             ((TextView) getView().findViewById(R.id.welcome_exhibit_title))
@@ -53,6 +68,20 @@ public class WelcomeFragment extends Fragment implements SyncStatusListener {
         }
     }
 
+    // shows the active exhibit if it wasn't loaded when the fragment was resumed
+    private ExhibitManager.ExhibitLoadListener loadListener =
+            new ExhibitManager.ExhibitLoadListener() {
+                @Override
+                public void onExhibitInserted(int position) {
+                }
+
+                @Override
+                public void onExhibitsLoaded() {
+                    if (isResumed())
+                        showActiveExhibit();
+                }
+            };
+
     @Override
     public void syncStatusChanged(int status) {
         if (getActivity() == null ||
@@ -124,4 +153,39 @@ public class WelcomeFragment extends Fragment implements SyncStatusListener {
             }
         });
     }
+
+    @Override
+    public void syncProgressChanged(SyncMetrics metrics) {
+        if (getActivity() == null ||
+                getActivity().findViewById(R.id.welcome_sync_text) == null)
+            return;
+        // the final status is shown by syncStatusChanged
+        if (!metrics.isRunning() || metrics.getQueuedFiles() == 0)
+            return;
+
+        String progressText = "Syncing " + metrics.getFinishedFiles() + " of "
+                + metrics.getQueuedFiles() + " files";
+        long millisRemaining = metrics.getEstimatedMillisRemaining();
+        if (millisRemaining > 0)
+            progressText += ", about " + formatDuration(millisRemaining) + " left";
+
+        final String widgetText = progressText;
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (getActivity() == null)
+                    return;
+                ((TextView) getActivity().findViewById(R.id.welcome_sync_text))
+                        .setText(widgetText);
+            }
+        });
+    }
+
+    // rough human readable duration, such as "40 s" or "3 min"
+    private static String formatDuration(long millis) {
+        long seconds = Math.max(1, millis / 1000);
+        if (seconds < 60)
+            return seconds + " s";
+        return (seconds + 59) / 60 + " min";
+    }
 }
@@ -1,5 +1,6 @@
 package org.physical_web.cms.beacons;
 
+import android.arch.persistence.db.SupportSQLiteDatabase;
 import android.arch.persistence.room.Dao;
 import android.arch.persistence.room.Database;
 import android.arch.persistence.room.Delete;
@@ -10,26 +11,60 @@ import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.TypeConverters;
 import android.arch.persistence.room.Update;
+import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
 
+import org.physical_web.cms.exhibits.CatalogBeaconSlot;
+import org.physical_web.cms.exhibits.CatalogContent;
+import org.physical_web.cms.exhibits.CatalogExhibit;
+import org.physical_web.cms.exhibits.ExhibitCatalogDao;
+
 import java.util.List;
 
-@Database(entities = {Beacon.class}, version = 2)
+/**
+ * Database of the app, holding the enrolled beacons and the
+ * {@link org.physical_web.cms.exhibits.ExhibitCatalog}
+ */
+@Database(entities = {Beacon.class, CatalogExhibit.class, CatalogBeaconSlot.class,
+        CatalogContent.class}, version = 3)
 @TypeConverters({MacRoomConverters.class})
-abstract class BeaconDatabase extends RoomDatabase {
+public abstract class BeaconDatabase extends RoomDatabase {
     public final static String DATABASE_NAME = "beacon_db";
 
+    // version 3 adds the exhibit catalog, which is rebuilt from exhibit metadata when empty
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `catalog_exhibits` (`id` INTEGER NOT NULL,"
+                    + " `title` TEXT, `description` TEXT, `metadataModified` INTEGER NOT NULL,"
+                    + " `active` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+            database.execSQL("CREATE INDEX `index_catalog_exhibits_active`"
+                    + " ON `catalog_exhibits` (`active`)");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `catalog_beacon_slots`"
+                    + " (`exhibitId` INTEGER NOT NULL, `address` TEXT,"
+                    + " `contentCount` INTEGER NOT NULL, PRIMARY KEY(`exhibitId`, `address`))");
+            database.execSQL("CREATE INDEX `index_catalog_beacon_slots_address`"
+                    + " ON `catalog_beacon_slots` (`address`)");
+            database.execSQL("CREATE TABLE IF NOT EXISTS `catalog_contents`"
+                    + " (`exhibitId` INTEGER NOT NULL, `address` TEXT,"
+                    + " `position` INTEGER NOT NULL, `name` TEXT, `blob` TEXT,"
+                    + " PRIMARY KEY(`exhibitId`, `address`, `position`))");
+        }
+    };
+
     private static BeaconDatabase instance;
 
-    public static BeaconDatabase getDatabase(Context context) {
+    public static synchronized BeaconDatabase getDatabase(Context context) {
         if (instance == null) {
             instance = Room.databaseBuilder(context.getApplicationContext(),
-                    BeaconDatabase.class, DATABASE_NAME).build();
+                    BeaconDatabase.class, DATABASE_NAME).addMigrations(MIGRATION_2_3).build();
         }
         return instance;
     }
 
     public abstract BeaconDao beaconDao();
+
+    public abstract ExhibitCatalogDao exhibitCatalogDao();
 }
 
 @Dao
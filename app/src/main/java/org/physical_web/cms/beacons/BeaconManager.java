@@ -7,6 +7,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.physical_web.cms.exhibits.ExhibitManager;
+import org.physical_web.cms.exhibits.MetadataCodec;
 
 import java.io.File;
 import java.io.IOException;
@@ -15,8 +16,6 @@ import java.util.concurrent.CountDownLatch;
 
 import javax.crypto.Mac;
 
-import util.MiscFile;
-
 /**
  * Singleton class to manage beacons. {@link #setContext(Context)} must be called
  * before calling any methods other than {@link #getInstance()}. Call {@link #closeAndSave()} when
@@ -199,15 +198,14 @@ public class BeaconManager {
         try {
             File metadataFile = new File(ExhibitManager.getInstance().getExhibitsFolder(),
                     "metadata.json");
-            if (!metadataFile.exists()) {
-                metadataFile.createNewFile();
-                JSONObject md = new JSONObject();
-                JSONArray beaconNames = new JSONArray();
-                md.put("beacon-names", beaconNames);
-                MiscFile.writeToFile(metadataFile, md.toString());
+            JSONObject metadata;
+            if (metadataFile.exists()) {
+                metadata = MetadataCodec.read(metadataFile);
+            } else {
+                metadata = new JSONObject();
+                metadata.put("beacon-names", new JSONArray());
             }
 
-            JSONObject metadata = new JSONObject(MiscFile.readFile(metadataFile));
             JSONArray beaconName = metadata.getJSONArray("beacon-names");
             for (Beacon beacon : beacons) {
                 JSONObject beaconMd = new JSONObject();
@@ -215,7 +213,7 @@ public class BeaconManager {
                 beaconMd.put("friendly-name", beacon.friendlyName);
                 beaconName.put(beaconMd);
             }
-            MiscFile.writeToFile(metadataFile, metadata.toString());
+            MetadataCodec.write(metadataFile, metadata);
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Couldn't update beacon metadata: " + e);
         }
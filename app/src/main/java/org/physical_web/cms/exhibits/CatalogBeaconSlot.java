@@ -0,0 +1,15 @@
+package org.physical_web.cms.exhibits;
+
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Index;
+
+/**
+ * Row of the {@link ExhibitCatalog} for a beacon an exhibit has contents for
+ */
+@Entity(tableName = "catalog_beacon_slots", primaryKeys = {"exhibitId", "address"},
+        indices = {@Index("address")})
+public class CatalogBeaconSlot {
+    public long exhibitId;
+    public String address;
+    public int contentCount;
+}
@@ -0,0 +1,17 @@
+package org.physical_web.cms.exhibits;
+
+import android.arch.persistence.room.Entity;
+
+/**
+ * Row of the {@link ExhibitCatalog} for a content shown at a beacon, at its position in the
+ * beacon's list
+ */
+@Entity(tableName = "catalog_contents", primaryKeys = {"exhibitId", "address", "position"})
+public class CatalogContent {
+    public long exhibitId;
+    public String address;
+    public int position;
+    public String name;
+    // null for contents stored in the beacon folder by older versions
+    public String blob;
+}
@@ -0,0 +1,19 @@
+package org.physical_web.cms.exhibits;
+
+import android.arch.persistence.room.Entity;
+import android.arch.persistence.room.Index;
+import android.arch.persistence.room.PrimaryKey;
+
+/**
+ * Row of the {@link ExhibitCatalog} describing an exhibit, as read from its metadata.json
+ */
+@Entity(tableName = "catalog_exhibits", indices = {@Index("active")})
+public class CatalogExhibit {
+    @PrimaryKey(autoGenerate = false)
+    public long id;
+    public String title;
+    public String description;
+    // last modification time of the metadata file the row was read from
+    public long metadataModified;
+    public boolean active;
+}
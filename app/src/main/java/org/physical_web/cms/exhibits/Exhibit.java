@@ -17,35 +17,49 @@ import org.physical_web.cms.sync.ContentSynchronizer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
-import util.MiscFile;
-
-import util.MiscFile;
-
 import static util.MiscFile.deleteDir;
-import static util.MiscFile.readFile;
-import static util.MiscFile.writeToFile;
 
 /**
  * Represents an exhibition, or a set of content assigned to a number of beacons. These sets can
  * be composed, deployed and swapped from the app. Create new exhibits with
  * {@link #initializeIntoFolder(String, File)} and thereafter load them with
  * {@link #loadFromFolder(File)}
+ * <p>
+ * Contents added from the app are stored in the {@link MediaBlobStore} shared by all exhibits.
+ * Contents stored in beacon folders by older versions are still loaded from there.
+ * <p>
+ * Loading an exhibit only reads its metadata, which is all the exhibit list needs. The contents
+ * of a beacon are loaded the first time {@link #getContentForBeacon(Beacon)} asks for them, and
+ * can be dropped again with {@link #evictContents(Beacon)}.
+ * <p>
+ * Changes to the metadata are written behind by a {@link MetadataWriter}, a short while after
+ * the last one or on {@link #flushMetadata()}. Methods changing the metadata hold the lock on the
+ * exhibit while doing so, as the writer serializes it from its own thread. The loaded contents
+ * and content folders are only used holding it too, exhibits being reached from the loader and
+ * writer threads as well as the main one.
  */
 public class Exhibit {
     private static final String TAG = Exhibit.class.getSimpleName();
     private static final String METADATA_FILE_NAME = "metadata.json";
 
     private long id;
+    // found on first use, null until then
     private Map<Beacon, File> contentFolderForBeacon;
-    private Map<Beacon, List<ExhibitContent>> contentsForBeacon;
+    // contents of the beacons asked for so far
+    private Map<Beacon, List<ExhibitContent>> contentsForBeacon = new HashMap<>();
     private JSONObject metadata;
     private File exhibitFolder;
+    private MediaBlobStore blobStore;
+    private MetadataWriter metadataWriter;
+    // told about every change of the metadata, if set
+    private ExhibitCatalog catalog;
 
     /**
      * Load an exhibit and return it from an already created folder
@@ -54,24 +68,30 @@ public class Exhibit {
      * @return loaded exhibit
      */
     public static Exhibit loadFromFolder(File exhibitFolder) {
+        return loadFromFolder(exhibitFolder, ExhibitManager.getInstance().getBlobStore());
+    }
+
+    // load an exhibit whose media is stored in blobStore
+    static Exhibit loadFromFolder(File exhibitFolder, MediaBlobStore blobStore) {
         if (exhibitFolder.isFile())
             throw new IllegalArgumentException("Passed file, not folder");
 
         Exhibit loadedExhibit = new Exhibit();
 
         loadedExhibit.exhibitFolder = exhibitFolder;
+        loadedExhibit.blobStore = blobStore;
         // exhibit folder name matches the unique ID of the exhibit
         loadedExhibit.id = Long.valueOf(exhibitFolder.getName());
 
         // load the metadata file
         File metadataFile = new File(exhibitFolder, METADATA_FILE_NAME);
         loadedExhibit.metadata = loadMetadataFile(metadataFile);
+        loadedExhibit.metadataWriter = new MetadataWriter(metadataFile,
+                loadedExhibit.new MetadataSource());
 
-        // map of beacons to the folders their contents are stored
-        loadedExhibit.contentFolderForBeacon = findFoldersForBeacons(exhibitFolder);
-        // load exhibit contents per beacon into map
-        loadedExhibit.contentsForBeacon =
-                loadedExhibit.loadBeaconContentMap(loadedExhibit.contentFolderForBeacon);
+        for (String blobName : loadedExhibit.getBlobReferences()) {
+            blobStore.acquire(blobName);
+        }
 
         return loadedExhibit;
     }
@@ -84,6 +104,13 @@ public class Exhibit {
      * @return the new exhibit
      */
     public static Exhibit initializeIntoFolder(String exhibitName, File parentFolder) {
+        return initializeIntoFolder(exhibitName, parentFolder,
+                ExhibitManager.getInstance().getBlobStore());
+    }
+
+    // create a new exhibit whose media is stored in blobStore
+    static Exhibit initializeIntoFolder(String exhibitName, File parentFolder,
+                                        MediaBlobStore blobStore) {
         if (!parentFolder.exists() || parentFolder.isFile())
             throw new IllegalArgumentException("Invalid parent folder");
 
@@ -102,7 +129,7 @@ public class Exhibit {
         createBeaconContentFolders(exhibitFolder);
         createExhibitMetadataFile(exhibitName, exhibitFolder);
 
-        return Exhibit.loadFromFolder(exhibitFolder);
+        return Exhibit.loadFromFolder(exhibitFolder, blobStore);
     }
 
     // create folders to store contents for each beacon in
@@ -152,7 +179,7 @@ public class Exhibit {
             }
             newMetadata.put("beacons", beacons);
 
-            writeToFile(metadataFile, newMetadata.toString());
+            MetadataCodec.write(metadataFile, newMetadata);
         } catch (JSONException jsonException) {
             Log.e(TAG, "Couldn't create metadata JSON: " + jsonException);
         } catch (IOException iOException) {
@@ -215,6 +242,23 @@ public class Exhibit {
         return id;
     }
 
+    /**
+     * Returns the last modification time of the metadata file
+     */
+    long getMetadataModified() {
+        return new File(exhibitFolder, METADATA_FILE_NAME).lastModified();
+    }
+
+    // metadata as last read or written, to be read on the thread changing the exhibit only
+    JSONObject getMetadata() {
+        return metadata;
+    }
+
+    // keep the catalog up to date with every change written to the metadata
+    void setCatalog(ExhibitCatalog catalog) {
+        this.catalog = catalog;
+    }
+
     /**
      * Return the description of the exhibit
      */
@@ -227,7 +271,31 @@ public class Exhibit {
         }
     }
 
-    public void setTitle(String newTitle) {
+    /**
+     * Returns the number of beacons the exhibit has contents for, as listed in its metadata
+     */
+    public int getBeaconCount() {
+        JSONArray beacons = metadata.optJSONArray("beacons");
+        return beacons == null ? 0 : beacons.length();
+    }
+
+    /**
+     * Returns the number of contents of all beacons, as listed in the metadata, without loading
+     * them
+     */
+    public int getContentCount() {
+        JSONArray beacons = metadata.optJSONArray("beacons");
+        int count = 0;
+        for (int i = 0; beacons != null && i < beacons.length(); i++) {
+            JSONObject beacon = beacons.optJSONObject(i);
+            JSONArray contents = beacon == null ? null : beacon.optJSONArray("contents");
+            if (contents != null)
+                count += contents.length();
+        }
+        return count;
+    }
+
+    public synchronized void setTitle(String newTitle) {
         try {
             this.metadata.put("name", newTitle);
             saveMetadata();
@@ -241,7 +309,7 @@ public class Exhibit {
      *
      * @param newDescription the new description
      */
-    public void setDescription(String newDescription) {
+    public synchronized void setDescription(String newDescription) {
         try {
             this.metadata.put("description", newDescription);
             saveMetadata();
@@ -255,57 +323,59 @@ public class Exhibit {
      *
      * @param beacon Beacon whose contents have been reordered
      */
-    public void persistContentChanges(Beacon beacon) {
+    public synchronized void persistContentChanges(Beacon beacon) {
         List<ExhibitContent> changedContents = contentsForBeacon.get(beacon);
+        // contents that aren't loaded can't have been reordered
+        if (changedContents == null)
+            return;
         JSONObject beaconMetadata = getBeaconMetadata(beacon);
         try {
             JSONArray changedContentList = new JSONArray();
+            List<String> changedNames = new ArrayList<>();
             for (ExhibitContent exhibitContent : changedContents) {
                 changedContentList.put(exhibitContent.getContentName());
+                changedNames.add(exhibitContent.getContentName());
+            }
+            // keep contents whose media wasn't synced yet, so they weren't loaded
+            JSONArray previousContents = beaconMetadata.getJSONArray("contents");
+            JSONObject blobs = beaconMetadata.optJSONObject(MediaBlobStore.BLOBS_KEY);
+            for (int i = 0; blobs != null && i < previousContents.length(); i++) {
+                String contentName = previousContents.getString(i);
+                if (blobs.has(contentName) && !changedNames.contains(contentName))
+                    changedContentList.put(contentName);
             }
             beaconMetadata.put("contents", changedContentList);
             saveMetadata();
         } catch (JSONException e) {
             Log.e(TAG, "Error persisting content changes: " + e);
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing new content order to JSON" + e);
         }
     }
 
-    // returns a map between the provided beacons and a list of their contents
-    private Map<Beacon, List<ExhibitContent>> loadBeaconContentMap
-    (Map<Beacon, File> beaconFileMap) {
-        Map<Beacon, List<ExhibitContent>> beaconContentMap = new HashMap<>();
-
-        BeaconManager beaconManager = BeaconManager.getInstance();
-        List<Beacon> beacons = beaconManager.getAllBeacons();
-
-        for (Beacon beacon : beacons) {
-            File beaconContentFolder = beaconFileMap.get(beacon);
-
-            if (beaconContentFolder == null) {
-                Log.e(TAG, "No folder for beacon: " + beacon.friendlyName);
-            } else {
-                List<ExhibitContent> beaconContents =
-                        loadBeaconContents(beacon);
-                beaconContentMap.put(beacon, beaconContents);
-            }
-        }
-
-        return beaconContentMap;
-    }
-
     // given a beacon, return a list of exhibit contents by loading the files found
     // in the metadata associated with that beacon.
     private List<ExhibitContent> loadBeaconContents(Beacon beacon) {
         List<ExhibitContent> beaconContents = new LinkedList<>();
-        File beaconFolder = contentFolderForBeacon.get(beacon);
+        File beaconFolder = getContentFolders().get(beacon);
 
         try {
-            JSONArray registeredContents = getBeaconMetadata(beacon).getJSONArray("contents");
+            JSONObject beaconMetadata = getBeaconMetadata(beacon);
+            JSONArray registeredContents = beaconMetadata.getJSONArray("contents");
+            JSONObject blobs = beaconMetadata.optJSONObject(MediaBlobStore.BLOBS_KEY);
 
             for (int i = 0; i < registeredContents.length(); i++) {
                 String fileName = registeredContents.getString(i);
+                String blobName = blobs == null ? null : blobs.optString(fileName, null);
+                if (blobName != null) {
+                    File blob = blobStore.getBlob(blobName);
+                    // metadata is synced ahead of media, the blob may not be there yet
+                    if (!blob.exists()) {
+                        Log.w(TAG, "Media of " + fileName + " not synced yet: " + blobName);
+                        continue;
+                    }
+                    beaconContents.add(ExhibitContent.fromFile(blob, fileName));
+                    continue;
+                }
+
                 File contentFile = new File(beaconFolder, fileName);
 
                 if (!contentFile.exists())
@@ -329,8 +399,7 @@ public class Exhibit {
         JSONObject readMetadata = null;
 
         try {
-            String metadataContents = readFile(metadataFile);
-            readMetadata = new JSONObject(metadataContents);
+            readMetadata = MetadataCodec.read(metadataFile);
         } catch (IOException e) {
             Log.e(TAG, "Couldn't read metadata file: " + e);
         } catch (JSONException e) {
@@ -340,10 +409,48 @@ public class Exhibit {
         return readMetadata;
     }
 
-    // write the metadata as a JSON file to disk
-    private void saveMetadata() throws IOException {
-        File target = new File(exhibitFolder, METADATA_FILE_NAME);
-        writeToFile(target, this.metadata.toString());
+    // have the metadata written to disk, along with the other changes made shortly
+    private void saveMetadata() {
+        metadataWriter.markDirty();
+    }
+
+    /**
+     * Write the changes made to the metadata now, rather than shortly after the last one. Returns
+     * once they are on disk.
+     */
+    public void flushMetadata() {
+        metadataWriter.flush();
+    }
+
+    /**
+     * Returns the number of times the metadata was written since the exhibit was loaded
+     */
+    public int getMetadataWriteCount() {
+        return metadataWriter.getWriteCount();
+    }
+
+    // drop the changes not written yet, the exhibit being deleted
+    void discardMetadataChanges() {
+        metadataWriter.discard();
+    }
+
+    // serializes the metadata for the writer, and keeps the catalog up to date with what it wrote
+    private class MetadataSource implements MetadataWriter.Source {
+        @Override
+        public byte[] serialize() {
+            synchronized (Exhibit.this) {
+                return MetadataCodec.encode(metadata);
+            }
+        }
+
+        @Override
+        public void onWritten(File target) {
+            if (catalog == null)
+                return;
+            synchronized (Exhibit.this) {
+                catalog.record(id, metadata, target.lastModified());
+            }
+        }
     }
 
     /**
@@ -352,13 +459,14 @@ public class Exhibit {
      *
      * @param newBeacon beacon to add to exhibit
      */
-    public void configureForAdditionalBeacon(Beacon newBeacon) {
+    public synchronized void configureForAdditionalBeacon(Beacon newBeacon) {
         MacAddress beaconAddress = newBeacon.address;
+        boolean alreadySupported = getContentFolders().containsKey(newBeacon);
 
         File beaconContentFolder = new File(exhibitFolder, beaconAddress.toString());
         beaconContentFolder.mkdir();
 
-        if (getContentForBeacon(newBeacon) == null) {
+        if (!alreadySupported) {
             try {
                 JSONObject beacon = new JSONObject();
                 beacon.put("address", beaconAddress.toString());
@@ -372,8 +480,8 @@ public class Exhibit {
             }
         }
 
-        contentFolderForBeacon.put(newBeacon, beaconContentFolder);
-        contentsForBeacon.put(newBeacon, loadBeaconContents(newBeacon));
+        getContentFolders().put(newBeacon, beaconContentFolder);
+        contentsForBeacon.remove(newBeacon);
     }
 
     /**
@@ -383,10 +491,28 @@ public class Exhibit {
      * @param removedBeacon Beacon to remove
      */
     public void configureForRemovedBeacon(Beacon removedBeacon) {
-        File beaconContentFolder = contentFolderForBeacon.get(removedBeacon);
-        if (beaconContentFolder == null)
-            throw new IllegalArgumentException("No such beacon to delete");
+        File beaconContentFolder;
+        List<String> removedBlobs;
+        synchronized (this) {
+            beaconContentFolder = getContentFolders().get(removedBeacon);
+            if (beaconContentFolder == null)
+                throw new IllegalArgumentException("No such beacon to delete");
+            removedBlobs = removeBeaconMetadata(removedBeacon);
+        }
+
+        deleteDir(beaconContentFolder);
+        ContentSynchronizer.getInstance().recordDeletion(beaconContentFolder);
+        for (String blobName : removedBlobs) {
+            releaseBlob(blobName);
+        }
+    }
 
+    // remove a beacon from the metadata and from the loaded contents, returning the blobs its
+    // contents were stored in
+    private synchronized List<String> removeBeaconMetadata(Beacon removedBeacon) {
+        getContentFolders().remove(removedBeacon);
+        contentsForBeacon.remove(removedBeacon);
+        List<String> removedBlobs = new ArrayList<>();
         try {
             JSONArray beacons = metadata.getJSONArray("beacons");
             int targetIndex = -1;
@@ -398,6 +524,7 @@ public class Exhibit {
                 if (currentBeacon.getString("address")
                         .equals(removedBeacon.address.toString())) {
                     targetIndex = i;
+                    removedBlobs = MediaBlobStore.blobReferences(currentBeacon);
                 }
             }
 
@@ -410,19 +537,46 @@ public class Exhibit {
         } catch (Exception e) {
             Log.e(TAG, "Removing beacon from metadata failed: " + e);
         }
-
-        ContentSynchronizer.getInstance().deleteSyncedEquivalent(beaconContentFolder);
-        deleteDir(beaconContentFolder);
+        return removedBlobs;
     }
 
     /**
-     * Returns an list of ExhibitContents given the name of a beacon
+     * Returns an list of ExhibitContents given the name of a beacon, loading them if they
+     * weren't yet
      *
      * @param beacon to find exhibits associated with
-     * @return Exhibit contents for that beacon
+     * @return Exhibit contents for that beacon, or null if the exhibit has no folder for it
      */
-    public List<ExhibitContent> getContentForBeacon(Beacon beacon) {
-        return contentsForBeacon.get(beacon);
+    public synchronized List<ExhibitContent> getContentForBeacon(Beacon beacon) {
+        List<ExhibitContent> contents = contentsForBeacon.get(beacon);
+        if (contents == null && getContentFolders().containsKey(beacon)) {
+            contents = loadBeaconContents(beacon);
+            contentsForBeacon.put(beacon, contents);
+        }
+        return contents;
+    }
+
+    /**
+     * Drop the loaded contents of a beacon, to be loaded again when next asked for. Lists
+     * returned by {@link #getContentForBeacon(Beacon)} until now are no longer kept up to date.
+     */
+    public synchronized void evictContents(Beacon beacon) {
+        contentsForBeacon.remove(beacon);
+    }
+
+    /**
+     * Drop the loaded contents of every beacon
+     */
+    public synchronized void evictContents() {
+        contentsForBeacon.clear();
+    }
+
+    // returns the map of beacons to the folders their contents are stored in, finding them
+    // on first use
+    private synchronized Map<Beacon, File> getContentFolders() {
+        if (contentFolderForBeacon == null)
+            contentFolderForBeacon = findFoldersForBeacons(exhibitFolder);
+        return contentFolderForBeacon;
     }
 
     /**
@@ -443,25 +597,60 @@ public class Exhibit {
                     cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
             cursor.close();
 
-        File beaconFolder = contentFolderForBeacon.get(beacon);
-        File localCopy = MiscFile.copyURIContentsToFolder(uri, displayName, beaconFolder, ctx);
-        if (localCopy == null)
-            throw new IllegalStateException("Couldn't make local copy of contents at URI");
+        String blobName;
+        try {
+            inputStream = ctx.getContentResolver().openInputStream(uri);
+            if (inputStream == null)
+                throw new IllegalArgumentException("No copyable content at URI provided");
+            try {
+                blobName = blobStore.add(inputStream, displayName, ctx.getCacheDir());
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't make local copy of contents at URI: " + e);
+        }
+
+        appendContentToMetadata(displayName, blobName, beacon);
+        synchronized (this) {
+            // contents that aren't loaded yet are loaded from the metadata, along with this one
+            List<ExhibitContent> contents = contentsForBeacon.get(beacon);
+            if (contents != null)
+                contents.add(ExhibitContent.fromFile(blobStore.getBlob(blobName), displayName));
+        }
+    }
 
-        appendContentToMetadata(displayName, beacon);
-        contentsForBeacon.get(beacon).add(ExhibitContent.fromFile(localCopy));
+    // add content at end of metadata for provided beacon, stored in the given blob, which the
+    // blob store already counts a reference to
+    private void appendContentToMetadata(String filename, String blobName, Beacon beacon) {
+        String replacedBlobName = putContentMetadata(filename, blobName, beacon);
+        if (replacedBlobName != null)
+            releaseBlob(replacedBlobName);
     }
 
-    // add content at end of metadata for provided beacon
-    private void appendContentToMetadata(String filename, Beacon beacon) {
+    // add content at end of metadata, returning the blob whose reference is no longer needed:
+    // that of the content it replaced, the given one if it couldn't be added, or null
+    private synchronized String putContentMetadata(String filename, String blobName,
+                                                   Beacon beacon) {
+        String replacedBlobName = null;
         try {
             JSONObject beaconMetadata = getBeaconMetadata(beacon);
             JSONArray contents = beaconMetadata.getJSONArray("contents");
             contents.put(filename);
+            JSONObject blobs = beaconMetadata.optJSONObject(MediaBlobStore.BLOBS_KEY);
+            if (blobs == null) {
+                blobs = new JSONObject();
+                beaconMetadata.put(MediaBlobStore.BLOBS_KEY, blobs);
+            }
+            // content of the same name is replaced, as it is when copied to the beacon folder
+            replacedBlobName = blobs.optString(filename, null);
+            blobs.put(filename, blobName);
             saveMetadata();
         } catch (Exception e) {
             Log.e(TAG, "modifying metadata failed for content with filename: " + filename);
+            return blobName;
         }
+        return replacedBlobName;
     }
 
     /**
@@ -470,41 +659,91 @@ public class Exhibit {
      * @param content to be removed
      * @param beacon  associated with content
      */
-    public void removeContent(final ExhibitContent content, Beacon beacon) {
-        removeContentMetadata(content, beacon);
-        contentsForBeacon.get(beacon).remove(content);
+    public void removeContent(ExhibitContent content, Beacon beacon) {
+        String blobName = removeContentMetadata(content, beacon);
+        synchronized (this) {
+            List<ExhibitContent> contents = contentsForBeacon.get(beacon);
+            if (contents != null)
+                contents.remove(content);
+        }
+
+        if (blobName != null) {
+            releaseBlob(blobName);
+            return;
+        }
+        File contentFile = content.getContentFile();
+        contentFile.delete();
+        ContentSynchronizer.getInstance().recordDeletion(contentFile);
+    }
+
+    /**
+     * Returns the names of the {@link MediaBlobStore} blobs this exhibit refers to, once per
+     * reference
+     */
+    List<String> getBlobReferences() {
+        List<String> blobNames = new ArrayList<>();
+        try {
+            JSONArray beacons = metadata.getJSONArray("beacons");
+            for (int i = 0; i < beacons.length(); i++) {
+                blobNames.addAll(MediaBlobStore.blobReferences(beacons.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Couldn't read media references: " + e);
+        }
+        return blobNames;
+    }
 
-        new Thread(new Runnable() {
+    // drop a reference to a blob, deleting it everywhere if it was the last one. Done in the
+    // background, once the metadata is on disk, as the blob store checks it no longer refers to
+    // the blob. Must not be called holding the lock on the exhibit.
+    void releaseBlob(final String blobName) {
+        metadataWriter.flushThen(new Runnable() {
             @Override
             public void run() {
-                File contentFile = content.getContentFile();
-                ContentSynchronizer.getInstance().deleteSyncedEquivalent(contentFile);
-                contentFile.delete();
+                if (blobStore.release(blobName))
+                    ContentSynchronizer.getInstance()
+                            .recordDeletion(blobStore.getBlob(blobName));
             }
-        }).start();
+        });
     }
 
-    // remove content at beacon from metadata, writing changes to disk
-    private void removeContentMetadata(ExhibitContent content, Beacon beacon) {
+    // remove content at beacon from metadata, writing changes to disk. Returns the blob that
+    // stored it if nothing else in the beacon refers to it anymore, or null.
+    private synchronized String removeContentMetadata(ExhibitContent content, Beacon beacon) {
         try {
-            JSONArray beaconContents = getBeaconMetadata(beacon).getJSONArray("contents");
+            JSONObject beaconMetadata = getBeaconMetadata(beacon);
+            JSONArray beaconContents = beaconMetadata.getJSONArray("contents");
             for (int i = 0; i < beaconContents.length(); i++) {
                 String contentName = beaconContents.getString(i);
                 if (contentName.equals(content.getContentName())) {
                     beaconContents.remove(i);
+                    String blobName = removeBlobMapping(beaconMetadata, contentName);
                     saveMetadata();
-                    return;
+                    return blobName;
                 }
             }
         } catch (JSONException e) {
             Log.e(TAG, "Trouble removing content from metadata");
-        } catch (IOException e) {
-            Log.e(TAG, "Error updating metadata file while removing content");
         }
 
         throw new IllegalArgumentException("No such contents found");
     }
 
+    // forget which blob stores a content once no entry of that name is left, returning the blob
+    private static String removeBlobMapping(JSONObject beaconMetadata, String contentName)
+            throws JSONException {
+        JSONObject blobs = beaconMetadata.optJSONObject(MediaBlobStore.BLOBS_KEY);
+        if (blobs == null || !blobs.has(contentName))
+            return null;
+
+        JSONArray contents = beaconMetadata.getJSONArray("contents");
+        for (int i = 0; i < contents.length(); i++) {
+            if (contents.getString(i).equals(contentName))
+                return null;
+        }
+        return (String) blobs.remove(contentName);
+    }
+
     // get a JSONObject that contains the metadata for the provided beacon
     private JSONObject getBeaconMetadata(Beacon beacon) {
         try {
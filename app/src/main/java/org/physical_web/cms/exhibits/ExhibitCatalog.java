@@ -0,0 +1,220 @@
+package org.physical_web.cms.exhibits;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.physical_web.cms.beacons.BeaconDatabase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Index of the stored exhibits, their beacons and contents, kept in the {@link BeaconDatabase}.
+ * The metadata.json files remain the format exhibits are stored and synced in: the catalog is
+ * only a copy of them, refreshed whenever an exhibit's metadata is written or found newer than
+ * its row, and rebuilt from them when missing.
+ * <p>
+ * The database is only used from a thread of the catalog's own, so any thread may call these
+ * methods. Changes are written in the background, in the order they are made, and queries wait
+ * for the changes made before them. The active exhibit is answered from memory, as it is asked
+ * for on the main thread; the other lookups of exhibits are answered by the loaded exhibits.
+ */
+public class ExhibitCatalog {
+    private static final String TAG = ExhibitCatalog.class.getSimpleName();
+
+    private final BeaconDatabase db;
+    private final ExhibitCatalogDao dao;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // modification times of the metadata the rows were read from, loaded on first use
+    private Map<Long, Long> recordedVersions = null;
+    // as marked in the rows, which may not be written yet
+    private Long activeExhibitId = null;
+
+    public ExhibitCatalog(BeaconDatabase db) {
+        this.db = db;
+        this.dao = db.exhibitCatalogDao();
+    }
+
+    /**
+     * Record an exhibit unless its row was read from this version of its metadata already
+     *
+     * @param metadataModified modification time of the metadata file
+     * @return true if the exhibit was recorded
+     */
+    public boolean refresh(long exhibitId, JSONObject metadata, long metadataModified) {
+        synchronized (this) {
+            Long recordedVersion = getRecordedVersions().get(exhibitId);
+            if (recordedVersion != null && recordedVersion == metadataModified)
+                return false;
+        }
+        record(exhibitId, metadata, metadataModified);
+        return true;
+    }
+
+    /**
+     * Replace the rows of an exhibit with those read from its metadata
+     *
+     * @param metadataModified modification time of the metadata file
+     */
+    public void record(long exhibitId, JSONObject metadata, long metadataModified) {
+        // rows are read right away, the metadata may change once this returns
+        final CatalogExhibit exhibit = new CatalogExhibit();
+        exhibit.id = exhibitId;
+        exhibit.title = metadata.optString("name", null);
+        exhibit.description = metadata.optString("description", null);
+        exhibit.metadataModified = metadataModified;
+
+        final List<CatalogBeaconSlot> slots = new ArrayList<>();
+        final List<CatalogContent> contents = new ArrayList<>();
+        JSONArray beacons = metadata.optJSONArray("beacons");
+        for (int i = 0; beacons != null && i < beacons.length(); i++) {
+            JSONObject beacon = beacons.optJSONObject(i);
+            String address = beacon == null ? null : beacon.optString("address", null);
+            if (address == null)
+                continue;
+
+            JSONArray contentNames = beacon.optJSONArray("contents");
+            JSONObject blobs = beacon.optJSONObject(MediaBlobStore.BLOBS_KEY);
+            CatalogBeaconSlot slot = new CatalogBeaconSlot();
+            slot.exhibitId = exhibitId;
+            slot.address = address;
+            slot.contentCount = contentNames == null ? 0 : contentNames.length();
+            slots.add(slot);
+
+            for (int j = 0; j < slot.contentCount; j++) {
+                CatalogContent content = new CatalogContent();
+                content.exhibitId = exhibitId;
+                content.address = address;
+                content.position = j;
+                content.name = contentNames.optString(j);
+                content.blob = blobs == null ? null : blobs.optString(content.name, null);
+                contents.add(content);
+            }
+        }
+
+        synchronized (this) {
+            exhibit.active = activeExhibitId != null && activeExhibitId == exhibitId;
+            if (recordedVersions != null)
+                recordedVersions.put(exhibitId, metadataModified);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    db.beginTransaction();
+                    try {
+                        deleteRows(exhibit.id);
+                        dao.insertExhibits(exhibit);
+                        dao.insertBeaconSlots(slots);
+                        dao.insertContents(contents);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Remove the rows of an exhibit that was deleted
+     */
+    public synchronized void forget(final long exhibitId) {
+        if (recordedVersions != null)
+            recordedVersions.remove(exhibitId);
+        if (activeExhibitId != null && activeExhibitId == exhibitId)
+            activeExhibitId = null;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransaction();
+                try {
+                    deleteRows(exhibitId);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the rows of every exhibit but the given ones, which are all that is stored
+     */
+    public void retainOnly(Collection<Long> exhibitIds) {
+        List<Long> removedIds;
+        synchronized (this) {
+            removedIds = new ArrayList<>(getRecordedVersions().keySet());
+        }
+        removedIds.removeAll(exhibitIds);
+        for (long removedId : removedIds) {
+            Log.d(TAG, "Forgetting exhibit no longer stored: " + removedId);
+            forget(removedId);
+        }
+    }
+
+    /**
+     * Mark the active exhibit, which may not be recorded yet
+     */
+    public synchronized void setActiveExhibit(final long exhibitId) {
+        activeExhibitId = exhibitId;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dao.setActiveExhibit(exhibitId);
+            }
+        });
+    }
+
+    /**
+     * Returns the id of the active exhibit, or null if there is none. Answered from memory
+     * rather than by a query, so the main thread may call it.
+     */
+    public synchronized Long getActiveExhibitId() {
+        return activeExhibitId;
+    }
+
+    // must be called holding the lock on this
+    private Map<Long, Long> getRecordedVersions() {
+        if (recordedVersions == null) {
+            List<CatalogExhibit> recorded = query(new Callable<List<CatalogExhibit>>() {
+                @Override
+                public List<CatalogExhibit> call() {
+                    return dao.getAllExhibits();
+                }
+            });
+            recordedVersions = new HashMap<>();
+            for (CatalogExhibit exhibit : recorded) {
+                recordedVersions.put(exhibit.id, exhibit.metadataModified);
+            }
+            if (recordedVersions.isEmpty())
+                Log.i(TAG, "Catalog empty, rebuilding it from exhibit metadata");
+        }
+        return recordedVersions;
+    }
+
+    // must be called inside a transaction
+    private void deleteRows(long exhibitId) {
+        dao.deleteContents(exhibitId);
+        dao.deleteBeaconSlots(exhibitId);
+        dao.deleteExhibit(exhibitId);
+    }
+
+    // run a query on the catalog thread, after the changes queued before it
+    private <T> T query(Callable<T> query) {
+        try {
+            return executor.submit(query).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted querying catalog");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Catalog query failed: " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.physical_web.cms.exhibits;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+
+import java.util.List;
+
+/**
+ * Queries of the {@link ExhibitCatalog}. Use through the catalog, which keeps it consistent
+ * with the metadata on disk.
+ */
+@Dao
+public interface ExhibitCatalogDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertExhibits(CatalogExhibit... exhibits);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertBeaconSlots(List<CatalogBeaconSlot> slots);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertContents(List<CatalogContent> contents);
+
+    @Query("delete from catalog_exhibits where id = :exhibitId")
+    void deleteExhibit(long exhibitId);
+
+    @Query("delete from catalog_beacon_slots where exhibitId = :exhibitId")
+    void deleteBeaconSlots(long exhibitId);
+
+    @Query("delete from catalog_contents where exhibitId = :exhibitId")
+    void deleteContents(long exhibitId);
+
+    @Query("select * from catalog_exhibits")
+    List<CatalogExhibit> getAllExhibits();
+
+    @Query("update catalog_exhibits set active = (id = :exhibitId)")
+    void setActiveExhibit(long exhibitId);
+}
@@ -31,6 +31,16 @@ public abstract class ExhibitContent {
     private File contentFile;
 
     public static ExhibitContent fromFile(File contentFile) {
+        return fromFile(contentFile, contentFile.getName());
+    }
+
+    /**
+     * Load content stored in a file named differently from the content, such as a
+     * {@link MediaBlobStore} blob
+     *
+     * @param contentName name the content is listed under in exhibit metadata
+     */
+    public static ExhibitContent fromFile(File contentFile, String contentName) {
         ExhibitContent result;
         // easy check: look at extension and determine file type
         String mimeType = mimeTypeFromExtension(contentFile);
@@ -50,7 +60,7 @@ public abstract class ExhibitContent {
         else
             throw new IllegalArgumentException("Exhibit content has unrecognized file type");
 
-        result.setContentName(contentFile.getName());
+        result.setContentName(contentName);
         result.setContentFile(contentFile);
         return result;
     }
@@ -106,17 +116,22 @@ public abstract class ExhibitContent {
 }
 
 class TextContent extends ExhibitContent {
+    private File textFile;
+    // read on first use, so listing contents doesn't read every text
     String text;
 
     public TextContent(File contentFile) {
-        try {
-            text = readFile(contentFile);
-        } catch (Exception e) {
-            throw new RuntimeException("couldn't read text");
-        }
+        textFile = contentFile;
     }
 
     public String getText() {
+        if (text == null) {
+            try {
+                text = readFile(textFile);
+            } catch (Exception e) {
+                throw new RuntimeException("couldn't read text");
+            }
+        }
         return text;
     }
 
@@ -46,6 +46,8 @@ public class ExhibitContentFragment extends Fragment {
     private int IMAGE_CARD_MAX_HEIGHT;
 
 
+    private long exhibitId;
+    // null until loaded
     private Exhibit workingExhibit;
     private Beacon workingBeacon;
 
@@ -63,8 +65,11 @@ public class ExhibitContentFragment extends Fragment {
         if (passedArguments == null)
             throw new IllegalArgumentException("beacon name to work on must be provided");
 
-        Long exhibitId = passedArguments.getLong("exhibit-id");
+        // when restored while exhibits are still loading, contents are shown once the exhibit is
+        exhibitId = passedArguments.getLong("exhibit-id");
         workingExhibit = ExhibitManager.getInstance().getById(exhibitId);
+        if (workingExhibit == null)
+            ExhibitManager.getInstance().addLoadListener(loadListener);
 
         String normalizedAddress = passedArguments.getString("beacon-address");
         MacAddress targetAddress = MacAddress.fromString(normalizedAddress);
@@ -82,6 +87,7 @@ public class ExhibitContentFragment extends Fragment {
                 addContent();
             }
         });
+        addContentButton.setEnabled(workingExhibit != null);
 
         // setup the list of content
         RecyclerView contentList = (RecyclerView) result
@@ -112,6 +118,40 @@ public class ExhibitContentFragment extends Fragment {
                 + workingBeacon.friendlyName);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        ExhibitManager.getInstance().removeLoadListener(loadListener);
+        // nothing shows the contents anymore, they are loaded again if the beacon is reopened
+        if (workingExhibit != null)
+            workingExhibit.evictContents(workingBeacon);
+    }
+
+    // waits for the exhibit being edited to be loaded
+    private ExhibitManager.ExhibitLoadListener loadListener =
+            new ExhibitManager.ExhibitLoadListener() {
+                @Override
+                public void onExhibitInserted(int position) {
+                    Exhibit exhibit = ExhibitManager.getInstance().getExhibit(position);
+                    if (exhibit.getId() != exhibitId)
+                        return;
+
+                    workingExhibit = exhibit;
+                    ExhibitManager.getInstance().removeLoadListener(this);
+                    if (getView() != null)
+                        getView().findViewById(R.id.fragment_exhibit_content_add)
+                                .setEnabled(true);
+                    contentAdapter.notifyDataSetChanged();
+                }
+
+                @Override
+                public void onExhibitsLoaded() {
+                    // deleted while the app wasn't running
+                    if (workingExhibit == null)
+                        getFragmentManager().popBackStack();
+                }
+            };
+
     private void addContent() {
         Intent filePickerIntent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
 
@@ -213,6 +253,8 @@ public class ExhibitContentFragment extends Fragment {
 
         @Override
         public int getItemCount() {
+            if (workingExhibit == null)
+                return 0;
             int itemCount = workingExhibit.getContentForBeacon(workingBeacon).size();
 
             // TODO find more idiomatic way to do this
@@ -234,6 +276,12 @@ public class ExhibitContentFragment extends Fragment {
             workingExhibit.persistContentChanges(workingBeacon);
         }
 
+        @Override
+        public void onDragFinished() {
+            // a drag moves a card many times, its new order is written once
+            workingExhibit.flushMetadata();
+        }
+
         class ViewHolder extends RecyclerView.ViewHolder {
             TextView contentTitle;
             ImageView imageView;
@@ -292,6 +340,12 @@ class DragHelperCallback extends ItemTouchHelper.Callback {
         return true;
     }
 
+    @Override
+    public void clearView(RecyclerView recyclerView, RecyclerView.ViewHolder viewHolder) {
+        super.clearView(recyclerView, viewHolder);
+        cardDragNotifier.onDragFinished();
+    }
+
     @Override
     public void onSwiped(RecyclerView.ViewHolder viewHolder,
                          int direction) {
@@ -301,4 +355,6 @@ class DragHelperCallback extends ItemTouchHelper.Callback {
 
 interface CardDragNotifier {
     void onItemMove(int fromPosition, int toPosition);
+
+    void onDragFinished();
 }
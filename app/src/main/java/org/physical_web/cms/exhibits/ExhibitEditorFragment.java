@@ -27,6 +27,8 @@ public class ExhibitEditorFragment extends Fragment {
 
     private ExhibitManager exhibitManager = ExhibitManager.getInstance();
     private BeaconManager beaconManager = BeaconManager.getInstance();
+    private long exhibitId;
+    // null until loaded
     private Exhibit workingExhibit;
 
     private BeaconAdapter beaconAdapter;
@@ -46,15 +48,16 @@ public class ExhibitEditorFragment extends Fragment {
         if (bundle == null)
             throw new IllegalArgumentException("No exhibit provided to edit");
 
-        // get exhibit we are editing, by ID
-        Long exhibitId = bundle.getLong("exhibit-id");
+        // get exhibit we are editing, by ID. When restored while exhibits are still loading, it is
+        // shown once it is
+        exhibitId = bundle.getLong("exhibit-id");
         workingExhibit = exhibitManager.getById(exhibitId);
-
-        // setup the metadata section of the editor
-        ((EditText) editorView.findViewById(R.id.exhibit_editor_title))
-                .setText(workingExhibit.getTitle());
-        ((EditText) editorView.findViewById(R.id.exhibit_editor_description))
-                .setText(workingExhibit.getDescription());
+        if (workingExhibit != null) {
+            showExhibitInfo(editorView);
+        } else {
+            editorView.findViewById(R.id.exhibit_editor_edit_info).setEnabled(false);
+            exhibitManager.addLoadListener(loadListener);
+        }
 
         editorView.findViewById(R.id.exhibit_editor_edit_info)
                 .setOnClickListener(onEditButtonPress);
@@ -78,6 +81,46 @@ public class ExhibitEditorFragment extends Fragment {
         return editorView;
     }
 
+    @Override
+    public void onDestroyView() {
+        exhibitManager.removeLoadListener(loadListener);
+        super.onDestroyView();
+    }
+
+    // setup the metadata section of the editor
+    private void showExhibitInfo(View editorView) {
+        ((EditText) editorView.findViewById(R.id.exhibit_editor_title))
+                .setText(workingExhibit.getTitle());
+        ((EditText) editorView.findViewById(R.id.exhibit_editor_description))
+                .setText(workingExhibit.getDescription());
+        editorView.findViewById(R.id.exhibit_editor_edit_info).setEnabled(true);
+    }
+
+    // waits for the exhibit being edited to be loaded
+    private ExhibitManager.ExhibitLoadListener loadListener =
+            new ExhibitManager.ExhibitLoadListener() {
+                @Override
+                public void onExhibitInserted(int position) {
+                    Exhibit exhibit = exhibitManager.getExhibit(position);
+                    if (exhibit.getId() != exhibitId)
+                        return;
+
+                    workingExhibit = exhibit;
+                    exhibitManager.removeLoadListener(this);
+                    if (getView() != null)
+                        showExhibitInfo(getView());
+                    if (isResumed())
+                        updateActiveButton();
+                }
+
+                @Override
+                public void onExhibitsLoaded() {
+                    // deleted while the app wasn't running
+                    if (workingExhibit == null)
+                        getFragmentManager().popBackStack();
+                }
+            };
+
     @Override
     public void onResume() {
         super.onResume();
@@ -137,6 +180,11 @@ public class ExhibitEditorFragment extends Fragment {
     private void updateActiveButton() {
         Button makeActive = (Button) getView().findViewById(R.id.exhibit_editor_make_active);
         makeActive.setOnClickListener(makeActiveExhibit);
+        if (workingExhibit == null) {
+            makeActive.setEnabled(false);
+            return;
+        }
+        makeActive.setEnabled(true);
         Exhibit activeExhibit = exhibitManager.getActiveExhibit();
         if (workingExhibit.equals(activeExhibit))
             makeActive.setEnabled(false);
@@ -165,7 +213,7 @@ public class ExhibitEditorFragment extends Fragment {
                     Fragment contentEditor = new ExhibitContentFragment();
                     FragmentTransaction transaction = getFragmentManager().beginTransaction();
                     Bundle bundle = new Bundle();
-                    bundle.putLong("exhibit-id", workingExhibit.getId());
+                    bundle.putLong("exhibit-id", exhibitId);
                     bundle.putString("beacon-address", beaconAddress);
                     contentEditor.setArguments(bundle);
                     transaction.replace(R.id.fragment_container, contentEditor);
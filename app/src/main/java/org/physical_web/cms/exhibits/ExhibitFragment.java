@@ -60,10 +60,32 @@ public class ExhibitFragment extends Fragment {
 
         exhibitAdapter = new ExhibitAdapter();
         exhibitList.setAdapter(exhibitAdapter);
+        exhibitManager.addLoadListener(loadListener);
 
         return fragment;
     }
 
+    @Override
+    public void onDestroyView() {
+        exhibitManager.removeLoadListener(loadListener);
+        super.onDestroyView();
+    }
+
+    // shows exhibits as they are loaded in the background
+    private ExhibitManager.ExhibitLoadListener loadListener =
+            new ExhibitManager.ExhibitLoadListener() {
+                @Override
+                public void onExhibitInserted(int position) {
+                    exhibitAdapter.notifyItemInserted(position);
+                }
+
+                @Override
+                public void onExhibitsLoaded() {
+                    if (isResumed())
+                        updateActiveExhibitCard();
+                }
+            };
+
     @Override
     public void onResume() {
         super.onResume();
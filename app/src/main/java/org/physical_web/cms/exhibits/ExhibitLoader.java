@@ -0,0 +1,173 @@
+package org.physical_web.cms.exhibits;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the exhibits of an exhibits folder on a pool of threads, one per core unless set
+ * otherwise. Exhibit folders are ordered by name, and every loaded exhibit is reported with its
+ * index in that order, so results can be merged in the same order however loading interleaves.
+ * Folders that fail to load are logged and skipped.
+ */
+public class ExhibitLoader {
+    private static final String TAG = ExhibitLoader.class.getSimpleName();
+
+    private final File exhibitsFolder;
+    private final MediaBlobStore blobStore;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private String firstFolderName = null;
+
+    /**
+     * Told about exhibits as they are loaded, on the loading threads
+     */
+    public interface Listener {
+        /**
+         * @param index position of the exhibit's folder among all exhibit folders, ordered by
+         *              name
+         */
+        void onExhibitLoaded(Exhibit exhibit, int index);
+
+        /**
+         * Called once, after every folder was loaded or skipped
+         */
+        void onLoadFinished();
+    }
+
+    /**
+     * @param exhibitsFolder folder holding the exhibit folders
+     * @param blobStore      store holding the media of the exhibits
+     */
+    public ExhibitLoader(File exhibitsFolder, MediaBlobStore blobStore) {
+        this.exhibitsFolder = exhibitsFolder;
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Set the number of exhibits loaded at the same time
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Load the exhibit in the folder of the given name before any other, without changing its
+     * index. Does nothing if there is no such folder, or if null.
+     */
+    public void setFirstFolderName(String firstFolderName) {
+        this.firstFolderName = firstFolderName;
+    }
+
+    /**
+     * Returns the exhibit folders, ordered by name
+     */
+    public List<File> findExhibitFolders() {
+        List<File> exhibitFolders = new ArrayList<>();
+        File[] children = exhibitsFolder.listFiles();
+        if (children == null)
+            return exhibitFolders;
+
+        Arrays.sort(children);
+        for (File child : children) {
+            if (!child.isFile() && !child.getName().equals(MediaBlobStore.BLOB_FOLDER_NAME))
+                exhibitFolders.add(child);
+        }
+        return exhibitFolders;
+    }
+
+    /**
+     * Start loading every exhibit, returning right away
+     */
+    public void start(final Listener listener) {
+        final List<File> exhibitFolders = findExhibitFolders();
+        if (exhibitFolders.isEmpty()) {
+            listener.onLoadFinished();
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(exhibitFolders.size());
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(threadCount, exhibitFolders.size()));
+        for (final int index : loadingOrder(exhibitFolders)) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Exhibit exhibit = load(exhibitFolders.get(index));
+                        if (exhibit != null)
+                            listener.onExhibitLoaded(exhibit, index);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0)
+                            listener.onLoadFinished();
+                    }
+                }
+            });
+        }
+        // threads exit once the queued folders are loaded
+        pool.shutdown();
+    }
+
+    /**
+     * Load every exhibit, blocking until done
+     *
+     * @return the loaded exhibits, ordered by folder name
+     */
+    public List<Exhibit> loadAll() throws InterruptedException {
+        final Exhibit[] loaded = new Exhibit[findExhibitFolders().size()];
+        final CountDownLatch finished = new CountDownLatch(1);
+        start(new Listener() {
+            @Override
+            public void onExhibitLoaded(Exhibit exhibit, int index) {
+                synchronized (loaded) {
+                    if (index < loaded.length)
+                        loaded[index] = exhibit;
+                }
+            }
+
+            @Override
+            public void onLoadFinished() {
+                finished.countDown();
+            }
+        });
+        finished.await();
+
+        List<Exhibit> exhibits = new ArrayList<>();
+        synchronized (loaded) {
+            Collections.addAll(exhibits, loaded);
+        }
+        exhibits.removeAll(Collections.singleton(null));
+        return exhibits;
+    }
+
+    // indices of the folders in the order they should be loaded
+    private List<Integer> loadingOrder(List<File> exhibitFolders) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < exhibitFolders.size(); i++) {
+            if (exhibitFolders.get(i).getName().equals(firstFolderName))
+                order.add(0, i);
+            else
+                order.add(i);
+        }
+        return order;
+    }
+
+    // load a single exhibit, returning null if its folder isn't a valid exhibit
+    private Exhibit load(File exhibitFolder) {
+        try {
+            return Exhibit.loadFromFolder(exhibitFolder, blobStore);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Couldn't load exhibit from " + exhibitFolder.getPath() + ": " + e);
+            return null;
+        }
+    }
+}
@@ -1,36 +1,83 @@
 package org.physical_web.cms.exhibits;
 
 import android.content.Context;
-import android.util.JsonReader;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.physical_web.cms.beacons.Beacon;
+import org.physical_web.cms.beacons.BeaconDatabase;
 import org.physical_web.cms.sync.ContentSynchronizer;
+import org.physical_web.cms.sync.SyncStatusListener;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import util.MiscFile;
 
 /**
  * Manages the {@link Exhibit}s stored by the app. Get a copy with a call to {@link #getInstance()}.
  * The first time this class is called, {@link #setContext(Context)} *must* be also called.
+ * <p>
+ * Exhibits are loaded in the background by an {@link ExhibitLoader}, so setContext returns right
+ * away. The exhibit list grows on the main thread as exhibits are loaded, always in folder name
+ * order, and {@link ExhibitLoadListener}s are told about every insertion. Looking up an exhibit
+ * that isn't loaded yet waits for it, unless on the main thread, which is never held up.
+ * <p>
+ * Loaded exhibits are recorded in the {@link ExhibitCatalog}, which keeps track of the active
+ * exhibit.
  */
 public class ExhibitManager {
     private static final ExhibitManager INSTANCE = new ExhibitManager();
 
     private static final String TAG = ExhibitManager.class.getSimpleName();
     public static final String EXHIBIT_FOLDER_NAME = "exhibits";
+    static final String METADATA_FILE_NAME = "metadata.json";
 
     private ContentSynchronizer contentSynchronizer;
-    private List<Exhibit> exhibits;
+    // exhibits in display order, only changed on the main thread
+    private final List<Exhibit> exhibits = new CopyOnWriteArrayList<>();
+    // position of the folder of every listed exhibit among those loaded at startup
+    private final Map<Exhibit, Integer> loadOrder = new IdentityHashMap<>();
+    // every exhibit, as soon as it is loaded
+    private final Map<Long, Exhibit> exhibitsById = new ConcurrentHashMap<>();
+    private final List<ExhibitLoadListener> loadListeners = new CopyOnWriteArrayList<>();
+    // changes to every exhibit asked for before they were all loaded
+    private final List<Runnable> tasksAfterLoading = new ArrayList<>();
+    private Handler mainHandler;
+    private boolean loadFinished = false;
+    private volatile boolean listLoaded = false;
 
     private File exhibitsFolder = null;
+    private MediaBlobStore blobStore;
+    private ExhibitCatalog catalog;
+    // modification time of exhibits/metadata.json when the active exhibit was last read from it
+    private long activeExhibitReadTime = -1;
+    private boolean followingSyncs = false;
+
+    /**
+     * Told on the main thread about exhibits loaded in the background
+     */
+    public interface ExhibitLoadListener {
+        /**
+         * An exhibit was inserted into the list at the given position
+         */
+        void onExhibitInserted(int position);
+
+        /**
+         * Every exhibit stored is now in the list
+         */
+        void onExhibitsLoaded();
+    }
 
     private ExhibitManager() {
         contentSynchronizer = ContentSynchronizer.getInstance();
@@ -53,49 +100,199 @@ public class ExhibitManager {
             if (!exhibitsFolder.exists())
                 exhibitsFolder.mkdir();
 
-            exhibits = loadExhibitsFromDisk();
+            blobStore = new MediaBlobStore(exhibitsFolder);
+            mainHandler = new Handler(context.getMainLooper());
+            catalog = new ExhibitCatalog(BeaconDatabase.getDatabase(context));
+            loadExhibitsFromDisk();
         }
     }
 
-    // returns list of exhibits, as they are loaded storage on disk
-    private List<Exhibit> loadExhibitsFromDisk() {
-        List<Exhibit> result = new ArrayList<>();
+    /**
+     * Register a listener told about exhibits as they are loaded at startup
+     */
+    public void addLoadListener(ExhibitLoadListener listener) {
+        loadListeners.add(listener);
+    }
+
+    public void removeLoadListener(ExhibitLoadListener listener) {
+        loadListeners.remove(listener);
+    }
 
-        for (File child : exhibitsFolder.listFiles()) {
-            if (!child.isFile()) {
-                Exhibit foundExhibit = Exhibit.loadFromFolder(child);
-                result.add(foundExhibit);
+    /**
+     * Returns true once every stored exhibit is in the list
+     */
+    public boolean isLoaded() {
+        return listLoaded;
+    }
+
+    /**
+     * Follow the active exhibit brought in by syncs. Call once the {@link ContentSynchronizer}
+     * is initialized, later calls do nothing.
+     */
+    public synchronized void followSyncs() {
+        if (followingSyncs)
+            return;
+        followingSyncs = true;
+        contentSynchronizer.registerSyncStatusListener(new SyncStatusListener() {
+            @Override
+            public void syncStatusChanged(int status) {
+                // a pass that failed may still have downloaded exhibits/metadata.json
+                if (status == ContentSynchronizer.SYNC_COMPLETE
+                        || status == ContentSynchronizer.NO_SYNC_DRIVE_ERROR)
+                    refreshActiveExhibit();
             }
+        });
+    }
+
+    // start loading the exhibits stored on disk, the active one first as it is shown right away
+    private void loadExhibitsFromDisk() {
+        refreshActiveExhibit();
+        Long activeExhibitId = catalog.getActiveExhibitId();
+
+        ExhibitLoader loader = new ExhibitLoader(exhibitsFolder, blobStore);
+        loader.setFirstFolderName(activeExhibitId == null ? null
+                : String.valueOf(activeExhibitId));
+        loader.start(new ExhibitLoader.Listener() {
+            @Override
+            public void onExhibitLoaded(final Exhibit exhibit, final int index) {
+                exhibit.setCatalog(catalog);
+                catalog.refresh(exhibit.getId(), exhibit.getMetadata(),
+                        exhibit.getMetadataModified());
+                synchronized (exhibitsById) {
+                    exhibitsById.put(exhibit.getId(), exhibit);
+                    exhibitsById.notifyAll();
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        insertLoadedExhibit(exhibit, index);
+                    }
+                });
+            }
+
+            @Override
+            public void onLoadFinished() {
+                // forget exhibits deleted while the app wasn't running
+                catalog.retainOnly(exhibitsById.keySet());
+                final List<Runnable> waitingTasks;
+                synchronized (exhibitsById) {
+                    loadFinished = true;
+                    exhibitsById.notifyAll();
+                    waitingTasks = new ArrayList<>(tasksAfterLoading);
+                    tasksAfterLoading.clear();
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listLoaded = true;
+                        for (Runnable task : waitingTasks) {
+                            task.run();
+                        }
+                        for (ExhibitLoadListener listener : loadListeners) {
+                            listener.onExhibitsLoaded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // list an exhibit loaded at startup after those whose folders come before its own
+    private void insertLoadedExhibit(Exhibit exhibit, int index) {
+        if (!exhibitsById.containsKey(exhibit.getId()))
+            return; // removed meanwhile
+
+        int position = 0;
+        while (position < exhibits.size() && orderOf(exhibits.get(position)) < index) {
+            position++;
         }
+        exhibits.add(position, exhibit);
+        loadOrder.put(exhibit, index);
+        for (ExhibitLoadListener listener : loadListeners) {
+            listener.onExhibitInserted(position);
+        }
+    }
 
-        return result;
+    // exhibits created since startup come after every loaded one
+    private int orderOf(Exhibit exhibit) {
+        Integer index = loadOrder.get(exhibit);
+        return index == null ? Integer.MAX_VALUE : index;
+    }
+
+    // have the catalog follow the active exhibit stored in exhibits/metadata.json, which a sync
+    // may have replaced. The file is only read again once its modification time changed.
+    synchronized void refreshActiveExhibit() {
+        File metadataFile = new File(exhibitsFolder, METADATA_FILE_NAME);
+        long modifiedTime = metadataFile.lastModified();
+        if (modifiedTime == activeExhibitReadTime)
+            return;
+        activeExhibitReadTime = modifiedTime;
+        if (!metadataFile.exists())
+            return;
+
+        try {
+            // only read up to the value, not the beacon names after it
+            Long activeExhibitId = MetadataCodec.readLong(metadataFile, "active-exhibit");
+            if (activeExhibitId != null && !activeExhibitId.equals(catalog.getActiveExhibitId()))
+                catalog.setActiveExhibit(activeExhibitId);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Couldn't read active exhibit: " + e);
+        }
     }
 
     public Exhibit getActiveExhibit() {
+        Long activeExhibitId = catalog.getActiveExhibitId();
+        if (activeExhibitId == null) {
+            Log.e(TAG, "Couldn't get active exhibit: none set");
+            return null;
+        }
         try {
-            File metadataFile = new File(exhibitsFolder, "metadata.json");
-            JSONObject metadata = new JSONObject(MiscFile.readFile(metadataFile));
-            return this.getById(metadata.getLong("active-exhibit"));
-        } catch (IOException | JSONException | IllegalArgumentException e) {
+            return this.getById(activeExhibitId);
+        } catch (IllegalArgumentException e) {
             Log.e(TAG, "Couldn't get active exhibit: " + e);
             return null;
         }
     }
 
+    /**
+     * Returns the catalog of the stored exhibits
+     */
+    public ExhibitCatalog getCatalog() {
+        return catalog;
+    }
+
     public File getExhibitsFolder() {
         return exhibitsFolder;
     }
 
-    public void setActiveExhibit(Exhibit activeExhibit) {
+    /**
+     * Returns the store holding the media of every exhibit
+     */
+    public MediaBlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    // check if a path, relative to the synced folder, is exhibits/metadata.json or the
+    // metadata.json of an exhibit
+    static boolean isMetadataPath(String path) {
+        String prefix = EXHIBIT_FOLDER_NAME + "/";
+        if (!path.startsWith(prefix))
+            return false;
+
+        String exhibitPath = path.substring(prefix.length());
+        int separator = exhibitPath.indexOf('/');
+        return exhibitPath.substring(separator + 1).equals(METADATA_FILE_NAME);
+    }
+
+    public synchronized void setActiveExhibit(Exhibit activeExhibit) {
         try {
-            File metadataFile = new File(exhibitsFolder, "metadata.json");
-            if (!metadataFile.exists()) {
-                metadataFile.createNewFile();
-                MiscFile.writeToFile(metadataFile, "{}");
-            }
-            JSONObject metadata = new JSONObject(MiscFile.readFile(metadataFile));
+            File metadataFile = new File(exhibitsFolder, METADATA_FILE_NAME);
+            JSONObject metadata = metadataFile.exists()
+                    ? MetadataCodec.read(metadataFile) : new JSONObject();
             metadata.put("active-exhibit", activeExhibit.getId());
-            MiscFile.writeToFile(metadataFile, metadata.toString());
+            MetadataCodec.write(metadataFile, metadata);
+            catalog.setActiveExhibit(activeExhibit.getId());
+            activeExhibitReadTime = metadataFile.lastModified();
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Couldn't set active exhibit: " + e);
         }
@@ -115,17 +312,48 @@ public class ExhibitManager {
     }
 
     /**
-     * get an {@link Exhibit} by referring to its unique id
+     * get an {@link Exhibit} by referring to its unique id. An exhibit that isn't loaded yet is
+     * waited for, except on the main thread: there null is returned, and an
+     * {@link ExhibitLoadListener} tells when the exhibit is listed.
      *
      * @param id unique id of the exhibit
-     * @return exhibit with provided id
+     * @return exhibit with provided id, or null if it isn't loaded yet on the main thread
      */
     public Exhibit getById(long id) {
-        for (Exhibit searchSubject : exhibits) {
-            if (searchSubject.getId() == id)
-                return searchSubject;
+        Exhibit exhibit = exhibitsById.get(id);
+        if (exhibit != null)
+            return exhibit;
+
+        // it may not be loaded yet
+        synchronized (exhibitsById) {
+            if (!loadFinished && Looper.myLooper() == Looper.getMainLooper())
+                return null;
+            while (!loadFinished && !exhibitsById.containsKey(id)) {
+                try {
+                    exhibitsById.wait();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted: " + e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            exhibit = exhibitsById.get(id);
+        }
+        if (exhibit == null)
+            throw new IllegalArgumentException("No such exhibit exists");
+        return exhibit;
+    }
+
+    // run a task right away if every stored exhibit is loaded, otherwise on the main thread once
+    // they are all listed
+    private void whenLoaded(Runnable task) {
+        synchronized (exhibitsById) {
+            if (!loadFinished) {
+                tasksAfterLoading.add(task);
+                return;
+            }
         }
-        throw new IllegalArgumentException("No such exhibit exists");
+        task.run();
     }
 
     /**
@@ -134,7 +362,12 @@ public class ExhibitManager {
      * @param exhibitName name of exhibit
      */
     public void createNewExhibit(String exhibitName) {
-        Exhibit createdExhibit = Exhibit.initializeIntoFolder(exhibitName, exhibitsFolder);
+        Exhibit createdExhibit = Exhibit.initializeIntoFolder(exhibitName, exhibitsFolder,
+                blobStore);
+        createdExhibit.setCatalog(catalog);
+        catalog.record(createdExhibit.getId(), createdExhibit.getMetadata(),
+                createdExhibit.getMetadataModified());
+        exhibitsById.put(createdExhibit.getId(), createdExhibit);
         exhibits.add(createdExhibit);
     }
 
@@ -144,28 +377,43 @@ public class ExhibitManager {
      * @param exhibit to be deleted
      */
     public void removeExhibit(Exhibit exhibit) {
-        final File folderToDelete = exhibit.getExhibitFolder();
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                contentSynchronizer.deleteSyncedEquivalent(folderToDelete);
-            }
-        }).start();
-
+        exhibitsById.remove(exhibit.getId());
         exhibits.remove(exhibit);
+        loadOrder.remove(exhibit);
+        catalog.forget(exhibit.getId());
+        exhibit.discardMetadataChanges();
         util.MiscFile.deleteDir(exhibit.getExhibitFolder());
+        contentSynchronizer.recordDeletion(exhibit.getExhibitFolder());
+        for (String blobName : exhibit.getBlobReferences()) {
+            exhibit.releaseBlob(blobName);
+        }
     }
 
 
+    /**
+     * Write the metadata changes of every exhibit that weren't yet, returning once they are on
+     * disk. Call before the app may be stopped.
+     */
+    public void flushMetadata() {
+        for (Exhibit exhibit : exhibitsById.values()) {
+            exhibit.flushMetadata();
+        }
+    }
+
     /**
      * inform all exhibits that a new beacon has been added
      *
      * @param beacon new beacon that exhibits must now support
      */
-    public void configureNewBeacon(Beacon beacon) {
-        for (Exhibit exhibit : exhibits) {
-            exhibit.configureForAdditionalBeacon(beacon);
-        }
+    public void configureNewBeacon(final Beacon beacon) {
+        whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                for (Exhibit exhibit : exhibitsById.values()) {
+                    exhibit.configureForAdditionalBeacon(beacon);
+                }
+            }
+        });
     }
 
     /**
@@ -173,14 +421,25 @@ public class ExhibitManager {
      *
      * @param beacon removed beacon that exhibits may no longer support
      */
-    public void configureRemovedBeacon(Beacon beacon) {
-        for (Exhibit exhibit : exhibits) {
-            exhibit.configureForRemovedBeacon(beacon);
-        }
+    public void configureRemovedBeacon(final Beacon beacon) {
+        whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                // the catalog lags behind changes not written yet, so every exhibit is asked
+                for (Exhibit exhibit : exhibitsById.values()) {
+                    try {
+                        exhibit.configureForRemovedBeacon(beacon);
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "Exhibit " + exhibit.getId() + " had nothing for beacon "
+                                + beacon.address + ": " + e);
+                    }
+                }
+            }
+        });
     }
 
     /**
-     * returns the number of exhibits loaded by this class
+     * returns the number of exhibits listed so far by this class
      *
      * @return number of exhibits
      */
@@ -0,0 +1,259 @@
+package org.physical_web.cms.exhibits;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.physical_web.cms.sync.SyncMerger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges concurrent edits of exhibits/metadata.json and of exhibit metadata.json files, so two
+ * devices curating different beacons of the same exhibit both keep their work.
+ * <p>
+ * Values only one side changed are taken from that side. Objects changed on both sides are
+ * merged key by key. The "beacons" list is merged per beacon address, and "contents" lists are
+ * merged as ordered sets: contents added on either side are kept, contents removed on either
+ * side are dropped, and the order comes from the side that reordered. Only a value both sides
+ * changed differently is a conflict, which the preferred side wins.
+ */
+public class ExhibitMetadataMerger implements SyncMerger {
+    private static final String TAG = ExhibitMetadataMerger.class.getSimpleName();
+
+    @Override
+    public boolean canMerge(String path) {
+        return ExhibitManager.isMetadataPath(path);
+    }
+
+    @Override
+    public boolean merge(File base, File local, File remote, File merged, boolean preferLocal)
+            throws IOException {
+        try {
+            JSONObject result = mergeObjects(readMetadata(base), readMetadata(local),
+                    readMetadata(remote), preferLocal);
+            MetadataCodec.write(merged, result);
+            return true;
+        } catch (JSONException e) {
+            Log.w(TAG, "Couldn't merge " + local.getPath() + ": " + e);
+            return false;
+        }
+    }
+
+    private static JSONObject readMetadata(File metadataFile) throws IOException, JSONException {
+        return MetadataCodec.read(metadataFile);
+    }
+
+    // merge two objects key by key. Keys keep the local order, remote additions come last.
+    private static JSONObject mergeObjects(JSONObject base, JSONObject local, JSONObject remote,
+                                           boolean preferLocal) throws JSONException {
+        Set<String> keys = new LinkedHashSet<>();
+        addKeys(local, keys);
+        addKeys(remote, keys);
+
+        JSONObject result = new JSONObject();
+        for (String key : keys) {
+            Object value = mergeValues(key, base.opt(key), local.opt(key), remote.opt(key),
+                    preferLocal);
+            if (value != null)
+                result.put(key, value);
+        }
+        return result;
+    }
+
+    // merge one value, null meaning absent: removed, or never there
+    private static Object mergeValues(String key, Object base, Object local, Object remote,
+                                      boolean preferLocal) throws JSONException {
+        if (jsonEquals(local, remote))
+            return local;
+        if (jsonEquals(local, base))
+            return remote;
+        if (jsonEquals(remote, base))
+            return local;
+
+        // both sides changed the value, differently
+        if (local instanceof JSONObject && remote instanceof JSONObject) {
+            JSONObject baseObject = base instanceof JSONObject ? (JSONObject) base
+                    : new JSONObject();
+            return mergeObjects(baseObject, (JSONObject) local, (JSONObject) remote,
+                    preferLocal);
+        }
+        if (local instanceof JSONArray && remote instanceof JSONArray) {
+            JSONArray baseArray = base instanceof JSONArray ? (JSONArray) base : new JSONArray();
+            if ("beacons".equals(key))
+                return mergeBeacons(baseArray, (JSONArray) local, (JSONArray) remote,
+                        preferLocal);
+            if ("contents".equals(key))
+                return mergeContents(baseArray, (JSONArray) local, (JSONArray) remote,
+                        preferLocal);
+        }
+
+        Log.i(TAG, "Conflicting edits of " + key + ", keeping the "
+                + (preferLocal ? "local" : "remote") + " one");
+        return preferLocal ? local : remote;
+    }
+
+    // merge lists of beacons, matching them by address
+    private static JSONArray mergeBeacons(JSONArray base, JSONArray local, JSONArray remote,
+                                          boolean preferLocal) throws JSONException {
+        Map<String, JSONObject> baseBeacons = beaconsByAddress(base);
+        Map<String, JSONObject> localBeacons = beaconsByAddress(local);
+        Map<String, JSONObject> remoteBeacons = beaconsByAddress(remote);
+
+        // a beacon removed on one side and edited on the other is a conflict like any other value
+        Map<String, Object> mergedBeacons = new LinkedHashMap<>();
+        Set<String> addresses = new LinkedHashSet<>(localBeacons.keySet());
+        addresses.addAll(remoteBeacons.keySet());
+        for (String address : addresses) {
+            Object beacon = mergeValues(null, baseBeacons.get(address),
+                    localBeacons.get(address), remoteBeacons.get(address), preferLocal);
+            if (beacon != null)
+                mergedBeacons.put(address, beacon);
+        }
+
+        JSONArray result = new JSONArray();
+        for (String address : mergeOrder(new ArrayList<>(baseBeacons.keySet()),
+                new ArrayList<>(localBeacons.keySet()), new ArrayList<>(remoteBeacons.keySet()),
+                mergedBeacons.keySet(), preferLocal)) {
+            result.put(mergedBeacons.get(address));
+        }
+        return result;
+    }
+
+    // merge lists of content file names as ordered sets
+    private static JSONArray mergeContents(JSONArray base, JSONArray local, JSONArray remote,
+                                           boolean preferLocal) throws JSONException {
+        List<String> baseContents = strings(base);
+        List<String> localContents = strings(local);
+        List<String> remoteContents = strings(remote);
+
+        // kept if both sides have it, or if one side added it
+        Set<String> members = new HashSet<>();
+        for (String content : localContents) {
+            if (remoteContents.contains(content) || !baseContents.contains(content))
+                members.add(content);
+        }
+        for (String content : remoteContents) {
+            if (!baseContents.contains(content))
+                members.add(content);
+        }
+
+        return new JSONArray(mergeOrder(baseContents, localContents, remoteContents, members,
+                preferLocal));
+    }
+
+    // order the given members: the side that reordered what it shares with base gives the
+    // order, and what only the other side has is inserted after the element it followed there
+    private static List<String> mergeOrder(List<String> base, List<String> local,
+                                           List<String> remote, Set<String> members,
+                                           boolean preferLocal) {
+        boolean localReordered = reordered(base, local);
+        boolean remoteReordered = reordered(base, remote);
+        boolean localOrder = localReordered == remoteReordered ? preferLocal : localReordered;
+        List<String> source = localOrder ? local : remote;
+        List<String> other = localOrder ? remote : local;
+
+        List<String> result = new ArrayList<>();
+        for (String element : source) {
+            if (members.contains(element))
+                result.add(element);
+        }
+
+        for (int i = 0; i < other.size(); i++) {
+            String element = other.get(i);
+            if (!members.contains(element) || result.contains(element))
+                continue;
+
+            int position = 0;
+            for (int j = i - 1; j >= 0; j--) {
+                int predecessor = result.indexOf(other.get(j));
+                if (predecessor != -1) {
+                    position = predecessor + 1;
+                    break;
+                }
+            }
+            result.add(position, element);
+        }
+        return result;
+    }
+
+    // check if a side changed the relative order of the elements it shares with base
+    private static boolean reordered(List<String> base, List<String> side) {
+        List<String> sideOrder = new ArrayList<>(side);
+        sideOrder.retainAll(base);
+        List<String> baseOrder = new ArrayList<>(base);
+        baseOrder.retainAll(side);
+        return !sideOrder.equals(baseOrder);
+    }
+
+    private static Map<String, JSONObject> beaconsByAddress(JSONArray beacons)
+            throws JSONException {
+        Map<String, JSONObject> beaconsByAddress = new LinkedHashMap<>();
+        for (int i = 0; i < beacons.length(); i++) {
+            JSONObject beacon = beacons.getJSONObject(i);
+            beaconsByAddress.put(beacon.getString("address"), beacon);
+        }
+        return beaconsByAddress;
+    }
+
+    private static List<String> strings(JSONArray array) throws JSONException {
+        List<String> strings = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            strings.add(array.getString(i));
+        }
+        return strings;
+    }
+
+    private static void addKeys(JSONObject object, Set<String> keys) {
+        Iterator<String> objectKeys = object.keys();
+        while (objectKeys.hasNext()) {
+            keys.add(objectKeys.next());
+        }
+    }
+
+    // compare JSON values by contents, ignoring the order of object keys
+    private static boolean jsonEquals(Object first, Object second) {
+        if (first == null || second == null)
+            return first == second;
+
+        if (first instanceof JSONObject && second instanceof JSONObject) {
+            JSONObject firstObject = (JSONObject) first;
+            JSONObject secondObject = (JSONObject) second;
+            if (firstObject.length() != secondObject.length())
+                return false;
+            Iterator<String> keys = firstObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!jsonEquals(firstObject.opt(key), secondObject.opt(key)))
+                    return false;
+            }
+            return true;
+        }
+
+        if (first instanceof JSONArray && second instanceof JSONArray) {
+            JSONArray firstArray = (JSONArray) first;
+            JSONArray secondArray = (JSONArray) second;
+            if (firstArray.length() != secondArray.length())
+                return false;
+            for (int i = 0; i < firstArray.length(); i++) {
+                if (!jsonEquals(firstArray.opt(i), secondArray.opt(i)))
+                    return false;
+            }
+            return true;
+        }
+
+        if (first instanceof Number && second instanceof Number)
+            return ((Number) first).doubleValue() == ((Number) second).doubleValue();
+        return first.equals(second);
+    }
+}
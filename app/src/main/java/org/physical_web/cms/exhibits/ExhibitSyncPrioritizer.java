@@ -0,0 +1,84 @@
+package org.physical_web.cms.exhibits;
+
+import org.physical_web.cms.sync.SyncLane;
+import org.physical_web.cms.sync.SyncPrioritizer;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Syncs exhibits in the order other devices need them: the metadata files first, so the active
+ * exhibit and the exhibit list are consistent everywhere, then the contents of the active
+ * exhibit, including the {@link MediaBlobStore} blobs it refers to, then everything else.
+ */
+public class ExhibitSyncPrioritizer implements SyncPrioritizer {
+    private static final String EXHIBITS_PREFIX = ExhibitManager.EXHIBIT_FOLDER_NAME + "/";
+    private static final String BLOBS_PREFIX =
+            EXHIBITS_PREFIX + MediaBlobStore.BLOB_FOLDER_NAME + "/";
+
+    private final ExhibitManager exhibitManager;
+
+    // folder name of the active exhibit, as of the version of exhibits/metadata.json it was
+    // read from
+    private String activeExhibitFolder;
+    // blobs the active exhibit refers to
+    private Set<String> activeExhibitBlobs = Collections.emptySet();
+    private long activeExhibitReadTime = -1;
+    private long activeExhibitReadLength = -1;
+
+    /**
+     * @param exhibitManager already given its context
+     */
+    public ExhibitSyncPrioritizer(ExhibitManager exhibitManager) {
+        this.exhibitManager = exhibitManager;
+    }
+
+    @Override
+    public SyncLane laneFor(String path) {
+        if (!path.startsWith(EXHIBITS_PREFIX))
+            return SyncLane.BULK;
+        if (ExhibitManager.isMetadataPath(path))
+            return SyncLane.METADATA;
+
+        if (path.startsWith(BLOBS_PREFIX)) {
+            return isActiveExhibitBlob(path.substring(BLOBS_PREFIX.length()))
+                    ? SyncLane.ACTIVE_CONTENT : SyncLane.BULK;
+        }
+
+        String exhibitPath = path.substring(EXHIBITS_PREFIX.length());
+        int separator = exhibitPath.indexOf('/');
+        String activeFolder = activeExhibitFolder();
+        if (separator != -1 && exhibitPath.substring(0, separator).equals(activeFolder))
+            return SyncLane.ACTIVE_CONTENT;
+        return SyncLane.BULK;
+    }
+
+    // returns the folder name of the active exhibit, or null if there is none. Only reads the
+    // exhibits metadata again once it changed, as this is called for every transfer.
+    private synchronized String activeExhibitFolder() {
+        File metadataFile = new File(exhibitManager.getExhibitsFolder(),
+                ExhibitManager.METADATA_FILE_NAME);
+        long modifiedTime = metadataFile.lastModified();
+        long length = metadataFile.length();
+        if (modifiedTime == activeExhibitReadTime && length == activeExhibitReadLength)
+            return activeExhibitFolder;
+
+        exhibitManager.refreshActiveExhibit();
+        Exhibit activeExhibit = metadataFile.exists() ? exhibitManager.getActiveExhibit() : null;
+        activeExhibitFolder = activeExhibit == null ? null
+                : activeExhibit.getExhibitFolder().getName();
+        activeExhibitBlobs = activeExhibit == null ? Collections.<String>emptySet()
+                : new HashSet<>(activeExhibit.getBlobReferences());
+        activeExhibitReadTime = modifiedTime;
+        activeExhibitReadLength = length;
+        return activeExhibitFolder;
+    }
+
+    // check if the active exhibit refers to a blob
+    private synchronized boolean isActiveExhibitBlob(String blobName) {
+        activeExhibitFolder();
+        return activeExhibitBlobs.contains(blobName);
+    }
+}
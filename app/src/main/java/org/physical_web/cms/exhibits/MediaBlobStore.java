@@ -0,0 +1,218 @@
+package org.physical_web.cms.exhibits;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores exhibit media once, however many beacons of however many exhibits show it. Media files
+ * are kept in exhibits/blobs, named after the SHA-256 of their contents, and exhibit metadata
+ * refers to them by that name: every beacon entry maps its content names to blob names in a
+ * "blobs" object. Storage and sync then cost one copy per distinct file.
+ * <p>
+ * Blobs are reference counted from the metadata of the loaded exhibits. A blob is only deleted
+ * once no exhibit metadata on disk refers to it anymore, which includes metadata synced from
+ * other devices.
+ * <p>
+ * All methods are thread safe.
+ */
+public class MediaBlobStore {
+    private static final String TAG = MediaBlobStore.class.getSimpleName();
+    public static final String BLOB_FOLDER_NAME = "blobs";
+    static final String BLOBS_KEY = "blobs";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File exhibitsFolder;
+    private final File blobFolder;
+    private final Map<String, Integer> referenceCounts = new HashMap<>();
+
+    /**
+     * @param exhibitsFolder folder holding the exhibit folders, blobs are kept inside it
+     */
+    public MediaBlobStore(File exhibitsFolder) {
+        this.exhibitsFolder = exhibitsFolder;
+        this.blobFolder = new File(exhibitsFolder, BLOB_FOLDER_NAME);
+    }
+
+    /**
+     * Returns the file holding a blob, which may not be there yet if it is still being synced
+     */
+    public File getBlob(String blobName) {
+        return new File(blobFolder, blobName);
+    }
+
+    /**
+     * Store the given contents, unless a blob with the same contents is already stored. The
+     * stream is read to its end, but not closed. The blob is returned with a reference taken on
+     * behalf of the metadata about to refer to it, so a release running meanwhile can't delete
+     * it: call {@link #release(String)} if that metadata isn't written.
+     *
+     * @param fileName      original name of the contents, whose extension the blob keeps so its
+     *                      type can be told
+     * @param scratchFolder folder on the same filesystem to write the contents to while hashing
+     * @return name of the blob
+     */
+    public String add(InputStream contents, String fileName, File scratchFolder)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        File scratchFile = File.createTempFile("blob", ".part", scratchFolder);
+        try {
+            OutputStream outputStream = new FileOutputStream(scratchFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = contents.read(buffer)) != -1) {
+                    digest.update(buffer, 0, len);
+                    outputStream.write(buffer, 0, len);
+                }
+            } finally {
+                outputStream.close();
+            }
+
+            String blobName = toHex(digest.digest()) + extension(fileName);
+            synchronized (this) {
+                File blob = getBlob(blobName);
+                if (blob.isFile()) {
+                    Log.d(TAG, "Already storing " + fileName + " as " + blobName);
+                } else {
+                    if (!blobFolder.isDirectory() && !blobFolder.mkdirs())
+                        throw new IOException("Couldn't create blob folder");
+                    if (!scratchFile.renameTo(blob))
+                        throw new IOException("Couldn't move " + fileName + " into blob folder");
+                }
+                acquire(blobName);
+            }
+            return blobName;
+        } finally {
+            scratchFile.delete();
+        }
+    }
+
+    /**
+     * Record a reference to a blob from exhibit metadata, other than one taken by
+     * {@link #add(InputStream, String, File)}
+     */
+    public synchronized void acquire(String blobName) {
+        Integer count = referenceCounts.get(blobName);
+        referenceCounts.put(blobName, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Record that a reference to a blob was removed from exhibit metadata, already written to
+     * disk. Deletes the blob if nothing refers to it anymore.
+     *
+     * @return true if the blob was deleted
+     */
+    public boolean release(String blobName) {
+        synchronized (this) {
+            Integer count = referenceCounts.get(blobName);
+            if (count != null && count > 1) {
+                referenceCounts.put(blobName, count - 1);
+                return false;
+            }
+            referenceCounts.remove(blobName);
+        }
+
+        // metadata synced since the exhibits were loaded may still refer to it. Read without
+        // holding the lock, so other blobs can be acquired meanwhile.
+        if (isReferencedOnDisk(blobName)) {
+            Log.d(TAG, "Keeping " + blobName + ", still referred to by synced metadata");
+            return false;
+        }
+        synchronized (this) {
+            // acquired again while the metadata was read
+            if (referenceCounts.containsKey(blobName))
+                return false;
+            return getBlob(blobName).delete();
+        }
+    }
+
+    /**
+     * Returns the number of references to a blob from the metadata of loaded exhibits
+     */
+    public synchronized int getReferenceCount(String blobName) {
+        Integer count = referenceCounts.get(blobName);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the names of the blobs a beacon entry of exhibit metadata refers to, once per
+     * reference
+     */
+    static List<String> blobReferences(JSONObject beaconMetadata) {
+        List<String> blobNames = new ArrayList<>();
+        JSONObject blobs = beaconMetadata.optJSONObject(BLOBS_KEY);
+        if (blobs == null)
+            return blobNames;
+
+        Iterator<String> contentNames = blobs.keys();
+        while (contentNames.hasNext()) {
+            String blobName = blobs.optString(contentNames.next(), null);
+            if (blobName != null)
+                blobNames.add(blobName);
+        }
+        return blobNames;
+    }
+
+    // check the metadata files of every exhibit for a reference to the blob
+    private boolean isReferencedOnDisk(String blobName) {
+        File[] exhibitFolders = exhibitsFolder.listFiles();
+        if (exhibitFolders == null)
+            return false;
+
+        for (File exhibitFolder : exhibitFolders) {
+            File metadataFile = new File(exhibitFolder, ExhibitManager.METADATA_FILE_NAME);
+            if (!exhibitFolder.isDirectory() || !metadataFile.isFile())
+                continue;
+
+            try {
+                // streamed, as every exhibit's metadata is read for every blob released
+                if (MetadataCodec.refersToBlob(metadataFile, blobName))
+                    return true;
+            } catch (IOException | JSONException e) {
+                // unreadable metadata may well refer to it
+                Log.w(TAG, "Couldn't read " + metadataFile.getPath() + ": " + e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(dot).toLowerCase() : "";
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to implement SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
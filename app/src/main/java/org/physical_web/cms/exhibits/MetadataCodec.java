@@ -0,0 +1,246 @@
+package org.physical_web.cms.exhibits;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import util.MiscFile;
+
+/**
+ * Reads and writes metadata files as UTF-8 JSON, streaming between the file and the org.json
+ * trees the exhibits work with, so no copy of a whole file is ever held as a string. Lookups
+ * needing a single value stop reading once they found it, and hold no more than the value.
+ * <p>
+ * Content that isn't valid JSON is reported as a {@link JSONException}, as when parsing with
+ * org.json, while failing to read or write is an {@link IOException}.
+ */
+public class MetadataCodec {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String BEACONS_KEY = "beacons";
+
+    /**
+     * Read a metadata file into a tree
+     */
+    public static JSONObject read(File metadataFile) throws IOException, JSONException {
+        JsonReader reader = openReader(metadataFile);
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT)
+                throw new JSONException("Metadata isn't an object: " + metadataFile.getPath());
+            return readObject(reader);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException("Malformed metadata " + metadataFile.getPath() + ": " + e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Overwrite a metadata file with a tree, all at once, so it is never read half written
+     */
+    public static void write(File metadataFile, JSONObject metadata) throws IOException {
+        MiscFile.writeToFileAtomically(metadataFile, encode(metadata));
+    }
+
+    /**
+     * Returns a tree as the contents of a metadata file
+     */
+    public static byte[] encode(JSONObject metadata) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            encode(metadata, outputStream);
+        } catch (IOException e) {
+            // nothing to fail writing into memory
+            throw new IllegalStateException("Couldn't encode metadata: " + e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Read a top level number of a metadata file
+     *
+     * @return the number, or null if the file has no such value
+     */
+    public static Long readLong(File metadataFile, String name)
+            throws IOException, JSONException {
+        JsonReader reader = openReader(metadataFile);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(name) && reader.peek() == JsonToken.NUMBER)
+                    return reader.nextLong();
+                reader.skipValue();
+            }
+            return null;
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException("Malformed metadata " + metadataFile.getPath() + ": " + e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns true if any beacon entry of an exhibit's metadata file stores a content in the
+     * given {@link MediaBlobStore} blob
+     */
+    public static boolean refersToBlob(File metadataFile, String blobName)
+            throws IOException, JSONException {
+        JsonReader reader = openReader(metadataFile);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(BEACONS_KEY) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (beaconRefersToBlob(reader, blobName))
+                            return true;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return false;
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new JSONException("Malformed metadata " + metadataFile.getPath() + ": " + e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // read a beacon entry, checking the blobs its contents are stored in
+    private static boolean beaconRefersToBlob(JsonReader reader, String blobName)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return false;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(MediaBlobStore.BLOBS_KEY)
+                    && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    if (reader.peek() != JsonToken.STRING)
+                        reader.skipValue();
+                    else if (reader.nextString().equals(blobName))
+                        return true;
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return false;
+    }
+
+    private static JsonReader openReader(File metadataFile) throws IOException {
+        return new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(metadataFile), UTF_8)));
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                return readNumber(reader.nextString());
+            default:
+                return reader.nextString();
+        }
+    }
+
+    // ids are longs too big for a double to hold exactly
+    private static Number readNumber(String literal) {
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(literal);
+        }
+    }
+
+    private static void encode(JSONObject metadata, OutputStream outputStream)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(outputStream, UTF_8)));
+        writeValue(writer, metadata);
+        writer.flush();
+    }
+
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> names = object.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                writer.name(name);
+                writeValue(writer, object.opt(name));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(writer, array.opt(i));
+            }
+            writer.endArray();
+        } else if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof Boolean) {
+            writer.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            // strings, and objects org.json would write as their string
+            writer.value(value.toString());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.physical_web.cms.exhibits;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import util.MiscFile;
+
+/**
+ * Writes an exhibit's metadata file behind the changes made to it. Changes only mark the file
+ * dirty: it is serialized and written once no change was made for a short window, or when
+ * {@link #flush()} is called, so a burst of changes costs a single write and a single sync.
+ * Every write goes through a temporary file that is synced to disk before being renamed over
+ * the metadata file, which is never left half written.
+ */
+class MetadataWriter {
+    private static final String TAG = MetadataWriter.class.getSimpleName();
+    static final long COALESCE_WINDOW_MILLIS = 500;
+
+    // shared by the writers of all exhibits
+    private static final ScheduledExecutorService WRITE_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final File target;
+    private final Source source;
+    // held while writing, so a flush returns only once the file is on disk
+    private final Object writeLock = new Object();
+    private ScheduledFuture<?> pendingWrite = null;
+    private boolean dirty = false;
+    private int writeCount = 0;
+
+    /**
+     * Provides what is written, and is told once it is
+     */
+    interface Source {
+        /**
+         * Returns the current contents of the file, called on the thread writing them
+         */
+        byte[] serialize();
+
+        /**
+         * Called after every write
+         */
+        void onWritten(File target);
+    }
+
+    MetadataWriter(File target, Source source) {
+        this.target = target;
+        this.source = source;
+    }
+
+    /**
+     * Write the file once no other change is made for {@link #COALESCE_WINDOW_MILLIS}
+     */
+    synchronized void markDirty() {
+        dirty = true;
+        if (pendingWrite != null)
+            pendingWrite.cancel(false);
+        pendingWrite = WRITE_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MetadataWriter.this) {
+                    pendingWrite = null;
+                }
+                write();
+            }
+        }, COALESCE_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the pending changes now, returning once they are on disk
+     */
+    void flush() {
+        synchronized (this) {
+            if (pendingWrite != null) {
+                pendingWrite.cancel(false);
+                pendingWrite = null;
+            }
+        }
+        write();
+    }
+
+    /**
+     * Write the pending changes, then run a task, both on the thread writing the files rather
+     * than the calling one
+     */
+    void flushThen(final Runnable task) {
+        WRITE_SCHEDULER.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task after writing " + target.getPath() + " failed: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the pending changes, as the file is about to be deleted
+     */
+    synchronized void discard() {
+        dirty = false;
+        if (pendingWrite != null) {
+            pendingWrite.cancel(false);
+            pendingWrite = null;
+        }
+    }
+
+    /**
+     * Returns the number of times the file was written
+     */
+    synchronized int getWriteCount() {
+        return writeCount;
+    }
+
+    private void write() {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (!dirty)
+                    return;
+                dirty = false;
+            }
+
+            try {
+                MiscFile.writeToFileAtomically(target, source.serialize());
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't write " + target.getPath() + ": " + e);
+                // kept dirty, so the next change or flush tries again
+                synchronized (this) {
+                    dirty = true;
+                }
+                return;
+            }
+            synchronized (this) {
+                writeCount++;
+            }
+            source.onWritten(target);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.physical_web.cms.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket capping the combined rate of the streams it throttles. Up to one second worth of
+ * unused bandwidth is saved up, so short bursts go through at full speed.
+ * <p>
+ * All methods are thread safe.
+ */
+class BandwidthLimiter {
+    private final long bytesPerSecond;
+    // may go negative, the bytes read beyond the budget are paid for by waiting
+    private long availableBytes;
+    private long lastRefill;
+
+    BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond < 1)
+            throw new IllegalArgumentException("Bandwidth limit must be positive");
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.availableBytes = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns a stream reading from the given one, at most as fast as this limiter allows. Closing
+     * it closes the given stream.
+     */
+    InputStream throttle(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value != -1)
+                    acquire(1);
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int len = super.read(buffer, offset, count);
+                if (len > 0)
+                    acquire(len);
+                return len;
+            }
+        };
+    }
+
+    /**
+     * Take bytes from the bucket, blocking until the rate allows them. Threads waiting on the
+     * same limiter are served one after the other.
+     */
+    synchronized void acquire(long bytes) throws InterruptedIOException {
+        long now = System.nanoTime();
+        availableBytes = Math.min(bytesPerSecond,
+                availableBytes + (now - lastRefill) * bytesPerSecond / 1000000000L);
+        lastRefill = now;
+        availableBytes -= bytes;
+        if (availableBytes >= 0)
+            return;
+
+        try {
+            Thread.sleep(-availableBytes * 1000 / bytesPerSecond);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.physical_web.cms.sync;
+
+/**
+ * A piece of a file, as cut by the content-defined chunking of delta uploads, identified by the
+ * digest of its contents. See {@link DeltaUploadBackend}.
+ */
+public class ContentChunk {
+    private final long offset;
+    private final int length;
+    private final String hash;
+
+    public ContentChunk(long offset, int length, String hash) {
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the position of the chunk in the file it was cut from
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the MD5 digest of the chunk contents, in lowercase hexadecimal
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return hash + " (" + length + " bytes at " + offset + ")";
+    }
+}
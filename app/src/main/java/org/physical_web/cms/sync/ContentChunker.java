@@ -0,0 +1,138 @@
+package org.physical_web.cms.sync;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits files into content-defined chunks for {@link DeltaUploadBackend}. Cut points are chosen
+ * by a rolling hash of the last bytes read rather than by position, so inserting or deleting
+ * bytes only changes the chunks around the edit, and the rest of the file keeps the same chunks.
+ * <p>
+ * This is the "gear" hash of FastCDC: a cut is made once the top bits of the hash are all zero,
+ * with chunks between {@link #MIN_CHUNK_SIZE} and {@link #MAX_CHUNK_SIZE} bytes. The gear table
+ * comes from a fixed seed, so every device and backend cut a file the same way.
+ */
+final class ContentChunker {
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+    // 16 bits, which makes chunks about MIN_CHUNK_SIZE + 64 KB long on average
+    private static final long CUT_MASK = 0xffffL << 48;
+    private static final long GEAR_SEED = 0x5eed;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private ContentChunker() {
+    }
+
+    /**
+     * Read a whole file and return its chunks, in order
+     *
+     * @param fileDigest if not null, updated with the whole file contents
+     */
+    static List<ContentChunk> split(File file, MessageDigest fileDigest) throws IOException {
+        List<ContentChunk> chunks = new ArrayList<>();
+        MessageDigest chunkDigest = ContentHash.newDigest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long chunkOffset = 0;
+            int chunkLength = 0;
+            long hash = 0;
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                if (fileDigest != null)
+                    fileDigest.update(buffer, 0, len);
+
+                // start of the bytes in buffer that aren't digested yet
+                int undigested = 0;
+                for (int i = 0; i < len; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    chunkLength++;
+                    if (chunkLength >= MAX_CHUNK_SIZE
+                            || (chunkLength >= MIN_CHUNK_SIZE && (hash & CUT_MASK) == 0)) {
+                        chunkDigest.update(buffer, undigested, i + 1 - undigested);
+                        chunks.add(new ContentChunk(chunkOffset, chunkLength,
+                                ContentHash.toHex(chunkDigest.digest())));
+                        chunkOffset += chunkLength;
+                        chunkLength = 0;
+                        hash = 0;
+                        undigested = i + 1;
+                    }
+                }
+                chunkDigest.update(buffer, undigested, len - undigested);
+            }
+
+            if (chunkLength > 0) {
+                chunks.add(new ContentChunk(chunkOffset, chunkLength,
+                        ContentHash.toHex(chunkDigest.digest())));
+            }
+        } finally {
+            inputStream.close();
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns a stream of the contents of the given chunks of a file, one after the other. The
+     * caller must close the stream.
+     */
+    static InputStream openChunks(File file, List<ContentChunk> chunks) throws IOException {
+        return new ChunkInputStream(new RandomAccessFile(file, "r"), chunks.iterator());
+    }
+
+    private static class ChunkInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final Iterator<ContentChunk> chunks;
+        // bytes left to read in the current chunk
+        private long remaining = 0;
+
+        ChunkInputStream(RandomAccessFile file, Iterator<ContentChunk> chunks) {
+            this.file = file;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            while (remaining == 0) {
+                if (!chunks.hasNext())
+                    return -1;
+                ContentChunk chunk = chunks.next();
+                file.seek(chunk.getOffset());
+                remaining = chunk.getLength();
+            }
+
+            int len = file.read(buffer, offset, (int) Math.min(count, remaining));
+            if (len == -1)
+                throw new EOFException("File shorter than its chunks");
+            remaining -= len;
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.physical_web.cms.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 digests of file contents, in the lowercase hexadecimal form Google Drive reports them in.
+ * Used to tell apart files whose contents differ from files whose timestamps merely drifted.
+ */
+final class ContentHash {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to implement MD5
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * Read a whole file and return the digest of its contents
+     */
+    static String of(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,28 @@
+package org.physical_web.cms.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A {@link SyncBackend} that can rewrite a remote file from the chunks it already stores, so an
+ * upload of a slightly edited file only sends the chunks that changed. Files are cut into
+ * content-defined chunks, which an insertion or deletion only changes around the edit.
+ * <p>
+ * The backend keeps the chunk list of every file alongside it, cut with the same parameters as
+ * the uploader: see {@link ContentChunker}.
+ */
+public interface DeltaUploadBackend extends SyncBackend {
+    /**
+     * Returns the chunks a remote file is made of, in order, or null if they aren't known
+     */
+    List<ContentChunk> getChunks(RemoteFile file) throws IOException;
+
+    /**
+     * Replaces the contents of a remote file with the given chunks, in order. Chunks whose hash
+     * the remote file already holds are copied from it, the contents of every other chunk are
+     * read from newChunkContents, one after the other.
+     */
+    RemoteFile patchFile(RemoteFile target, long modifiedTime, List<ContentChunk> chunks,
+                         InputStream newChunkContents) throws IOException;
+}
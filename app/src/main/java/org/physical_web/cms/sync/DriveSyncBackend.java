@@ -0,0 +1,201 @@
+package org.physical_web.cms.sync;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.Drive;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataBuffer;
+import com.google.android.gms.drive.MetadataChangeSet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * {@link SyncBackend} that stores content in the app folder of the user's Google Drive. The
+ * provided client must be connected before any method is called.
+ */
+public class DriveSyncBackend implements SyncBackend {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private GoogleApiClient apiClient;
+
+    public DriveSyncBackend(GoogleApiClient apiClient) {
+        this.apiClient = apiClient;
+    }
+
+    @Override
+    public void prepare() {
+        // this line is required to fix a Google Services bug where remote data isn't
+        // visible when app is reinstalled, possibly due to bad cache
+        Drive.DriveApi.requestSync(apiClient).await();
+    }
+
+    @Override
+    public RemoteFile getRootFolder() {
+        DriveFolder appFolder = Drive.DriveApi.getAppFolder(apiClient);
+        return new RemoteFile(appFolder.getDriveId().encodeToString(), "", true, 0, 0, null, null);
+    }
+
+    @Override
+    public List<RemoteFile> listChildren(RemoteFile folder) throws IOException {
+        DriveApi.MetadataBufferResult result = asDriveId(folder).asDriveFolder()
+                .listChildren(apiClient).await();
+        checkStatus(result.getStatus(), "Couldn't list folder " + folder.getTitle());
+
+        MetadataBuffer metadataBuffer = result.getMetadataBuffer();
+        List<RemoteFile> children = new ArrayList<>();
+        try {
+            for (Metadata metadata : metadataBuffer) {
+                children.add(toRemoteFile(metadata));
+            }
+        } finally {
+            metadataBuffer.release();
+        }
+        return children;
+    }
+
+    @Override
+    public InputStream openFile(RemoteFile file, long offset) throws IOException {
+        DriveApi.DriveContentsResult result = asDriveId(file).asDriveFile()
+                .open(apiClient, DriveFile.MODE_READ_ONLY, null)
+                .await();
+        checkStatus(result.getStatus(), "Couldn't open file " + file.getTitle());
+
+        // play services fetches the contents before open completes, so skipping is only local
+        InputStream inputStream = result.getDriveContents().getInputStream();
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = inputStream.skip(remaining);
+            if (skipped <= 0) {
+                inputStream.close();
+                throw new IOException("Remote file shorter than offset " + offset);
+            }
+            remaining -= skipped;
+        }
+        return inputStream;
+    }
+
+    @Override
+    public RemoteFile createFolder(RemoteFile parent, String title) throws IOException {
+        MetadataChangeSet changeSet = new MetadataChangeSet.Builder().setTitle(title).build();
+
+        DriveFolder.DriveFolderResult result = asDriveId(parent).asDriveFolder()
+                .createFolder(apiClient, changeSet).await();
+        checkStatus(result.getStatus(), "Couldn't create folder " + title);
+
+        DriveId createdId = result.getDriveFolder().getDriveId();
+        return new RemoteFile(createdId.encodeToString(), title, true, 0, 0, null, null);
+    }
+
+    @Override
+    public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                 InputStream contents) throws IOException {
+        DriveApi.DriveContentsResult contentsResult =
+                Drive.DriveApi.newDriveContents(apiClient).await();
+        checkStatus(contentsResult.getStatus(), "Couldn't create contents for " + title);
+        DriveContents driveContents = contentsResult.getDriveContents();
+
+        OutputStream outputStream = driveContents.getOutputStream();
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = contents.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, len);
+            size += len;
+        }
+        outputStream.close();
+
+        MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
+                .setTitle(title)
+                // drive doesn't allow changing modification time, so we store it in lastviewed time
+                .setLastViewedByMeDate(new Date(modifiedTime))
+                .build();
+
+        DriveFolder.DriveFileResult creationResult = asDriveId(parent).asDriveFolder()
+                .createFile(apiClient, metadataChangeSet, driveContents).await();
+        checkStatus(creationResult.getStatus(), "Drive upload unsuccessful");
+
+        // the revision and checksum of the new file are only known once its metadata is listed
+        // again
+        DriveId createdId = creationResult.getDriveFile().getDriveId();
+        return new RemoteFile(createdId.encodeToString(), title, false, modifiedTime, size, null,
+                null);
+    }
+
+    @Override
+    public RemoteFile updateFile(RemoteFile target, long modifiedTime, InputStream contents)
+            throws IOException {
+        DriveApi.DriveContentsResult result = asDriveId(target).asDriveFile()
+                .open(apiClient, DriveFile.MODE_WRITE_ONLY, null)
+                .await();
+        checkStatus(result.getStatus(), "Couldn't open file " + target.getTitle());
+        DriveContents driveContents = result.getDriveContents();
+
+        OutputStream outputStream = driveContents.getOutputStream();
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = contents.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, len);
+            size += len;
+        }
+        outputStream.close();
+
+        MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
+                .setLastViewedByMeDate(new Date(modifiedTime))
+                .build();
+        Status commitStatus = driveContents.commit(apiClient, metadataChangeSet).await();
+        checkStatus(commitStatus, "Drive update unsuccessful");
+
+        return new RemoteFile(target.getId(), target.getTitle(), false, modifiedTime, size, null,
+                null);
+    }
+
+    @Override
+    public void delete(RemoteFile target) throws IOException {
+        Status result = asDriveId(target).asDriveResource().delete(apiClient).await();
+        checkStatus(result, "Couldn't delete " + target.getTitle());
+    }
+
+    @Override
+    public void setModifiedTime(RemoteFile target, long modifiedTime) throws IOException {
+        MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
+                .setLastViewedByMeDate(new Date(modifiedTime))
+                .build();
+        DriveResource.MetadataResult result = asDriveId(target).asDriveResource()
+                .updateMetadata(apiClient, changeSet).await();
+        checkStatus(result.getStatus(), "Couldn't update metadata of " + target.getTitle());
+    }
+
+    private static DriveId asDriveId(RemoteFile file) {
+        return DriveId.decodeFromString(file.getId());
+    }
+
+    private static RemoteFile toRemoteFile(Metadata metadata) {
+        // drive doesn't allow changing modification time, so we store it in last viewed time
+        Date lastViewed = metadata.getLastViewedByMeDate();
+        long modifiedTime = lastViewed == null ? 0 : lastViewed.getTime();
+        long size = metadata.isFolder() ? 0 : metadata.getFileSize();
+        Date serverModified = metadata.getModifiedDate();
+        String revision = serverModified == null ? null : String.valueOf(serverModified.getTime());
+        String checksum = metadata.isFolder() ? null : metadata.getMd5Checksum();
+
+        return new RemoteFile(metadata.getDriveId().encodeToString(), metadata.getTitle(),
+                metadata.isFolder(), modifiedTime, size, revision, checksum);
+    }
+
+    private static void checkStatus(Status status, String message) throws IOException {
+        if (!status.isSuccess())
+            throw new IOException(message + ": " + status.getStatusMessage());
+    }
+}
@@ -0,0 +1,255 @@
+package org.physical_web.cms.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Wraps a {@link SyncBackend}, recording the number and latency of its calls in
+ * {@link SyncMetrics}. Use {@link #wrap(SyncBackend, SyncMetrics)} so that resumable and
+ * delta-capable backends keep their capabilities, and
+ * {@link #wrapChangeFeed(RemoteChangeFeed, SyncMetrics)} to measure a change feed.
+ */
+class InstrumentedSyncBackend implements SyncBackend {
+    private final SyncBackend backend;
+    protected final SyncMetrics metrics;
+
+    static SyncBackend wrap(SyncBackend backend, SyncMetrics metrics) {
+        boolean delta = backend instanceof DeltaUploadBackend;
+        if (backend instanceof ResumableUploadBackend && delta)
+            return new ResumableDelta((ResumableUploadBackend) backend, metrics);
+        if (backend instanceof ResumableUploadBackend)
+            return new Resumable((ResumableUploadBackend) backend, metrics);
+        if (delta)
+            return new Delta((DeltaUploadBackend) backend, metrics);
+        return new InstrumentedSyncBackend(backend, metrics);
+    }
+
+    static RemoteChangeFeed wrapChangeFeed(final RemoteChangeFeed changeFeed,
+                                           final SyncMetrics metrics) {
+        return new RemoteChangeFeed() {
+            @Override
+            public String getStartCursor() throws IOException {
+                long start = System.currentTimeMillis();
+                try {
+                    return changeFeed.getStartCursor();
+                } finally {
+                    metrics.recordRemoteCall(SyncMetrics.RemoteCall.GET_START_CURSOR,
+                            System.currentTimeMillis() - start);
+                }
+            }
+
+            @Override
+            public RemoteChanges getChangesSince(String cursor) throws IOException {
+                long start = System.currentTimeMillis();
+                try {
+                    return changeFeed.getChangesSince(cursor);
+                } finally {
+                    metrics.recordRemoteCall(SyncMetrics.RemoteCall.GET_CHANGES,
+                            System.currentTimeMillis() - start);
+                }
+            }
+        };
+    }
+
+    private InstrumentedSyncBackend(SyncBackend backend, SyncMetrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            backend.prepare();
+        } finally {
+            record(SyncMetrics.RemoteCall.PREPARE, start);
+        }
+    }
+
+    @Override
+    public RemoteFile getRootFolder() throws IOException {
+        // not a network call on any backend, so not counted
+        return backend.getRootFolder();
+    }
+
+    @Override
+    public List<RemoteFile> listChildren(RemoteFile folder) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            return backend.listChildren(folder);
+        } finally {
+            record(SyncMetrics.RemoteCall.LIST_CHILDREN, start);
+        }
+    }
+
+    @Override
+    public InputStream openFile(RemoteFile file, long offset) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            return backend.openFile(file, offset);
+        } finally {
+            record(SyncMetrics.RemoteCall.OPEN_FILE, start);
+        }
+    }
+
+    @Override
+    public RemoteFile createFolder(RemoteFile parent, String title) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            return backend.createFolder(parent, title);
+        } finally {
+            record(SyncMetrics.RemoteCall.CREATE_FOLDER, start);
+        }
+    }
+
+    @Override
+    public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                 InputStream contents) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            return backend.createFile(parent, title, modifiedTime, contents);
+        } finally {
+            record(SyncMetrics.RemoteCall.CREATE_FILE, start);
+        }
+    }
+
+    @Override
+    public RemoteFile updateFile(RemoteFile target, long modifiedTime, InputStream contents)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            return backend.updateFile(target, modifiedTime, contents);
+        } finally {
+            record(SyncMetrics.RemoteCall.UPDATE_FILE, start);
+        }
+    }
+
+    @Override
+    public void delete(RemoteFile target) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            backend.delete(target);
+        } finally {
+            record(SyncMetrics.RemoteCall.DELETE, start);
+        }
+    }
+
+    @Override
+    public void setModifiedTime(RemoteFile target, long modifiedTime) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            backend.setModifiedTime(target, modifiedTime);
+        } finally {
+            record(SyncMetrics.RemoteCall.SET_MODIFIED_TIME, start);
+        }
+    }
+
+    protected void record(SyncMetrics.RemoteCall call, long start) {
+        metrics.recordRemoteCall(call, System.currentTimeMillis() - start);
+    }
+
+    private static class Resumable extends InstrumentedSyncBackend
+            implements ResumableUploadBackend {
+        private final ResumableUploadBackend backend;
+
+        Resumable(ResumableUploadBackend backend, SyncMetrics metrics) {
+            super(backend, metrics);
+            this.backend = backend;
+        }
+
+        @Override
+        public long getStagedLength(RemoteFile parent, String title) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.getStagedLength(parent, title);
+            } finally {
+                record(SyncMetrics.RemoteCall.GET_STAGED_LENGTH, start);
+            }
+        }
+
+        @Override
+        public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                     long offset, InputStream contents) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.createFile(parent, title, modifiedTime, offset, contents);
+            } finally {
+                record(SyncMetrics.RemoteCall.CREATE_FILE, start);
+            }
+        }
+
+        @Override
+        public RemoteFile updateFile(RemoteFile target, long modifiedTime, long offset,
+                                     InputStream contents) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.updateFile(target, modifiedTime, offset, contents);
+            } finally {
+                record(SyncMetrics.RemoteCall.UPDATE_FILE, start);
+            }
+        }
+    }
+
+    private static class Delta extends InstrumentedSyncBackend implements DeltaUploadBackend {
+        private final DeltaUploadBackend backend;
+
+        Delta(DeltaUploadBackend backend, SyncMetrics metrics) {
+            super(backend, metrics);
+            this.backend = backend;
+        }
+
+        @Override
+        public List<ContentChunk> getChunks(RemoteFile file) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.getChunks(file);
+            } finally {
+                record(SyncMetrics.RemoteCall.GET_CHUNKS, start);
+            }
+        }
+
+        @Override
+        public RemoteFile patchFile(RemoteFile target, long modifiedTime,
+                                    List<ContentChunk> chunks, InputStream newChunkContents)
+                throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.patchFile(target, modifiedTime, chunks, newChunkContents);
+            } finally {
+                record(SyncMetrics.RemoteCall.PATCH_FILE, start);
+            }
+        }
+    }
+
+    private static class ResumableDelta extends Resumable implements DeltaUploadBackend {
+        private final DeltaUploadBackend backend;
+
+        ResumableDelta(ResumableUploadBackend backend, SyncMetrics metrics) {
+            super(backend, metrics);
+            this.backend = (DeltaUploadBackend) backend;
+        }
+
+        @Override
+        public List<ContentChunk> getChunks(RemoteFile file) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.getChunks(file);
+            } finally {
+                record(SyncMetrics.RemoteCall.GET_CHUNKS, start);
+            }
+        }
+
+        @Override
+        public RemoteFile patchFile(RemoteFile target, long modifiedTime,
+                                    List<ContentChunk> chunks, InputStream newChunkContents)
+                throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return backend.patchFile(target, modifiedTime, chunks, newChunkContents);
+            } finally {
+                record(SyncMetrics.RemoteCall.PATCH_FILE, start);
+            }
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package org.physical_web.cms.sync;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.MiscFile;
+
+/**
+ * {@link SyncBackend} that keeps its "remote" copy in a folder on the local filesystem. Useful to
+ * measure and test synchronization without a Google account: every call counts as one round trip,
+ * and artificial latency and failures can be injected with {@link #setLatency(long)},
+ * {@link #setFailureRate(double)} and {@link #setInterruptAfter(long)}.
+ * <p>
+ * Remote ids are paths relative to the storage folder. Uploads are written to a hidden staging
+ * file next to their destination and renamed once complete, so they can be resumed. The chunk
+ * list of a file, for delta uploads, is kept in another hidden file next to it.
+ * <p>
+ * Once {@link #setChangeFeedEnabled(boolean)} is called, every change made through the backend is
+ * appended to a hidden log at the root of the storage folder, which serves as its
+ * {@link RemoteChangeFeed}. Cursors are positions in the log. Every backend sharing a storage
+ * folder should have the feed enabled: changes made without it, or to the storage folder
+ * directly, are only found by listing.
+ */
+public class LocalSyncBackend implements ResumableUploadBackend, DeltaUploadBackend,
+        RemoteChangeFeed {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String HIDDEN_PREFIX = ".";
+    private static final String STAGING_SUFFIX = ".partial";
+    private static final String CHUNKS_SUFFIX = ".chunks";
+    private static final String CHANGE_LOG_NAME = ".changes.log";
+    // backends sharing a storage folder append to the same log
+    private static final Object CHANGE_LOG_LOCK = new Object();
+
+    private final File storageFolder;
+    private final File changeLog;
+    private final Random failureRandom = new Random(42);
+
+    private volatile boolean changeFeedEnabled = false;
+    private volatile long latencyMillis = 0;
+    private volatile double failureRate = 0;
+    private final AtomicLong interruptAfter = new AtomicLong(-1);
+
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    /**
+     * @param storageFolder folder that plays the role of the remote app folder
+     */
+    public LocalSyncBackend(File storageFolder) {
+        if (!storageFolder.exists() && !storageFolder.mkdirs())
+            throw new IllegalArgumentException("Couldn't create storage folder");
+
+        this.storageFolder = storageFolder;
+        this.changeLog = new File(storageFolder, CHANGE_LOG_NAME);
+    }
+
+    /**
+     * Log changes and report them through {@link RemoteChangeFeed}. Without it, the backend
+     * hands out no cursors, and synchronizers list remote folders to find changes.
+     */
+    public void setChangeFeedEnabled(boolean changeFeedEnabled) {
+        this.changeFeedEnabled = changeFeedEnabled;
+    }
+
+    /**
+     * Forget the changes logged so far, making every cursor handed out until now expire
+     */
+    public void clearChangeLog() {
+        synchronized (CHANGE_LOG_LOCK) {
+            changeLog.delete();
+        }
+    }
+
+    /**
+     * Delay every call by the given amount, simulating network latency
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Fail the given fraction of calls, between 0 and 1, with an {@link IOException}
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Make the next upload or download fail once it moved the given number of bytes, simulating
+     * a dropped connection
+     */
+    public void setInterruptAfter(long bytes) {
+        interruptAfter.set(bytes);
+    }
+
+    /**
+     * Returns the number of backend calls made since creation or the last
+     * {@link #resetCounters()}
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public void resetCounters() {
+        roundTrips.set(0);
+        bytesUploaded.set(0);
+        bytesDownloaded.set(0);
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        roundTrip();
+    }
+
+    @Override
+    public RemoteFile getRootFolder() {
+        return new RemoteFile("", "", true, 0, 0, null, null);
+    }
+
+    @Override
+    public List<RemoteFile> listChildren(RemoteFile folder) throws IOException {
+        roundTrip();
+
+        File[] children = resolve(folder).listFiles();
+        if (children == null)
+            throw new IOException("No such remote folder: " + folder.getId());
+
+        List<RemoteFile> result = new ArrayList<>(children.length);
+        for (File child : children) {
+            if (isHiddenFile(child))
+                continue;
+            result.add(toRemoteFile(childId(folder, child.getName()), child));
+        }
+        return result;
+    }
+
+    @Override
+    public InputStream openFile(RemoteFile file, long offset) throws IOException {
+        roundTrip();
+
+        final long budget = interruptAfter.getAndSet(-1);
+        FileInputStream inputStream = new FileInputStream(resolve(file));
+        if (inputStream.skip(offset) != offset) {
+            inputStream.close();
+            throw new IOException("Remote file shorter than offset " + offset);
+        }
+
+        // count what is actually read, and cut the stream short if asked to
+        return new FilterInputStream(inputStream) {
+            long transferred = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (budget >= 0) {
+                    if (transferred >= budget)
+                        throw new IOException("Simulated connection loss");
+                    count = (int) Math.min(count, budget - transferred);
+                }
+                int len = super.read(buffer, offset, count);
+                if (len > 0) {
+                    transferred += len;
+                    bytesDownloaded.addAndGet(len);
+                }
+                return len;
+            }
+        };
+    }
+
+    @Override
+    public RemoteFile createFolder(RemoteFile parent, String title) throws IOException {
+        roundTrip();
+
+        File folder = new File(resolve(parent), title);
+        if (!folder.mkdir())
+            throw new IOException("Couldn't create remote folder " + title);
+
+        logChange(childId(parent, title), false);
+        return toRemoteFile(childId(parent, title), folder);
+    }
+
+    @Override
+    public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                                 InputStream contents) throws IOException {
+        return createFile(parent, title, modifiedTime, 0, contents);
+    }
+
+    @Override
+    public long getStagedLength(RemoteFile parent, String title) throws IOException {
+        roundTrip();
+
+        File staged = stagingFile(resolve(parent), title);
+        return staged.exists() ? staged.length() : 0;
+    }
+
+    @Override
+    public RemoteFile createFile(RemoteFile parent, String title, long modifiedTime, long offset,
+                                 InputStream contents) throws IOException {
+        roundTrip();
+
+        File file = store(resolve(parent), title, modifiedTime, offset, contents);
+        logChange(childId(parent, title), false);
+        return toRemoteFile(childId(parent, title), file);
+    }
+
+    @Override
+    public RemoteFile updateFile(RemoteFile target, long modifiedTime, InputStream contents)
+            throws IOException {
+        return updateFile(target, modifiedTime, 0, contents);
+    }
+
+    @Override
+    public RemoteFile updateFile(RemoteFile target, long modifiedTime, long offset,
+                                 InputStream contents) throws IOException {
+        roundTrip();
+
+        File existingFile = resolve(target);
+        if (!existingFile.isFile())
+            throw new IOException("No such remote file: " + target.getId());
+
+        File file = store(existingFile.getParentFile(), existingFile.getName(), modifiedTime,
+                offset, contents);
+        logChange(target.getId(), false);
+        return toRemoteFile(target.getId(), file);
+    }
+
+    @Override
+    public List<ContentChunk> getChunks(RemoteFile file) throws IOException {
+        roundTrip();
+
+        File storedFile = resolve(file);
+        if (!storedFile.isFile())
+            throw new IOException("No such remote file: " + file.getId());
+        return storedChunks(storedFile);
+    }
+
+    @Override
+    public RemoteFile patchFile(RemoteFile target, long modifiedTime, List<ContentChunk> chunks,
+                                InputStream newChunkContents) throws IOException {
+        roundTrip();
+
+        File existingFile = resolve(target);
+        if (!existingFile.isFile())
+            throw new IOException("No such remote file: " + target.getId());
+
+        // where the contents of every known chunk can be copied from: the existing file, or the
+        // part of the new one already written
+        Map<String, ContentChunk> existingChunks = new HashMap<>();
+        for (ContentChunk chunk : storedChunks(existingFile)) {
+            existingChunks.put(chunk.getHash(), chunk);
+        }
+        Map<String, ContentChunk> writtenChunks = new HashMap<>();
+
+        File staged = stagingFile(existingFile.getParentFile(), existingFile.getName());
+        RandomAccessFile existingData = new RandomAccessFile(existingFile, "r");
+        RandomAccessFile stagedData = new RandomAccessFile(staged, "rw");
+        try {
+            stagedData.setLength(0);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long offset = 0;
+            for (ContentChunk chunk : chunks) {
+                ContentChunk existingChunk = existingChunks.get(chunk.getHash());
+                ContentChunk writtenChunk = writtenChunks.get(chunk.getHash());
+                if (existingChunk != null) {
+                    existingData.seek(existingChunk.getOffset());
+                    copy(existingData, stagedData, chunk.getLength(), buffer);
+                } else if (writtenChunk != null) {
+                    stagedData.seek(writtenChunk.getOffset());
+                    byte[] contents = new byte[chunk.getLength()];
+                    stagedData.readFully(contents);
+                    stagedData.seek(offset);
+                    stagedData.write(contents);
+                } else {
+                    copy(newChunkContents, stagedData, chunk.getLength(), buffer);
+                    bytesUploaded.addAndGet(chunk.getLength());
+                    writtenChunks.put(chunk.getHash(), new ContentChunk(offset,
+                            chunk.getLength(), chunk.getHash()));
+                }
+                offset += chunk.getLength();
+            }
+        } finally {
+            existingData.close();
+            stagedData.close();
+        }
+
+        if (!staged.renameTo(existingFile))
+            throw new IOException("Couldn't move patched file into place: " + target.getId());
+        existingFile.setLastModified(modifiedTime);
+        writeChunkList(chunkListFile(existingFile), chunks);
+        logChange(target.getId(), false);
+        return toRemoteFile(target.getId(), existingFile);
+    }
+
+    // returns the chunks of a stored file, cutting it if no chunk list is kept for it yet
+    private static List<ContentChunk> storedChunks(File storedFile) throws IOException {
+        File chunkList = chunkListFile(storedFile);
+        if (chunkList.exists())
+            return readChunkList(chunkList);
+
+        List<ContentChunk> chunks = ContentChunker.split(storedFile, null);
+        writeChunkList(chunkList, chunks);
+        return chunks;
+    }
+
+    private static List<ContentChunk> readChunkList(File chunkList) throws IOException {
+        List<ContentChunk> chunks = new ArrayList<>();
+        JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(chunkList), UTF_8)));
+        try {
+            long offset = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                int length = 0;
+                String hash = null;
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("length"))
+                        length = reader.nextInt();
+                    else if (name.equals("hash"))
+                        hash = reader.nextString();
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+                chunks.add(new ContentChunk(offset, length, hash));
+                offset += length;
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
+        return chunks;
+    }
+
+    private static void writeChunkList(File chunkList, List<ContentChunk> chunks)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(chunkList), UTF_8)));
+        try {
+            writer.beginArray();
+            for (ContentChunk chunk : chunks) {
+                writer.beginObject();
+                writer.name("length").value(chunk.getLength());
+                writer.name("hash").value(chunk.getHash());
+                writer.endObject();
+            }
+            writer.endArray();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void copy(RandomAccessFile source, RandomAccessFile destination, int length,
+                             byte[] buffer) throws IOException {
+        while (length > 0) {
+            int len = source.read(buffer, 0, Math.min(length, buffer.length));
+            if (len == -1)
+                throw new IOException("Stored file shorter than its chunks");
+            destination.write(buffer, 0, len);
+            length -= len;
+        }
+    }
+
+    private static void copy(InputStream source, RandomAccessFile destination, int length,
+                             byte[] buffer) throws IOException {
+        while (length > 0) {
+            int len = source.read(buffer, 0, Math.min(length, buffer.length));
+            if (len == -1)
+                throw new IOException("Patch contents ended before the last chunk");
+            destination.write(buffer, 0, len);
+            length -= len;
+        }
+    }
+
+    // append contents to the staged bytes of a file, then move it into place
+    private File store(File folder, String title, long modifiedTime, long offset,
+                       InputStream contents) throws IOException {
+        File staged = stagingFile(folder, title);
+        if (offset > 0 && (!staged.exists() || staged.length() < offset))
+            throw new IOException("Fewer than " + offset + " bytes staged for " + title);
+        RandomAccessFile stagedData = new RandomAccessFile(staged, "rw");
+        try {
+            stagedData.setLength(offset);
+        } finally {
+            stagedData.close();
+        }
+
+        long budget = interruptAfter.getAndSet(-1);
+        long transferred = 0;
+        OutputStream outputStream = new FileOutputStream(staged, true);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = contents.read(buffer)) != -1) {
+                if (budget >= 0 && transferred + len > budget) {
+                    outputStream.write(buffer, 0, (int) (budget - transferred));
+                    bytesUploaded.addAndGet(budget - transferred);
+                    throw new IOException("Simulated connection loss");
+                }
+                outputStream.write(buffer, 0, len);
+                transferred += len;
+                bytesUploaded.addAndGet(len);
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        File file = new File(folder, title);
+        if (!staged.renameTo(file))
+            throw new IOException("Couldn't move staged upload into place: " + title);
+        file.setLastModified(modifiedTime);
+        // the chunks are cut again the next time they are asked for
+        chunkListFile(file).delete();
+        return file;
+    }
+
+    @Override
+    public void delete(RemoteFile target) throws IOException {
+        roundTrip();
+
+        File file = resolve(target);
+        if (!file.exists())
+            throw new IOException("No such remote file: " + target.getId());
+        MiscFile.deleteDir(file);
+        chunkListFile(file).delete();
+        logChange(target.getId(), true);
+    }
+
+    @Override
+    public void setModifiedTime(RemoteFile target, long modifiedTime) throws IOException {
+        roundTrip();
+
+        if (!resolve(target).setLastModified(modifiedTime))
+            throw new IOException("Couldn't update metadata of " + target.getId());
+        logChange(target.getId(), false);
+    }
+
+    @Override
+    public String getStartCursor() throws IOException {
+        roundTrip();
+        if (!changeFeedEnabled)
+            return null;
+
+        synchronized (CHANGE_LOG_LOCK) {
+            ChangeLog log = readChangeLog();
+            return log.id + ":" + log.changes.size();
+        }
+    }
+
+    @Override
+    public RemoteChanges getChangesSince(String cursor) throws IOException {
+        roundTrip();
+        if (!changeFeedEnabled)
+            return null;
+
+        int separator = cursor.lastIndexOf(':');
+        if (separator == -1)
+            throw new IllegalArgumentException("Not a cursor of this backend: " + cursor);
+        String logId = cursor.substring(0, separator);
+        int position = Integer.parseInt(cursor.substring(separator + 1));
+
+        synchronized (CHANGE_LOG_LOCK) {
+            ChangeLog log = readChangeLog();
+            if (!log.id.equals(logId) || position > log.changes.size())
+                return null;
+            List<RemoteChange> changes = new ArrayList<>(
+                    log.changes.subList(position, log.changes.size()));
+            return new RemoteChanges(changes, log.id + ":" + log.changes.size());
+        }
+    }
+
+    // the change log: a line naming it, then one line per change
+    private static class ChangeLog {
+        String id;
+        final List<RemoteChange> changes = new ArrayList<>();
+    }
+
+    // read the change log, starting a new one if there is none
+    private ChangeLog readChangeLog() throws IOException {
+        ChangeLog log = new ChangeLog();
+        if (!changeLog.exists()) {
+            log.id = Long.toString(System.nanoTime(), 36);
+            appendToChangeLog(log.id);
+            return log;
+        }
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(changeLog), UTF_8));
+        try {
+            log.id = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.changes.add(parseChange(line));
+            }
+        } finally {
+            reader.close();
+        }
+        if (log.id == null)
+            throw new IOException("Empty change log");
+        return log;
+    }
+
+    // record a change made through this backend in the log
+    private void logChange(String remoteId, boolean removed) throws IOException {
+        if (!changeFeedEnabled)
+            return;
+
+        int separator = remoteId.lastIndexOf('/');
+        String parentId = separator == -1 ? "" : remoteId.substring(0, separator);
+
+        StringWriter line = new StringWriter();
+        JsonWriter writer = new JsonWriter(line);
+        writer.beginObject();
+        writer.name("id").value(remoteId);
+        writer.name("parent").value(parentId);
+        writer.name("removed").value(removed);
+        writer.endObject();
+        writer.close();
+
+        synchronized (CHANGE_LOG_LOCK) {
+            if (!changeLog.exists())
+                readChangeLog();
+            appendToChangeLog(line.toString());
+        }
+    }
+
+    private void appendToChangeLog(String line) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(changeLog, true), UTF_8);
+        try {
+            writer.write(line);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static RemoteChange parseChange(String line) throws IOException {
+        String remoteId = null;
+        String parentId = null;
+        boolean removed = false;
+
+        JsonReader reader = new JsonReader(new StringReader(line));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("id"))
+                    remoteId = reader.nextString();
+                else if (name.equals("parent"))
+                    parentId = reader.nextString();
+                else if (name.equals("removed"))
+                    removed = reader.nextBoolean();
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        if (remoteId == null)
+            throw new IOException("Change log entry without id: " + line);
+        return new RemoteChange(remoteId, removed ? null : parentId, removed);
+    }
+
+    // simulate the cost and unreliability of a network call
+    private void roundTrip() throws IOException {
+        roundTrips.incrementAndGet();
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during simulated latency");
+            }
+        }
+
+        if (failureRate > 0) {
+            boolean fail;
+            synchronized (failureRandom) {
+                fail = failureRandom.nextDouble() < failureRate;
+            }
+            if (fail)
+                throw new IOException("Injected backend failure");
+        }
+    }
+
+    private static File stagingFile(File folder, String title) {
+        return new File(folder, HIDDEN_PREFIX + title + STAGING_SUFFIX);
+    }
+
+    private static File chunkListFile(File file) {
+        return new File(file.getParentFile(), HIDDEN_PREFIX + file.getName() + CHUNKS_SUFFIX);
+    }
+
+    private static boolean isHiddenFile(File file) {
+        String name = file.getName();
+        return name.startsWith(HIDDEN_PREFIX) && (name.endsWith(STAGING_SUFFIX)
+                || name.endsWith(CHUNKS_SUFFIX) || name.equals(CHANGE_LOG_NAME));
+    }
+
+    private File resolve(RemoteFile remoteFile) {
+        if (remoteFile.getId().isEmpty())
+            return storageFolder;
+        return new File(storageFolder, remoteFile.getId());
+    }
+
+    private static String childId(RemoteFile parent, String title) {
+        if (parent.getId().isEmpty())
+            return title;
+        return parent.getId() + "/" + title;
+    }
+
+    // like Drive, report a checksum of the stored contents along with every file
+    private static RemoteFile toRemoteFile(String id, File file) throws IOException {
+        if (file.isDirectory())
+            return new RemoteFile(id, file.getName(), true, 0, 0, null, null);
+
+        String revision = file.lastModified() + "-" + file.length();
+        return new RemoteFile(id, file.getName(), false, file.lastModified(), file.length(),
+                revision, ContentHash.of(file));
+    }
+}
@@ -0,0 +1,88 @@
+package org.physical_web.cms.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import util.MiscFile;
+
+/**
+ * Keeps a copy of every mergeable file as of the last time it was synced, in a folder mirroring
+ * the synced folder, for {@link SyncMerger} to use as a merge base.
+ * <p>
+ * All methods are thread safe as long as no two threads work on the same path.
+ */
+class MergeBaseStore {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final File baseFolder;
+
+    MergeBaseStore(File baseFolder) {
+        this.baseFolder = baseFolder;
+    }
+
+    /**
+     * Returns the merge base of the file at path, or null if there is none
+     */
+    File get(String path) {
+        File base = baseFile(path);
+        return base.isFile() ? base : null;
+    }
+
+    /**
+     * Record the given file as the merge base of path, once both sides hold the same version
+     */
+    void keep(String path, File syncedFile) throws IOException {
+        File base = baseFile(path);
+        File parent = base.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Couldn't create merge base folder " + parent);
+
+        // copied aside first, so a merge never sees half a base
+        File copy = new File(parent, base.getName() + ".tmp");
+        InputStream inputStream = new FileInputStream(syncedFile);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(copy);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, len);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+        if (!copy.renameTo(base))
+            throw new IOException("Couldn't move merge base into place: " + base);
+    }
+
+    /**
+     * Drop the merge bases of a file, or of everything in a folder
+     */
+    void discard(String path) {
+        File base = baseFile(path);
+        if (base.isDirectory())
+            MiscFile.deleteDir(base);
+        else
+            base.delete();
+    }
+
+    /**
+     * Returns a scratch file next to the merge base of path, for the steps of a merge
+     */
+    File scratchFile(String path, String suffix) {
+        File base = baseFile(path);
+        File parent = base.getParentFile();
+        parent.mkdirs();
+        return new File(parent, base.getName() + suffix);
+    }
+
+    private File baseFile(String path) {
+        return path.isEmpty() ? baseFolder : new File(baseFolder, path);
+    }
+}
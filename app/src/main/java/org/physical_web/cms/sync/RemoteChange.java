@@ -0,0 +1,36 @@
+package org.physical_web.cms.sync;
+
+/**
+ * A file or folder that was created, modified, moved or deleted in a {@link SyncBackend}, as
+ * reported by a {@link RemoteChangeFeed}. Only says where the change happened: the folders it
+ * touched are listed again to learn what it was.
+ */
+public class RemoteChange {
+    private final String remoteId;
+    private final String parentId;
+    private final boolean removed;
+
+    /**
+     * @param remoteId id of the file or folder that changed
+     * @param parentId id of the folder holding it now, or null if it was removed or the parent
+     *                 isn't known
+     * @param removed  true if it no longer exists
+     */
+    public RemoteChange(String remoteId, String parentId, boolean removed) {
+        this.remoteId = remoteId;
+        this.parentId = parentId;
+        this.removed = removed;
+    }
+
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+}
@@ -0,0 +1,26 @@
+package org.physical_web.cms.sync;
+
+import java.io.IOException;
+
+/**
+ * Implemented by a {@link SyncBackend} that can tell what changed in its store since a point in
+ * time, designated by an opaque cursor. A pass given the changes since its last cursor only lists
+ * the folders they touched, instead of every remote folder, so picking up remote changes costs
+ * in proportion to the changes rather than to the size of the tree.
+ * <p>
+ * Every change made to the store after a cursor was handed out, by any client, must be reported
+ * when asked for the changes since that cursor. Reporting a change that didn't happen is harmless.
+ */
+public interface RemoteChangeFeed {
+    /**
+     * Returns a cursor designating the current state of the store, or null if the backend can't
+     * report changes right now
+     */
+    String getStartCursor() throws IOException;
+
+    /**
+     * Returns the changes made since the given cursor, along with the cursor to ask from next
+     * time, or null if the cursor expired and every remote folder has to be listed instead
+     */
+    RemoteChanges getChangesSince(String cursor) throws IOException;
+}
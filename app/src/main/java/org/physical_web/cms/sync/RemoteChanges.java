@@ -0,0 +1,28 @@
+package org.physical_web.cms.sync;
+
+import java.util.List;
+
+/**
+ * Changes returned by {@link RemoteChangeFeed#getChangesSince(String)}, in the order they
+ * happened, with the cursor designating the state of the store after the last of them.
+ */
+public class RemoteChanges {
+    private final List<RemoteChange> changes;
+    private final String cursor;
+
+    public RemoteChanges(List<RemoteChange> changes, String cursor) {
+        this.changes = changes;
+        this.cursor = cursor;
+    }
+
+    public List<RemoteChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Returns the cursor to ask for the following changes from
+     */
+    public String getCursor() {
+        return cursor;
+    }
+}
@@ -0,0 +1,94 @@
+package org.physical_web.cms.sync;
+
+/**
+ * Metadata describing a single file or folder stored by a {@link SyncBackend}. Instances are
+ * immutable snapshots; re-list the parent folder to observe remote changes.
+ */
+public class RemoteFile {
+    private final String id;
+    private final String title;
+    private final boolean folder;
+    private final long modifiedTime;
+    private final long size;
+    private final String revision;
+    private final String checksum;
+
+    public RemoteFile(String id, String title, boolean folder, long modifiedTime, long size,
+                      String revision, String checksum) {
+        this.id = id;
+        this.title = title;
+        this.folder = folder;
+        this.modifiedTime = modifiedTime;
+        this.size = size;
+        this.revision = revision;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns an identifier that the owning backend can use to find this file again
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+
+    /**
+     * Returns the modification time of the local file this remote copy was synced from, in
+     * milliseconds since the epoch
+     */
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    /**
+     * Returns the size of the file in bytes, or 0 for folders
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns an opaque value that changes whenever the remote file changes, or null if the
+     * backend didn't report one
+     */
+    public String getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns the MD5 digest of the file contents as lowercase hexadecimal, or null if the
+     * backend didn't report one
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (other == null)
+            return false;
+        if (getClass() != other.getClass())
+            return false;
+
+        RemoteFile otherFile = (RemoteFile) other;
+        return id.equals(otherFile.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    public String toString() {
+        return (folder ? "Remote folder '" : "Remote file '") + title + "' with id " + id;
+    }
+}
@@ -0,0 +1,33 @@
+package org.physical_web.cms.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link SyncBackend} that keeps the bytes of an upload interrupted part way, so a later
+ * attempt can continue where it stopped instead of sending the whole file again. Files are only
+ * visible to {@link #listChildren(RemoteFile)} once completely uploaded.
+ */
+public interface ResumableUploadBackend extends SyncBackend {
+    /**
+     * Returns how many bytes of an unfinished upload of the given file are already stored, or 0
+     * if there is none
+     */
+    long getStagedLength(RemoteFile parent, String title) throws IOException;
+
+    /**
+     * Like {@link #createFile(RemoteFile, String, long, InputStream)}, but keeps the first
+     * offset bytes of an unfinished upload and appends the provided stream to them. The stream
+     * must start at that offset of the file contents.
+     */
+    RemoteFile createFile(RemoteFile parent, String title, long modifiedTime, long offset,
+                          InputStream contents) throws IOException;
+
+    /**
+     * Like {@link #updateFile(RemoteFile, long, InputStream)}, but keeps the first offset bytes
+     * of an unfinished upload of the same file and appends the provided stream to them. Staged
+     * bytes are found through the title of the target and the folder holding it.
+     */
+    RemoteFile updateFile(RemoteFile target, long modifiedTime, long offset,
+                          InputStream contents) throws IOException;
+}
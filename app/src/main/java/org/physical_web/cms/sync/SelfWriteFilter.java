@@ -0,0 +1,102 @@
+package org.physical_web.cms.sync;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers the local files and folders a sync is writing, so that file observer events they
+ * cause can be told apart from changes made by the user while the sync runs.
+ * <p>
+ * Observer events arrive after the write that caused them, so a path stays tagged for
+ * {@link #SETTLE_MILLIS} once written. Within that time an event is only filtered while the path
+ * still looks the way the sync left it: a user edit that changes its length or modification
+ * time, or brings back something the sync deleted, gets through. A deleted folder covers
+ * everything that was inside it.
+ * <p>
+ * All methods are thread safe.
+ */
+class SelfWriteFilter {
+    static final long SETTLE_MILLIS = 2000;
+
+    private static class Write {
+        // number of writes of the path still running
+        int running;
+        long settleTime;
+        boolean exists;
+        long length;
+        long modifiedTime;
+    }
+
+    private final Map<String, Write> writes = new HashMap<>();
+
+    /**
+     * Tag a file or folder as being written by the sync, until {@link #end(File)}
+     */
+    synchronized void begin(File file) {
+        String path = file.getAbsolutePath();
+        Write write = writes.get(path);
+        if (write == null) {
+            write = new Write();
+            writes.put(path, write);
+        }
+        write.running++;
+    }
+
+    /**
+     * Record that the sync is done writing a file or folder, remembering how it left it
+     */
+    synchronized void end(File file) {
+        Write write = writes.get(file.getAbsolutePath());
+        if (write == null)
+            return;
+
+        write.running--;
+        write.settleTime = System.currentTimeMillis() + SETTLE_MILLIS;
+        write.exists = file.exists();
+        write.length = file.isFile() ? file.length() : 0;
+        write.modifiedTime = file.isFile() ? file.lastModified() : 0;
+    }
+
+    /**
+     * Returns true if an event about the given file was caused by the sync
+     */
+    synchronized boolean isSelfWrite(File file) {
+        if (writes.isEmpty())
+            return false;
+        pruneSettled();
+
+        Write write = writes.get(file.getAbsolutePath());
+        if (write != null)
+            return write.running > 0 || matches(write, file);
+
+        // inside a folder the sync is deleting, or deleted
+        for (File parent = file.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            Write parentWrite = writes.get(parent.getAbsolutePath());
+            if (parentWrite != null && (parentWrite.running > 0 || !parentWrite.exists))
+                return parentWrite.running > 0 || (!parent.exists() && !file.exists());
+        }
+        return false;
+    }
+
+    // check if a file still looks the way the sync left it
+    private static boolean matches(Write write, File file) {
+        if (write.exists != file.exists())
+            return false;
+        if (!file.isFile())
+            return true;
+        return write.length == file.length() && write.modifiedTime == file.lastModified();
+    }
+
+    // forget paths whose events have all arrived by now
+    private void pruneSettled() {
+        long now = System.currentTimeMillis();
+        Iterator<Write> iterator = writes.values().iterator();
+        while (iterator.hasNext()) {
+            Write write = iterator.next();
+            if (write.running == 0 && write.settleTime < now)
+                iterator.remove();
+        }
+    }
+}
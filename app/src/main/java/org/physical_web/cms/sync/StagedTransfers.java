@@ -0,0 +1,468 @@
+package org.physical_web.cms.sync;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves single files to and from a {@link SyncBackend} so that an interrupted transfer never
+ * leaves a truncated file behind, and can continue from where it stopped.
+ * <p>
+ * Downloads are written to a staging file, outside of the synced folder, and only renamed over
+ * the local file once complete. Every {@link #CHECKPOINT_INTERVAL} bytes the staged data is
+ * flushed to disk and its length recorded in a checkpoint, along with the remote version it
+ * belongs to. A later attempt, in the same pass or after a restart, resumes from the checkpoint
+ * if the remote file didn't change meanwhile.
+ * <p>
+ * Uploads can only be resumed on a {@link ResumableUploadBackend}, other backends restart them
+ * from the beginning. An upload of a file edited while it was being read is sent again, so that
+ * the remote copy always matches the size and modification time recorded for it. Failed
+ * transfers are retried up to {@link #MAX_ATTEMPTS} times.
+ * <p>
+ * On a {@link DeltaUploadBackend}, uploads that replace a remote file of at least
+ * {@link #DELTA_MIN_SIZE} bytes only send the chunks the remote copy doesn't already hold.
+ */
+class StagedTransfers {
+    private static final String TAG = StagedTransfers.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    // staged data nobody came back for in a week belongs to files that are gone
+    private static final long STALE_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Number of bytes transferred between two checkpoints
+     */
+    static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    /**
+     * Number of times a transfer is attempted before its failure is reported
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Size from which changed files are uploaded as a delta, when the backend supports it.
+     * Smaller files are cheaper to send whole than to chunk.
+     */
+    static final long DELTA_MIN_SIZE = 1024 * 1024;
+
+    /**
+     * Outcome of a completed transfer
+     */
+    static class Result {
+        final RemoteFile remoteFile;
+        final long transferredBytes;
+        final String hash;
+
+        Result(RemoteFile remoteFile, long transferredBytes, String hash) {
+            this.remoteFile = remoteFile;
+            this.transferredBytes = transferredBytes;
+            this.hash = hash;
+        }
+    }
+
+    // a download's progress as of its last checkpoint
+    private static class Progress {
+        long offset;
+        MessageDigest digest;
+        long transferredBytes;
+    }
+
+    private final File stagingFolder;
+    private final SyncBackend backend;
+    private final SyncMetrics metrics;
+
+    /**
+     * @param stagingFolder private folder, outside of the synced folder, for partial transfers
+     * @param metrics       where retries are counted
+     */
+    StagedTransfers(File stagingFolder, SyncBackend backend, SyncMetrics metrics) {
+        if (!stagingFolder.exists() && !stagingFolder.mkdirs())
+            throw new IllegalStateException("Couldn't create staging folder");
+
+        this.stagingFolder = stagingFolder;
+        this.backend = backend;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Download a remote file and move it over the local target once complete. The target gets
+     * the remote modification time.
+     *
+     * @param path    path of the file relative to the synced folder, identifying its staged data
+     * @param limiter caps the download rate, or null
+     */
+    Result download(RemoteFile remoteFile, String path, File target, BandwidthLimiter limiter)
+            throws IOException {
+        String version = remoteVersion(remoteFile);
+        File staged = stagingFile(path, "download", ".part");
+        File checkpoint = stagingFile(path, "download", ".checkpoint");
+
+        Progress progress = new Progress();
+        long checkpointOffset = readCheckpoint(checkpoint, version);
+        progress.offset = checkpointOffset <= staged.length() ? Math.max(0, checkpointOffset) : 0;
+        progress.digest = hashPrefix(staged, progress.offset);
+        if (progress.offset > 0)
+            Log.d(TAG, "Resuming download of " + path + " at byte " + progress.offset);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadAttempt(remoteFile, staged, checkpoint, version, progress, limiter);
+                break;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS)
+                    throw e;
+                Log.w(TAG, "Download of " + path + " interrupted at byte " + progress.offset
+                        + ", retrying: " + e);
+                waitBeforeRetry(attempt);
+            }
+        }
+
+        if (!staged.renameTo(target))
+            throw new IOException("Couldn't move downloaded file into place: " + target);
+        target.setLastModified(remoteFile.getModifiedTime());
+        checkpoint.delete();
+
+        return new Result(remoteFile, progress.transferredBytes,
+                ContentHash.toHex(progress.digest.digest()));
+    }
+
+    /**
+     * Upload a local file into a remote folder, replacing the contents of its existing remote
+     * copy in place if there is one
+     *
+     * @param path         path of the file relative to the synced folder, identifying its staged
+     *                     data
+     * @param existingCopy remote file to overwrite, or null to create a new one
+     * @param limiter      caps the upload rate, or null
+     */
+    Result upload(File localFile, String path, RemoteFile remoteFolder, RemoteFile existingCopy,
+                  BandwidthLimiter limiter) throws IOException {
+        String version = localVersion(localFile, remoteFolder);
+        File checkpoint = stagingFile(path, "upload", ".checkpoint");
+        long discardedBytes = 0;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Result result = uploadAttempt(localFile, remoteFolder, existingCopy, checkpoint,
+                        version, limiter);
+                String uploadedVersion = localVersion(localFile, remoteFolder);
+                if (uploadedVersion.equals(version))
+                    return new Result(result.remoteFile,
+                            discardedBytes + result.transferredBytes, result.hash);
+
+                // the file was edited while being read, the remote copy may mix old and new
+                // bytes. Send it again over the copy just made.
+                discardedBytes += result.transferredBytes;
+                existingCopy = result.remoteFile;
+                version = uploadedVersion;
+                throw new IOException("File changed during upload");
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS)
+                    throw e;
+                Log.w(TAG, "Upload of " + path + " interrupted, retrying: " + e);
+                waitBeforeRetry(attempt);
+            }
+        }
+    }
+
+    /**
+     * Delete staged data that was left untouched for a week, such as partial downloads of files
+     * that were deleted remotely since
+     */
+    void discardStale() {
+        File[] stagedFiles = stagingFolder.listFiles();
+        if (stagedFiles == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        for (File stagedFile : stagedFiles) {
+            if (now - stagedFile.lastModified() > STALE_AGE_MILLIS)
+                stagedFile.delete();
+        }
+    }
+
+    // continue a download from the last checkpoint, updating progress as data gets safely on disk
+    private void downloadAttempt(RemoteFile remoteFile, File staged, File checkpoint,
+                                 String version, Progress progress, BandwidthLimiter limiter)
+            throws IOException {
+        truncate(staged, progress.offset);
+
+        InputStream inputStream = throttle(backend.openFile(remoteFile, progress.offset),
+                limiter);
+        FileOutputStream outputStream = new FileOutputStream(staged, true);
+        try {
+            MessageDigest digest = cloneDigest(progress.digest);
+            long offset = progress.offset;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
+                digest.update(buffer, 0, len);
+                offset += len;
+                progress.transferredBytes += len;
+
+                if (offset - progress.offset >= CHECKPOINT_INTERVAL) {
+                    outputStream.flush();
+                    outputStream.getFD().sync();
+                    writeCheckpoint(checkpoint, version, offset);
+                    progress.offset = offset;
+                    progress.digest = cloneDigest(digest);
+                }
+            }
+
+            outputStream.flush();
+            outputStream.getFD().sync();
+            progress.offset = offset;
+            progress.digest = digest;
+        } finally {
+            inputStream.close();
+            outputStream.close();
+        }
+    }
+
+    private Result uploadAttempt(File localFile, RemoteFile remoteFolder, RemoteFile existingCopy,
+                                 File checkpoint, String version, BandwidthLimiter limiter)
+            throws IOException {
+        if (existingCopy != null && backend instanceof DeltaUploadBackend
+                && localFile.length() >= DELTA_MIN_SIZE) {
+            Result result = deltaUploadAttempt((DeltaUploadBackend) backend, localFile,
+                    existingCopy, limiter);
+            if (result != null) {
+                checkpoint.delete();
+                return result;
+            }
+        }
+
+        ResumableUploadBackend resumableBackend = null;
+        long offset = 0;
+        if (backend instanceof ResumableUploadBackend) {
+            resumableBackend = (ResumableUploadBackend) backend;
+            // staged remote data only counts if it comes from this version of the local file
+            if (readCheckpoint(checkpoint, version) < 0)
+                writeCheckpoint(checkpoint, version, 0);
+            else
+                offset = resumableBackend.getStagedLength(remoteFolder, localFile.getName());
+            offset = Math.min(offset, localFile.length());
+        }
+        if (offset > 0)
+            Log.d(TAG, "Resuming upload of " + localFile.getPath() + " at byte " + offset);
+
+        DigestInputStream inputStream = new DigestInputStream(new FileInputStream(localFile),
+                ContentHash.newDigest());
+        try {
+            // the bytes already uploaded still count towards the hash
+            skipFully(inputStream, offset);
+            InputStream contents = throttle(inputStream, limiter);
+
+            RemoteFile uploadedFile;
+            long modifiedTime = localFile.lastModified();
+            if (resumableBackend != null && existingCopy != null) {
+                uploadedFile = resumableBackend.updateFile(existingCopy, modifiedTime, offset,
+                        contents);
+            } else if (resumableBackend != null) {
+                uploadedFile = resumableBackend.createFile(remoteFolder, localFile.getName(),
+                        modifiedTime, offset, contents);
+            } else if (existingCopy != null) {
+                uploadedFile = backend.updateFile(existingCopy, modifiedTime, contents);
+            } else {
+                uploadedFile = backend.createFile(remoteFolder, localFile.getName(),
+                        modifiedTime, contents);
+            }
+
+            checkpoint.delete();
+            return new Result(uploadedFile, localFile.length() - offset,
+                    ContentHash.toHex(inputStream.getMessageDigest().digest()));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // rewrite a remote file, only sending the chunks of the local file that it doesn't hold.
+    // Returns null if the chunks of the remote file aren't known.
+    private Result deltaUploadAttempt(DeltaUploadBackend deltaBackend, File localFile,
+                                      RemoteFile existingCopy, BandwidthLimiter limiter)
+            throws IOException {
+        List<ContentChunk> remoteChunks = deltaBackend.getChunks(existingCopy);
+        if (remoteChunks == null)
+            return null;
+
+        Set<String> remoteHashes = new HashSet<>();
+        for (ContentChunk chunk : remoteChunks) {
+            remoteHashes.add(chunk.getHash());
+        }
+
+        MessageDigest digest = ContentHash.newDigest();
+        List<ContentChunk> localChunks = ContentChunker.split(localFile, digest);
+        List<ContentChunk> newChunks = new ArrayList<>();
+        long newBytes = 0;
+        for (ContentChunk chunk : localChunks) {
+            // a chunk repeated within the file is only sent once
+            if (remoteHashes.add(chunk.getHash())) {
+                newChunks.add(chunk);
+                newBytes += chunk.getLength();
+            }
+        }
+        Log.d(TAG, "Delta upload of " + localFile.getPath() + ": " + newChunks.size() + " of "
+                + localChunks.size() + " chunks, " + newBytes + " bytes");
+
+        InputStream inputStream = throttle(ContentChunker.openChunks(localFile, newChunks),
+                limiter);
+        try {
+            RemoteFile uploadedFile = deltaBackend.patchFile(existingCopy,
+                    localFile.lastModified(), localChunks, inputStream);
+            return new Result(uploadedFile, newBytes, ContentHash.toHex(digest.digest()));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static InputStream throttle(InputStream inputStream, BandwidthLimiter limiter) {
+        return limiter == null ? inputStream : limiter.throttle(inputStream);
+    }
+
+    // returns the offset recorded in a checkpoint, or -1 if there is no usable checkpoint for the
+    // given version
+    private long readCheckpoint(File checkpoint, String version) {
+        if (!checkpoint.exists())
+            return -1;
+
+        String checkpointVersion = null;
+        long offset = 0;
+        try {
+            JsonReader reader = new JsonReader(new BufferedReader(
+                    new InputStreamReader(new FileInputStream(checkpoint), UTF_8)));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("version"))
+                        checkpointVersion = reader.nextString();
+                    else if (name.equals("offset"))
+                        offset = reader.nextLong();
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Couldn't read transfer checkpoint, starting over: " + e);
+            return -1;
+        }
+
+        return version.equals(checkpointVersion) ? offset : -1;
+    }
+
+    private static void writeCheckpoint(File checkpoint, String version, long offset)
+            throws IOException {
+        File temporaryFile = new File(checkpoint.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(outputStream, UTF_8)));
+        try {
+            writer.beginObject();
+            writer.name("version").value(version);
+            writer.name("offset").value(offset);
+            writer.endObject();
+            writer.flush();
+            outputStream.getFD().sync();
+        } finally {
+            writer.close();
+        }
+
+        if (!temporaryFile.renameTo(checkpoint))
+            throw new IOException("Couldn't write transfer checkpoint");
+    }
+
+    // staging files are named after a digest of the path, so nested paths map to a flat folder
+    private File stagingFile(String path, String direction, String suffix) {
+        MessageDigest digest = ContentHash.newDigest();
+        String name = ContentHash.toHex(digest.digest(path.getBytes(UTF_8)));
+        return new File(stagingFolder, direction + "-" + name + suffix);
+    }
+
+    // identifies the remote contents a partial download belongs to
+    private static String remoteVersion(RemoteFile remoteFile) {
+        return remoteFile.getId() + "/" + remoteFile.getRevision() + "/"
+                + remoteFile.getChecksum() + "/" + remoteFile.getSize();
+    }
+
+    // identifies the local contents, and destination, a partial upload belongs to
+    private static String localVersion(File localFile, RemoteFile remoteFolder) {
+        return remoteFolder.getId() + "/" + localFile.length() + "/" + localFile.lastModified();
+    }
+
+    // digest of the first length bytes of a file
+    private static MessageDigest hashPrefix(File file, long length) throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        if (length == 0)
+            return digest;
+
+        DigestInputStream inputStream = new DigestInputStream(new FileInputStream(file), digest);
+        try {
+            skipFully(inputStream, length);
+        } finally {
+            inputStream.close();
+        }
+        return digest;
+    }
+
+    // read and discard exactly count bytes, so that a digesting stream sees them
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (count > 0) {
+            int len = inputStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (len == -1)
+                throw new IOException("File shorter than expected");
+            count -= len;
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Digest can't be checkpointed", e);
+        }
+    }
+
+    private void waitBeforeRetry(int attempt) throws IOException {
+        long delay = RETRY_DELAY_MILLIS * attempt;
+        metrics.recordRetry(delay);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry transfer");
+        }
+    }
+}
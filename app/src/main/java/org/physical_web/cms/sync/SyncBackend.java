@@ -0,0 +1,64 @@
+package org.physical_web.cms.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A remote store that the local content folder is synchronized against. Every method may block
+ * on a network round trip, so none of them should be called from the UI thread.
+ * <p>
+ * Files store the modification time of the local file they were uploaded from, see
+ * {@link RemoteFile#getModifiedTime()}.
+ */
+public interface SyncBackend {
+    /**
+     * Called once at the start of every synchronization pass, before any other method
+     */
+    void prepare() throws IOException;
+
+    /**
+     * Returns the folder that mirrors the root of the local content folder
+     */
+    RemoteFile getRootFolder() throws IOException;
+
+    /**
+     * Returns the files and folders immediately contained by a folder (non-recursive)
+     */
+    List<RemoteFile> listChildren(RemoteFile folder) throws IOException;
+
+    /**
+     * Opens the contents of a remote file for reading, starting at the given byte offset. The
+     * caller must close the stream.
+     */
+    InputStream openFile(RemoteFile file, long offset) throws IOException;
+
+    /**
+     * Creates an empty folder with the given title inside a remote folder
+     */
+    RemoteFile createFolder(RemoteFile parent, String title) throws IOException;
+
+    /**
+     * Creates a file inside a remote folder, reading its contents from the provided stream.
+     * The stream is not closed by this method.
+     */
+    RemoteFile createFile(RemoteFile parent, String title, long modifiedTime,
+                          InputStream contents) throws IOException;
+
+    /**
+     * Replaces the contents of an existing remote file, reading them from the provided stream.
+     * The file keeps its id. The stream is not closed by this method.
+     */
+    RemoteFile updateFile(RemoteFile target, long modifiedTime, InputStream contents)
+            throws IOException;
+
+    /**
+     * Permanently deletes a remote file or folder, including everything inside a folder
+     */
+    void delete(RemoteFile target) throws IOException;
+
+    /**
+     * Updates the stored modification time of a remote file without touching its contents
+     */
+    void setModifiedTime(RemoteFile target, long modifiedTime) throws IOException;
+}
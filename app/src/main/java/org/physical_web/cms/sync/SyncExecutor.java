@@ -0,0 +1,177 @@
+package org.physical_web.cms.sync;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs syncs one at a time on a dedicated thread, so passes never overlap. A sync goes through
+ * these states:
+ * <ul>
+ * <li>{@link State#IDLE}: nothing to do,</li>
+ * <li>{@link State#SCHEDULED}: requested, waiting for the sync thread,</li>
+ * <li>{@link State#RUNNING}: the sync task is running,</li>
+ * <li>{@link State#CANCELLING}: the running task was asked to stop, and hasn't yet.</li>
+ * </ul>
+ * Requests are coalesced: any number of them made while a sync is scheduled result in a single
+ * run, and any number made while one runs result in a single follow-up run once it ends, so no
+ * change is left unsynced. Cancellation is cooperative, the task checks the signal it is given.
+ * <p>
+ * All methods are thread safe.
+ */
+public class SyncExecutor {
+    private static final String TAG = SyncExecutor.class.getSimpleName();
+
+    public enum State {
+        IDLE,
+        SCHEDULED,
+        RUNNING,
+        CANCELLING
+    }
+
+    /**
+     * A single sync. Called on the sync thread.
+     */
+    public interface SyncTask {
+        /**
+         * Sync, stopping early once signal is cancelled
+         */
+        void run(CancellationSignal signal);
+    }
+
+    private final SyncTask task;
+    private final ExecutorService syncThread = Executors.newSingleThreadExecutor();
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            runScheduled();
+        }
+    };
+
+    private State state = State.IDLE;
+    // requested while running or cancelling, so another run is due once the current one ends
+    private boolean followUpRequested = false;
+    private CancellationSignal runningSignal;
+    private long completedRuns = 0;
+    private boolean shutDown = false;
+
+    public SyncExecutor(SyncTask task) {
+        this.task = task;
+    }
+
+    /**
+     * Ask for a sync. Returns immediately.
+     */
+    public synchronized void request() {
+        if (shutDown)
+            return;
+
+        switch (state) {
+            case IDLE:
+                state = State.SCHEDULED;
+                syncThread.execute(runner);
+                break;
+            case SCHEDULED:
+                // the scheduled run will pick this request up
+                break;
+            case RUNNING:
+            case CANCELLING:
+                followUpRequested = true;
+                break;
+        }
+    }
+
+    /**
+     * Drop a scheduled sync, or ask the running one to stop. Requests made before this call are
+     * dropped too, later ones start a new sync once the cancelled one stopped.
+     */
+    public synchronized void cancel() {
+        switch (state) {
+            case SCHEDULED:
+                // the queued runner finds nothing to do
+                state = State.IDLE;
+                notifyAll();
+                break;
+            case RUNNING:
+                state = State.CANCELLING;
+                followUpRequested = false;
+                runningSignal.cancel();
+                break;
+            case IDLE:
+            case CANCELLING:
+                break;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of times the sync task ran to its end, cancelled or not
+     */
+    public synchronized long getCompletedRuns() {
+        return completedRuns;
+    }
+
+    /**
+     * Block until no sync is scheduled or running, or the timeout elapsed
+     *
+     * @return true if idle
+     */
+    public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (state != State.IDLE) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel any sync and stop the sync thread. No sync runs afterwards.
+     */
+    public synchronized void shutdown() {
+        shutDown = true;
+        cancel();
+        syncThread.shutdown();
+    }
+
+    // run the scheduled sync, then as many follow-ups as were requested meanwhile. Runners left
+    // queued by a cancelled schedule find nothing to do.
+    private void runScheduled() {
+        CancellationSignal signal;
+        synchronized (this) {
+            if (state != State.SCHEDULED)
+                return;
+            state = State.RUNNING;
+            signal = runningSignal = new CancellationSignal();
+        }
+
+        while (true) {
+            try {
+                task.run(signal);
+            } catch (RuntimeException e) {
+                // the sync thread outlives a broken pass
+                Log.e(TAG, "Sync task failed: " + e);
+            }
+
+            synchronized (this) {
+                completedRuns++;
+                if (!followUpRequested) {
+                    state = State.IDLE;
+                    runningSignal = null;
+                    notifyAll();
+                    return;
+                }
+                followUpRequested = false;
+                state = State.RUNNING;
+                signal = runningSignal = new CancellationSignal();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.physical_web.cms.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of a running synchronization pass, so that a pass cut short by the process
+ * dying can be resumed instead of re-decided. The manifest is only saved once a pass ends, the
+ * journal covers the time in between:
+ * <ul>
+ * <li>every transfer is planned before it is queued,</li>
+ * <li>every manifest entry recorded during the pass is appended, marking the transfer it
+ * completes as done,</li>
+ * <li>the end of the folder walk is noted, at which point every needed transfer is planned.</li>
+ * </ul>
+ * One JSON object is written per line and flushed immediately, so a killed process loses at most
+ * the line being written. The journal is emptied whenever the manifest is saved.
+ * <p>
+ * All methods are thread safe.
+ */
+class SyncJournal {
+    private static final String TAG = SyncJournal.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A planned upload or download
+     */
+    static class Operation {
+        final long id;
+        final boolean upload;
+        final String path;
+        // folder an upload goes into
+        final String remoteFolderId;
+        // source of a download, or the remote copy an upload overwrites (null if it creates one)
+        final RemoteFile remoteFile;
+
+        Operation(long id, boolean upload, String path, String remoteFolderId,
+                  RemoteFile remoteFile) {
+            this.id = id;
+            this.upload = upload;
+            this.path = path;
+            this.remoteFolderId = remoteFolderId;
+            this.remoteFile = remoteFile;
+        }
+
+        private void write(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("plan").value(id);
+            writer.name("op").value(upload ? "upload" : "download");
+            writer.name("path").value(path);
+            if (remoteFolderId != null)
+                writer.name("remote-folder").value(remoteFolderId);
+            if (remoteFile != null) {
+                writer.name("remote-id").value(remoteFile.getId());
+                writer.name("title").value(remoteFile.getTitle());
+                writer.name("modified").value(remoteFile.getModifiedTime());
+                writer.name("size").value(remoteFile.getSize());
+                if (remoteFile.getRevision() != null)
+                    writer.name("revision").value(remoteFile.getRevision());
+                if (remoteFile.getChecksum() != null)
+                    writer.name("checksum").value(remoteFile.getChecksum());
+            }
+            writer.endObject();
+        }
+
+        private static Operation read(long id, JsonReader reader) throws IOException {
+            String op = null;
+            String path = null;
+            String remoteFolderId = null;
+            String remoteId = null;
+            String title = null;
+            long modifiedTime = 0;
+            long size = 0;
+            String revision = null;
+            String checksum = null;
+
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "op":
+                        op = reader.nextString();
+                        break;
+                    case "path":
+                        path = reader.nextString();
+                        break;
+                    case "remote-folder":
+                        remoteFolderId = reader.nextString();
+                        break;
+                    case "remote-id":
+                        remoteId = reader.nextString();
+                        break;
+                    case "title":
+                        title = reader.nextString();
+                        break;
+                    case "modified":
+                        modifiedTime = reader.nextLong();
+                        break;
+                    case "size":
+                        size = reader.nextLong();
+                        break;
+                    case "revision":
+                        revision = reader.nextString();
+                        break;
+                    case "checksum":
+                        checksum = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+
+            if (op == null || path == null)
+                throw new IOException("Journal operation is missing its type or path");
+            RemoteFile remoteFile = remoteId == null ? null : new RemoteFile(remoteId, title,
+                    false, modifiedTime, size, revision, checksum);
+            return new Operation(id, op.equals("upload"), path, remoteFolderId, remoteFile);
+        }
+    }
+
+    private final File journalFile;
+    private OutputStream outputStream;
+    private long nextOperationId = 1;
+    private long recoveredRemoteScan = -1;
+
+    SyncJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Read what an interrupted pass left behind: recorded entries are put into the manifest, and
+     * the planned operations that didn't complete are returned, in the order they were planned.
+     */
+    synchronized List<Operation> recover(SyncManifest manifest) {
+        Map<Long, Operation> pendingOperations = new LinkedHashMap<>();
+        recoveredRemoteScan = -1;
+        if (!journalFile.exists())
+            return new ArrayList<>();
+
+        int lineCount = 0;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    readLine(line, manifest, pendingOperations);
+                    lineCount++;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // most likely the last line, cut short when the process died
+            Log.w(TAG, "Journal unreadable after " + lineCount + " lines: " + e);
+        }
+
+        Log.d(TAG, "Recovered " + lineCount + " journal lines, " + pendingOperations.size()
+                + " operations unfinished");
+        return new ArrayList<>(pendingOperations.values());
+    }
+
+    /**
+     * Returns the remote scan time noted by {@link #walkComplete(long)} in the recovered journal,
+     * or -1 if the interrupted pass didn't finish walking the tree
+     */
+    synchronized long getRecoveredRemoteScan() {
+        return recoveredRemoteScan;
+    }
+
+    synchronized Operation planUpload(String path, RemoteFile remoteFolder,
+                                      RemoteFile existingCopy) throws IOException {
+        Operation operation = new Operation(nextOperationId++, true, path, remoteFolder.getId(),
+                existingCopy);
+        append(operation);
+        return operation;
+    }
+
+    synchronized Operation planDownload(String path, RemoteFile remoteFile) throws IOException {
+        Operation operation = new Operation(nextOperationId++, false, path, null, remoteFile);
+        append(operation);
+        return operation;
+    }
+
+    /**
+     * Log a manifest entry recorded during the pass
+     *
+     * @param operation operation this entry completes, or null
+     */
+    synchronized void record(SyncManifest.Entry entry, Operation operation)
+            throws IOException {
+        StringWriter line = new StringWriter();
+        JsonWriter writer = new JsonWriter(line);
+        writer.beginObject();
+        if (operation != null)
+            writer.name("done").value(operation.id);
+        writer.name("entry");
+        entry.write(writer);
+        writer.endObject();
+        writer.close();
+        appendLine(line.toString());
+    }
+
+    /**
+     * Note that every transfer of the pass has been planned
+     *
+     * @param remoteScan time to record as the last remote scan once the plan is carried out
+     */
+    synchronized void walkComplete(long remoteScan) throws IOException {
+        StringWriter line = new StringWriter();
+        JsonWriter writer = new JsonWriter(line);
+        writer.beginObject();
+        writer.name("walk-complete").value(remoteScan);
+        writer.endObject();
+        writer.close();
+        appendLine(line.toString());
+    }
+
+    /**
+     * Forget everything, once the manifest holds it all
+     */
+    synchronized void reset() {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't close journal: " + e);
+            }
+            outputStream = null;
+        }
+        journalFile.delete();
+        recoveredRemoteScan = -1;
+    }
+
+    private void append(Operation operation) throws IOException {
+        StringWriter line = new StringWriter();
+        JsonWriter writer = new JsonWriter(line);
+        operation.write(writer);
+        writer.close();
+        appendLine(line.toString());
+    }
+
+    private void appendLine(String line) throws IOException {
+        if (outputStream == null)
+            outputStream = new FileOutputStream(journalFile, true);
+        // a single write per line, so a line is either complete or cut at its end
+        outputStream.write((line + "\n").getBytes(UTF_8));
+        outputStream.flush();
+    }
+
+    private void readLine(String line, SyncManifest manifest,
+                          Map<Long, Operation> pendingOperations) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(line));
+        try {
+            reader.beginObject();
+            String name = reader.nextName();
+            switch (name) {
+                case "plan":
+                    long id = reader.nextLong();
+                    pendingOperations.put(id, Operation.read(id, reader));
+                    nextOperationId = Math.max(nextOperationId, id + 1);
+                    break;
+                case "done":
+                    pendingOperations.remove(reader.nextLong());
+                    reader.nextName();
+                    manifest.put(SyncManifest.Entry.read(reader));
+                    break;
+                case "entry":
+                    manifest.put(SyncManifest.Entry.read(reader));
+                    break;
+                case "walk-complete":
+                    recoveredRemoteScan = reader.nextLong();
+                    break;
+                default:
+                    throw new IOException("Unknown journal record " + name);
+            }
+            while (reader.peek() != JsonToken.END_OBJECT) {
+                reader.nextName();
+                reader.skipValue();
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.physical_web.cms.sync;
+
+/**
+ * Priority classes of synchronized files. The queued transfers of a pass run in lane order, and
+ * smallest first within a lane, so that a change to a small file that others depend on doesn't
+ * wait behind bulk media. See {@link SyncPrioritizer}.
+ */
+public enum SyncLane {
+    /**
+     * Small files describing the rest of the tree, which other devices need to be consistent
+     */
+    METADATA,
+    /**
+     * Content that is being shown right now
+     */
+    ACTIVE_CONTENT,
+    /**
+     * Everything else
+     */
+    BULK
+}
@@ -0,0 +1,371 @@
+package org.physical_web.cms.sync;
+
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk record of every file and folder as it was at the end of the last synchronization,
+ * keyed by path relative to the synced folder (using '/' as separator, the synced folder itself
+ * is the empty path). Comparing the local tree against it reveals what changed since, without
+ * contacting the backend.
+ * <p>
+ * Paths deleted locally are moved to tombstones, keeping the remote id of their synced copy
+ * until the deletion is carried out on remote.
+ * <p>
+ * All methods are thread safe.
+ */
+class SyncManifest {
+    private static final String TAG = SyncManifest.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File manifestFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Entry> tombstones = new HashMap<>();
+    private long lastRemoteScan = 0;
+    private String changeCursor = null;
+    private boolean modified = false;
+
+    private SyncManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Load a manifest from disk, returning an empty one if the file doesn't exist or is corrupt
+     */
+    static SyncManifest load(File manifestFile) {
+        SyncManifest manifest = new SyncManifest(manifestFile);
+        if (!manifestFile.exists())
+            return manifest;
+
+        try {
+            manifest.read();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Couldn't read sync manifest, starting over: " + e);
+            manifest.entries.clear();
+            manifest.tombstones.clear();
+            manifest.lastRemoteScan = 0;
+            manifest.changeCursor = null;
+        }
+        return manifest;
+    }
+
+    synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    synchronized void put(Entry entry) {
+        entries.put(entry.path, entry);
+        modified = true;
+    }
+
+    /**
+     * Forget a path, and everything below it if it is a folder
+     */
+    synchronized void removeSubtree(String path) {
+        String prefix = path + "/";
+        List<String> removed = new ArrayList<>();
+        for (String entryPath : entries.keySet()) {
+            if (entryPath.equals(path) || entryPath.startsWith(prefix))
+                removed.add(entryPath);
+        }
+        for (String entryPath : removed) {
+            entries.remove(entryPath);
+        }
+        modified = modified || !removed.isEmpty();
+    }
+
+    /**
+     * Forget the children of a folder that aren't named in the given set, and everything below
+     * them
+     */
+    synchronized void retainChildren(String folderPath, Set<String> childNames) {
+        String prefix = folderPath.isEmpty() ? "" : folderPath + "/";
+        List<String> removed = new ArrayList<>();
+        for (String entryPath : entries.keySet()) {
+            if (!entryPath.startsWith(prefix) || entryPath.length() == prefix.length())
+                continue;
+            String childName = entryPath.substring(prefix.length());
+            if (childName.indexOf('/') == -1 && !childNames.contains(childName))
+                removed.add(entryPath);
+        }
+        for (String entryPath : removed) {
+            removeSubtree(entryPath);
+        }
+    }
+
+    /**
+     * Record that a path was deleted locally: its entry becomes a tombstone, and the entries
+     * below it are dropped as deleting the remote copy of the path deletes them too. Returns
+     * false if the path isn't known, in which case there is nothing to delete on remote.
+     */
+    synchronized boolean addTombstone(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null)
+            return false;
+
+        removeSubtree(path);
+        tombstones.put(path, entry);
+        modified = true;
+        return true;
+    }
+
+    synchronized Entry getTombstone(String path) {
+        return tombstones.get(path);
+    }
+
+    synchronized List<Entry> getTombstones() {
+        return new ArrayList<>(tombstones.values());
+    }
+
+    synchronized void removeTombstone(String path) {
+        if (tombstones.remove(path) != null)
+            modified = true;
+    }
+
+    synchronized List<String> getPaths() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Returns the path of every entry by remote id
+     */
+    synchronized Map<String, String> getPathsByRemoteId() {
+        Map<String, String> paths = new HashMap<>();
+        for (Entry entry : entries.values()) {
+            paths.put(entry.remoteId, entry.path);
+        }
+        return paths;
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, of the last pass that listed every
+     * remote folder
+     */
+    synchronized long getLastRemoteScan() {
+        return lastRemoteScan;
+    }
+
+    synchronized void setLastRemoteScan(long lastRemoteScan) {
+        this.lastRemoteScan = lastRemoteScan;
+        modified = true;
+    }
+
+    /**
+     * Returns the {@link RemoteChangeFeed} cursor designating the state of remote the manifest
+     * is up to date with, or null if there is none
+     */
+    synchronized String getChangeCursor() {
+        return changeCursor;
+    }
+
+    synchronized void setChangeCursor(String changeCursor) {
+        this.changeCursor = changeCursor;
+        modified = true;
+    }
+
+    /**
+     * Write the manifest to disk if it changed since it was loaded or last saved. The previous
+     * copy is only replaced once the new one is completely written.
+     */
+    synchronized void save() throws IOException {
+        if (!modified)
+            return;
+
+        File temporaryFile = new File(manifestFile.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(outputStream, UTF_8)));
+        try {
+            writer.beginObject();
+            writer.name("last-remote-scan").value(lastRemoteScan);
+            if (changeCursor != null)
+                writer.name("change-cursor").value(changeCursor);
+            writer.name("entries").beginArray();
+            for (Entry entry : entries.values()) {
+                entry.write(writer);
+            }
+            writer.endArray();
+            writer.name("tombstones").beginArray();
+            for (Entry tombstone : tombstones.values()) {
+                tombstone.write(writer);
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+            outputStream.getFD().sync();
+        } finally {
+            writer.close();
+        }
+
+        if (!temporaryFile.renameTo(manifestFile))
+            throw new IOException("Couldn't replace sync manifest");
+        modified = false;
+    }
+
+    private void read() throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(manifestFile), UTF_8)));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("last-remote-scan")) {
+                    lastRemoteScan = reader.nextLong();
+                } else if (name.equals("change-cursor")) {
+                    changeCursor = reader.nextString();
+                } else if (name.equals("entries")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Entry entry = Entry.read(reader);
+                        entries.put(entry.path, entry);
+                    }
+                    reader.endArray();
+                } else if (name.equals("tombstones")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Entry tombstone = Entry.read(reader);
+                        tombstones.put(tombstone.path, tombstone);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * State of a single synced file or folder. Size, modification time and hash describe the
+     * local copy; the revision is the one reported by the backend for the remote copy, or null if
+     * it isn't known yet.
+     */
+    static class Entry {
+        final String path;
+        final boolean folder;
+        final long size;
+        final long modifiedTime;
+        final String hash;
+        final String remoteId;
+        final String revision;
+
+        Entry(String path, boolean folder, long size, long modifiedTime, String hash,
+              String remoteId, String revision) {
+            this.path = path;
+            this.folder = folder;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+            this.remoteId = remoteId;
+            this.revision = revision;
+        }
+
+        static Entry forFolder(String path, RemoteFile remoteFolder) {
+            return new Entry(path, true, 0, 0, null, remoteFolder.getId(), null);
+        }
+
+        /**
+         * @param hash digest of the local file contents, or null if it wasn't computed
+         */
+        static Entry forFile(String path, File localFile, RemoteFile remoteFile, String hash) {
+            return new Entry(path, false, localFile.length(), localFile.lastModified(), hash,
+                    remoteFile.getId(), remoteFile.getRevision());
+        }
+
+        /**
+         * Returns true if the local file is unchanged since this entry was recorded
+         */
+        boolean matchesLocal(File localFile) {
+            return localFile.length() == size && localFile.lastModified() == modifiedTime;
+        }
+
+        /**
+         * Returns true if the remote file is known to be unchanged since this entry was recorded
+         */
+        boolean matchesRemote(RemoteFile remoteFile) {
+            return remoteFile.getId().equals(remoteId) && revision != null
+                    && revision.equals(remoteFile.getRevision());
+        }
+
+        void write(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("path").value(path);
+            writer.name("folder").value(folder);
+            writer.name("size").value(size);
+            writer.name("modified").value(modifiedTime);
+            if (hash != null)
+                writer.name("hash").value(hash);
+            writer.name("remote-id").value(remoteId);
+            if (revision != null)
+                writer.name("revision").value(revision);
+            writer.endObject();
+        }
+
+        static Entry read(JsonReader reader) throws IOException {
+            String path = null;
+            boolean folder = false;
+            long size = 0;
+            long modifiedTime = 0;
+            String hash = null;
+            String remoteId = null;
+            String revision = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "path":
+                        path = reader.nextString();
+                        break;
+                    case "folder":
+                        folder = reader.nextBoolean();
+                        break;
+                    case "size":
+                        size = reader.nextLong();
+                        break;
+                    case "modified":
+                        modifiedTime = reader.nextLong();
+                        break;
+                    case "hash":
+                        hash = reader.nextString();
+                        break;
+                    case "remote-id":
+                        remoteId = reader.nextString();
+                        break;
+                    case "revision":
+                        revision = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (path == null || remoteId == null)
+                throw new IOException("Manifest entry is missing its path or remote id");
+            return new Entry(path, folder, size, modifiedTime, hash, remoteId, revision);
+        }
+    }
+}
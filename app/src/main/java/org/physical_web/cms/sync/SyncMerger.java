@@ -0,0 +1,30 @@
+package org.physical_web.cms.sync;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Combines the edits made to a file on both sides since the last pass, instead of keeping the
+ * most recently modified copy whole. The version both sides had at the last pass is kept as the
+ * merge base, so only the changes each side made need to be combined.
+ */
+public interface SyncMerger {
+    /**
+     * Returns true if concurrent edits of the file at path should be merged
+     *
+     * @param path path of the file relative to the synced folder, with '/' separators
+     */
+    boolean canMerge(String path);
+
+    /**
+     * Write the merge of the local and remote versions of a file into merged
+     *
+     * @param base        version of the file both sides had at the last pass
+     * @param preferLocal if true, the local version wins values both sides changed differently,
+     *                    otherwise the remote one does
+     * @return false if the versions can't be merged, in which case the most recently modified
+     * copy replaces the other
+     */
+    boolean merge(File base, File local, File remote, File merged, boolean preferLocal)
+            throws IOException;
+}
@@ -0,0 +1,380 @@
+package org.physical_web.cms.sync;
+
+import android.util.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measurements of the current, or last, synchronization pass of a {@link TreeSynchronizer}:
+ * wall time of each phase, time spent hashing and transferring across all threads, files and
+ * bytes moved in each direction, backend calls with their latency, retries, and progress through
+ * the queued transfers.
+ * <p>
+ * Counters are updated live while the pass runs and may be read from any thread. They are reset
+ * when the next pass starts.
+ */
+public class SyncMetrics {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Consecutive parts of a pass. Hashing and transfers overlap the scan, they are measured
+     * separately by {@link #getHashingMillis()} and {@link #getTransferMillis()}.
+     */
+    public enum Phase {
+        // comparing the local tree with the manifest and listing remote folders
+        SCANNING,
+        // waiting for the transfers still queued once the scan is over
+        TRANSFERRING,
+        // writing the manifest
+        SAVING
+    }
+
+    /**
+     * Kinds of backend calls that are counted separately
+     */
+    public enum RemoteCall {
+        PREPARE, LIST_CHILDREN, OPEN_FILE, CREATE_FOLDER, CREATE_FILE, UPDATE_FILE, DELETE,
+        SET_MODIFIED_TIME, GET_STAGED_LENGTH, GET_CHUNKS, PATCH_FILE, GET_START_CURSOR, GET_CHANGES
+    }
+
+    /**
+     * Upper bounds, in milliseconds, of the backend call latency histogram buckets. One more
+     * bucket counts the calls slower than the last bound.
+     */
+    public static final long[] LATENCY_BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private volatile long passStart;
+    private volatile long passEnd;
+    private volatile boolean failed;
+    private volatile Phase currentPhase;
+    private volatile long phaseStart;
+    private final AtomicLongArray phaseMillis = new AtomicLongArray(Phase.values().length);
+
+    private final AtomicLong hashingMillis = new AtomicLong();
+    private final AtomicLong transferMillis = new AtomicLong();
+    private final AtomicLong retryWaitMillis = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong filesUploaded = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong filesDownloaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    private final AtomicLongArray remoteCalls = new AtomicLongArray(RemoteCall.values().length);
+    private final AtomicLongArray remoteCallMillis =
+            new AtomicLongArray(RemoteCall.values().length);
+    private final AtomicLongArray latencyHistogram =
+            new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+    private final AtomicLong queuedFiles = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong finishedFiles = new AtomicLong();
+    private final AtomicLong finishedBytes = new AtomicLong();
+
+    /**
+     * Reset every counter and start timing a new pass
+     */
+    synchronized void startPass() {
+        passStart = System.currentTimeMillis();
+        passEnd = 0;
+        failed = false;
+        currentPhase = null;
+        for (int i = 0; i < phaseMillis.length(); i++) {
+            phaseMillis.set(i, 0);
+        }
+
+        hashingMillis.set(0);
+        transferMillis.set(0);
+        retryWaitMillis.set(0);
+        retries.set(0);
+        filesUploaded.set(0);
+        bytesUploaded.set(0);
+        filesDownloaded.set(0);
+        bytesDownloaded.set(0);
+        for (int i = 0; i < remoteCalls.length(); i++) {
+            remoteCalls.set(i, 0);
+            remoteCallMillis.set(i, 0);
+        }
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            latencyHistogram.set(i, 0);
+        }
+        queuedFiles.set(0);
+        queuedBytes.set(0);
+        finishedFiles.set(0);
+        finishedBytes.set(0);
+    }
+
+    /**
+     * End the current phase, if any, and start timing the given one
+     */
+    synchronized void startPhase(Phase phase) {
+        long now = System.currentTimeMillis();
+        if (currentPhase != null)
+            phaseMillis.addAndGet(currentPhase.ordinal(), now - phaseStart);
+        currentPhase = phase;
+        phaseStart = now;
+    }
+
+    synchronized void endPass(boolean success) {
+        startPhase(null);
+        passEnd = System.currentTimeMillis();
+        failed = !success;
+    }
+
+    void recordRemoteCall(RemoteCall call, long millis) {
+        remoteCalls.incrementAndGet(call.ordinal());
+        remoteCallMillis.addAndGet(call.ordinal(), millis);
+
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram.incrementAndGet(bucket);
+    }
+
+    void recordHashing(long millis) {
+        hashingMillis.addAndGet(millis);
+    }
+
+    void recordRetry(long waitMillis) {
+        retries.incrementAndGet();
+        retryWaitMillis.addAndGet(waitMillis);
+    }
+
+    void recordUpload(long bytes) {
+        filesUploaded.incrementAndGet();
+        bytesUploaded.addAndGet(bytes);
+    }
+
+    void recordDownload(long bytes) {
+        filesDownloaded.incrementAndGet();
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    /**
+     * Count a file that may need to be moved, of the given expected size, towards progress
+     */
+    void transferQueued(long expectedBytes) {
+        queuedFiles.incrementAndGet();
+        queuedBytes.addAndGet(expectedBytes);
+    }
+
+    /**
+     * Mark a queued file as done, whether or not it actually had to be moved
+     */
+    void transferFinished(long expectedBytes, long millis) {
+        finishedFiles.incrementAndGet();
+        finishedBytes.addAndGet(expectedBytes);
+        transferMillis.addAndGet(millis);
+    }
+
+    public boolean isRunning() {
+        return passStart != 0 && passEnd == 0;
+    }
+
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the wall time of the pass so far, or of the whole pass once it ended
+     */
+    public long getDurationMillis() {
+        if (passStart == 0)
+            return 0;
+        return (passEnd != 0 ? passEnd : System.currentTimeMillis()) - passStart;
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        long millis = phaseMillis.get(phase.ordinal());
+        if (phase == currentPhase)
+            millis += System.currentTimeMillis() - phaseStart;
+        return millis;
+    }
+
+    /**
+     * Returns the time spent computing digests of local files, summed over all threads
+     */
+    public long getHashingMillis() {
+        return hashingMillis.get();
+    }
+
+    /**
+     * Returns the time spent running transfers, summed over all threads
+     */
+    public long getTransferMillis() {
+        return transferMillis.get();
+    }
+
+    /**
+     * Returns the time transfers spent waiting before a retry, summed over all threads
+     */
+    public long getRetryWaitMillis() {
+        return retryWaitMillis.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getFilesUploaded() {
+        return filesUploaded.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getFilesDownloaded() {
+        return filesDownloaded.get();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public long getRemoteCalls(RemoteCall call) {
+        return remoteCalls.get(call.ordinal());
+    }
+
+    public long getRemoteCallMillis(RemoteCall call) {
+        return remoteCallMillis.get(call.ordinal());
+    }
+
+    /**
+     * Returns the total number of backend calls made during the pass
+     */
+    public long getRemoteCalls() {
+        long total = 0;
+        for (int i = 0; i < remoteCalls.length(); i++) {
+            total += remoteCalls.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of backend calls that took at most {@code LATENCY_BUCKETS[bucket]}
+     * milliseconds, and more than the previous bound. The bucket past the last bound counts
+     * every slower call.
+     */
+    public long getLatencyCount(int bucket) {
+        return latencyHistogram.get(bucket);
+    }
+
+    public long getQueuedFiles() {
+        return queuedFiles.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getFinishedFiles() {
+        return finishedFiles.get();
+    }
+
+    public long getFinishedBytes() {
+        return finishedBytes.get();
+    }
+
+    /**
+     * Returns the estimated time until all transfers queued so far are done, based on the
+     * throughput since the pass started, or -1 if it can't be estimated yet
+     */
+    public long getEstimatedMillisRemaining() {
+        long finished = finishedBytes.get();
+        long remaining = queuedBytes.get() - finished;
+        if (remaining <= 0)
+            return 0;
+        if (finished == 0)
+            return -1;
+        return remaining * getDurationMillis() / finished;
+    }
+
+    /**
+     * Write every measurement to a JSON file, replacing it
+     */
+    public void writeTo(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(temporaryFile), UTF_8)));
+        writer.setIndent("  ");
+        try {
+            writer.beginObject();
+            writer.name("started").value(passStart);
+            writer.name("duration").value(getDurationMillis());
+            writer.name("state").value(isRunning() ? "running" : (failed ? "failed" : "complete"));
+
+            writer.name("phases").beginObject();
+            for (Phase phase : Phase.values()) {
+                writer.name(jsonName(phase)).value(getPhaseMillis(phase));
+            }
+            writer.endObject();
+            writer.name("hashing").value(getHashingMillis());
+            writer.name("transferring").value(getTransferMillis());
+            writer.name("waiting-to-retry").value(getRetryWaitMillis());
+            writer.name("retries").value(getRetries());
+
+            writer.name("uploaded").beginObject();
+            writer.name("files").value(getFilesUploaded());
+            writer.name("bytes").value(getBytesUploaded());
+            writer.endObject();
+            writer.name("downloaded").beginObject();
+            writer.name("files").value(getFilesDownloaded());
+            writer.name("bytes").value(getBytesDownloaded());
+            writer.endObject();
+
+            writer.name("remote-calls").beginObject();
+            for (RemoteCall call : RemoteCall.values()) {
+                writer.name(jsonName(call)).beginObject();
+                writer.name("count").value(getRemoteCalls(call));
+                writer.name("millis").value(getRemoteCallMillis(call));
+                writer.endObject();
+            }
+            writer.endObject();
+            writer.name("latency-histogram").beginArray();
+            for (int bucket = 0; bucket <= LATENCY_BUCKETS.length; bucket++) {
+                writer.beginObject();
+                if (bucket < LATENCY_BUCKETS.length)
+                    writer.name("up-to").value(LATENCY_BUCKETS[bucket]);
+                writer.name("count").value(getLatencyCount(bucket));
+                writer.endObject();
+            }
+            writer.endArray();
+
+            writer.name("progress").beginObject();
+            writer.name("queued-files").value(getQueuedFiles());
+            writer.name("queued-bytes").value(getQueuedBytes());
+            writer.name("finished-files").value(getFinishedFiles());
+            writer.name("finished-bytes").value(getFinishedBytes());
+            writer.name("eta").value(getEstimatedMillisRemaining());
+            writer.endObject();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+
+        if (!temporaryFile.renameTo(file))
+            throw new IOException("Couldn't write sync metrics");
+    }
+
+    @Override
+    public String toString() {
+        return "Sync pass of " + getDurationMillis() + " ms: "
+                + getFilesUploaded() + " files (" + getBytesUploaded() + " bytes) up, "
+                + getFilesDownloaded() + " files (" + getBytesDownloaded() + " bytes) down, "
+                + getRemoteCalls() + " remote calls, " + getRetries() + " retries";
+    }
+
+    // LIST_CHILDREN becomes list-children
+    private static String jsonName(Enum<?> value) {
+        return value.name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,12 @@
+package org.physical_web.cms.sync;
+
+/**
+ * Decides which {@link SyncLane} the transfer of a file goes into. Called from sync threads for
+ * every queued transfer, so it should answer without blocking.
+ */
+public interface SyncPrioritizer {
+    /**
+     * @param path path of the file relative to the synced folder, with '/' separators
+     */
+    SyncLane laneFor(String path);
+}
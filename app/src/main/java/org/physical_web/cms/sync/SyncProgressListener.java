@@ -0,0 +1,9 @@
+package org.physical_web.cms.sync;
+
+/**
+ * Receives the measurements of a running synchronization pass as it progresses, and once more
+ * when it ends. Called from sync threads, never from the UI thread.
+ */
+public interface SyncProgressListener {
+    void syncProgressChanged(SyncMetrics metrics);
+}
@@ -0,0 +1,198 @@
+package org.physical_web.cms.sync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the transfers of a single synchronization pass on a bounded pool of worker threads.
+ * Whatever a transfer depends on, such as the remote folder it uploads into, must exist before
+ * it is submitted. Call {@link #awaitCompletion()} to wait for the pass, then
+ * {@link #shutdown()}.
+ * <p>
+ * Waiting transfers are started by {@link SyncLane} first, then smallest first, then in the order
+ * they were submitted.
+ */
+class TransferScheduler {
+    private static final String TAG = TransferScheduler.class.getSimpleName();
+
+    /**
+     * A unit of work that moves data to or from the backend
+     */
+    interface Transfer {
+        /**
+         * Perform the transfer, returning the number of bytes moved
+         */
+        long run() throws IOException;
+    }
+
+    // a queued transfer, ordered by its priority
+    private static class PrioritizedTransfer extends FutureTask<Long>
+            implements Comparable<PrioritizedTransfer> {
+        private final SyncLane lane;
+        private final long expectedBytes;
+        private final long sequence;
+
+        PrioritizedTransfer(Callable<Long> callable, SyncLane lane, long expectedBytes,
+                            long sequence) {
+            super(callable);
+            this.lane = lane;
+            this.expectedBytes = expectedBytes;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTransfer other) {
+            if (lane != other.lane)
+                return lane.compareTo(other.lane);
+            if (expectedBytes != other.expectedBytes)
+                return expectedBytes < other.expectedBytes ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong submittedTransfers = new AtomicLong();
+    private final List<Future<Long>> pendingTransfers = new ArrayList<>();
+    private final AtomicLong completedTransfers = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final long startTime;
+
+    /**
+     * @param concurrency maximum number of transfers running at the same time
+     */
+    TransferScheduler(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Queue a transfer in the {@link SyncLane#BULK} lane, to be run once a worker is free
+     */
+    void submit(Transfer transfer) {
+        submit(transfer, SyncLane.BULK, 0);
+    }
+
+    /**
+     * Queue a transfer, to be run once a worker is free and no transfer with a higher priority
+     * is waiting
+     *
+     * @param expectedBytes size of the transfer, smaller ones run first within a lane
+     */
+    void submit(final Transfer transfer, SyncLane lane, long expectedBytes) {
+        PrioritizedTransfer future = new PrioritizedTransfer(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                long bytes = transfer.run();
+                completedTransfers.incrementAndGet();
+                transferredBytes.addAndGet(bytes);
+                return bytes;
+            }
+        }, lane, expectedBytes, submittedTransfers.getAndIncrement());
+
+        synchronized (pendingTransfers) {
+            pendingTransfers.add(future);
+        }
+        // not submit(), which would wrap the task in one that can't be ordered
+        executor.execute(future);
+    }
+
+    /**
+     * Block until every submitted transfer is done. If any of them failed, the ones that didn't
+     * start yet are cancelled, the running ones are waited for and the first failure is thrown.
+     */
+    void awaitCompletion() throws IOException {
+        IOException firstFailure = null;
+
+        for (Future<Long> future : snapshotPendingTransfers()) {
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                // never started because of an earlier failure
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelPendingTransfers();
+                throw new IOException("Interrupted while waiting for transfers");
+            } catch (ExecutionException e) {
+                if (firstFailure == null) {
+                    firstFailure = asIOException(e.getCause());
+                    cancelPendingTransfers();
+                }
+            }
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        Log.d(TAG, "Transferred " + completedTransfers.get() + " files, "
+                + transferredBytes.get() + " bytes in " + elapsed + " ms ("
+                + (transferredBytes.get() / elapsed) + " KB/s)");
+
+        if (firstFailure != null)
+            throw firstFailure;
+    }
+
+    /**
+     * Stop the worker threads, abandoning any transfer that hasn't started yet. Returns once the
+     * running transfers finished, so nothing they record is lost when the pass is saved.
+     */
+    void shutdown() {
+        cancelPendingTransfers();
+        executor.shutdown();
+
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // running transfers aren't interrupted, they still have to be waited for
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    long getCompletedTransfers() {
+        return completedTransfers.get();
+    }
+
+    long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    private List<Future<Long>> snapshotPendingTransfers() {
+        synchronized (pendingTransfers) {
+            return new ArrayList<>(pendingTransfers);
+        }
+    }
+
+    // cancel the transfers still waiting for a worker, leaving the running ones to finish
+    private void cancelPendingTransfers() {
+        for (Future<Long> future : snapshotPendingTransfers()) {
+            if (executor.getQueue().remove(future))
+                future.cancel(false);
+        }
+    }
+
+    private static IOException asIOException(Throwable cause) {
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        return new IOException(cause);
+    }
+}
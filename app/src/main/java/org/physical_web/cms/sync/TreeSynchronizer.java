@@ -0,0 +1,1381 @@
+package org.physical_web.cms.sync;
+
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.MiscFile;
+
+/**
+ * Synchronizes a local folder, recursively, with the root folder of a {@link SyncBackend}.
+ * Any files and folders found only locally will be uploaded. Any files and folders only found on
+ * remote will be downloaded. Files found in both folders are compared against the
+ * {@link SyncManifest} written at the end of the previous pass: a copy that changed on one side
+ * only replaces the other, and when both changed (or there is no record) the most recently
+ * modified version wins, unless both have the same modification time, in which case neither
+ * will be changed. Files a {@link SyncMerger} can merge are the exception: when both sides
+ * changed, the remote copy is downloaded and merged with the local one against the version of
+ * the last pass, and the result replaces both.
+ * <p>
+ * Before anything is transferred, the checksum reported by the backend is compared with a digest
+ * of the local copy, cached in the manifest. Copies with the same contents only have their
+ * modification times aligned, so timestamp drift (after a reinstall, a restore or a clock
+ * change) doesn't move whole files.
+ * <p>
+ * Listing every remote folder is expensive, so it is only done on the first pass, when forced,
+ * or once {@link #REMOTE_SCAN_INTERVAL} has elapsed. Other passes compare the local tree against
+ * the manifest and only visit folders that changed locally. When the caller already knows where
+ * changes happened, {@link #synchronize(Collection)} limits even that comparison to those
+ * subtrees.
+ * <p>
+ * A backend that is also a {@link RemoteChangeFeed} makes periodic scans unnecessary: the
+ * manifest keeps a cursor from the last full scan, and every pass asks for the remote changes
+ * since, listing only the folders they touched alongside those that changed locally. Picking up
+ * remote changes then costs in proportion to the changes, not to the size of the tree. When the
+ * cursor expires, or a change can't be placed in the known tree, the next pass lists everything.
+ * <p>
+ * Deletions are propagated both ways. A file or folder recorded in the manifest but gone locally
+ * was deleted locally: it becomes a tombstone, and its remote copy is deleted, unless it changed
+ * remotely since. One recorded but gone from remote was deleted remotely, and the local copy is
+ * deleted unless it changed locally since. Deletions made by the app are recorded right away
+ * with {@link #recordDeletion(File)}. Pending tombstones are flushed together, in parallel, at
+ * the start of every pass.
+ * <p>
+ * Files are moved by {@link StagedTransfers}, so an interrupted download never replaces a local
+ * file with a truncated one, and large transfers resume from their last checkpoint.
+ * <p>
+ * Every transfer and manifest entry of a pass is logged in a {@link SyncJournal} until the
+ * manifest is saved. When a pass is cut short by the process dying, the next one first carries out
+ * the transfers the journal shows were planned but not finished, without walking the tree again.
+ * <p>
+ * Folders are walked, created and listed on the calling thread, while uploads, downloads and the
+ * deletes that go with them run on a {@link TransferScheduler} of
+ * {@link #setTransferConcurrency(int)} threads. Each folder's files are queued before its
+ * sub-folders are walked, and a {@link SyncPrioritizer} sorts queued transfers into
+ * {@link SyncLane}s, so small files that describe the tree don't wait behind bulk media. Each
+ * lane may be given a bandwidth cap.
+ * <p>
+ * Every pass is measured in {@link SyncMetrics}, reported to a {@link SyncProgressListener} as
+ * transfers complete and written to the state folder once the pass ends.
+ * <p>
+ * A pass given a {@link CancellationSignal} stops at the next folder or transfer once it is
+ * cancelled. Transfers already running finish, and the manifest keeps what the pass did.
+ * <p>
+ * Local writes are tagged while they happen, so a file observer watching the synced folder
+ * during a pass can drop the events they cause with {@link #isOwnChange(File)}.
+ * <p>
+ * Instances are not thread safe, only one {@link #synchronize()} may run at a time.
+ */
+public class TreeSynchronizer {
+    private static final String TAG = TreeSynchronizer.class.getSimpleName();
+    private static final String MANIFEST_FILE_NAME = "sync-manifest.json";
+    private static final String STAGING_FOLDER_NAME = "staging";
+    private static final String METRICS_FILE_NAME = "sync-metrics.json";
+    private static final String JOURNAL_FILE_NAME = "sync-journal.log";
+    private static final String MERGE_BASE_FOLDER_NAME = "merge-base";
+    // minimum time between two progress reports while transfers complete
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    /**
+     * Maximum time, in milliseconds, between two passes that list every remote folder
+     */
+    public static final long REMOTE_SCAN_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Number of transfers run in parallel unless changed with {@link #setTransferConcurrency(int)}
+     */
+    public static final int DEFAULT_TRANSFER_CONCURRENCY = 4;
+
+    // walk files before folders, so they are queued before anything deeper in the tree
+    private static final Comparator<File> FILES_FIRST = new Comparator<File>() {
+        @Override
+        public int compare(File first, File second) {
+            return Boolean.compare(!first.isFile(), !second.isFile());
+        }
+    };
+    // leave out files that are only there while the app writes another one atomically, they are
+    // gone by the time a transfer would read them
+    private static final FileFilter SYNCED_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return !MiscFile.isTemporaryFileName(file.getName());
+        }
+    };
+    private static final Comparator<RemoteFile> REMOTE_FILES_FIRST = new Comparator<RemoteFile>() {
+        @Override
+        public int compare(RemoteFile first, RemoteFile second) {
+            return Boolean.compare(first.isFolder(), second.isFolder());
+        }
+    };
+
+    private final File localRoot;
+    private final SyncBackend backend;
+    // null if the backend doesn't report changes
+    private final RemoteChangeFeed changeFeed;
+    private final SyncManifest manifest;
+    private final StagedTransfers stagedTransfers;
+    private final SyncJournal journal;
+    private final MergeBaseStore mergeBases;
+    private final SelfWriteFilter selfWrites = new SelfWriteFilter();
+    // operations left unfinished by an interrupted pass, null once they were carried out
+    private List<SyncJournal.Operation> interruptedOperations;
+    private final SyncMetrics metrics = new SyncMetrics();
+    private final File metricsFile;
+    private final AtomicLong lastProgressReport = new AtomicLong();
+    private volatile SyncProgressListener progressListener;
+    private volatile SyncPrioritizer prioritizer;
+    private volatile SyncMerger merger;
+    private final Map<SyncLane, BandwidthLimiter> bandwidthLimiters =
+            new EnumMap<>(SyncLane.class);
+
+    private int transferConcurrency = DEFAULT_TRANSFER_CONCURRENCY;
+    private TransferScheduler transfers;
+    // folders listed by the running pass while it follows remote changes, or null
+    private Set<String> listedFolders;
+    // signal of the running pass, or null
+    private volatile CancellationSignal cancellation;
+
+    /**
+     * @param localRoot   local folder to synchronize
+     * @param backend     remote store whose root folder mirrors localRoot
+     * @param stateFolder private folder, outside of localRoot, to persist sync state in
+     */
+    public TreeSynchronizer(File localRoot, SyncBackend backend, File stateFolder) {
+        this.localRoot = localRoot;
+        this.backend = InstrumentedSyncBackend.wrap(backend, metrics);
+        this.changeFeed = backend instanceof RemoteChangeFeed
+                ? InstrumentedSyncBackend.wrapChangeFeed((RemoteChangeFeed) backend, metrics)
+                : null;
+        this.manifest = SyncManifest.load(new File(stateFolder, MANIFEST_FILE_NAME));
+        this.stagedTransfers = new StagedTransfers(new File(stateFolder, STAGING_FOLDER_NAME),
+                this.backend, metrics);
+        this.metricsFile = new File(stateFolder, METRICS_FILE_NAME);
+        this.mergeBases = new MergeBaseStore(new File(stateFolder, MERGE_BASE_FOLDER_NAME));
+
+        File journalFile = new File(stateFolder, JOURNAL_FILE_NAME);
+        this.journal = new SyncJournal(journalFile);
+        if (journalFile.exists())
+            this.interruptedOperations = journal.recover(manifest);
+    }
+
+    public SyncBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Returns the measurements of the running pass, or of the last one. They are also written
+     * to sync-metrics.json in the state folder at the end of every pass.
+     */
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns true if a file observer event about the given local file or folder was caused by
+     * this synchronizer writing to the synced folder, rather than by a change to sync. Events
+     * can arrive a little after the pass wrote the file, or after the pass ended.
+     */
+    public boolean isOwnChange(File file) {
+        return selfWrites.isSelfWrite(file);
+    }
+
+    /**
+     * Set a listener notified as the transfers of a pass complete, and when the pass ends
+     */
+    public void setProgressListener(SyncProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Set what decides the {@link SyncLane} of every transfer. Without one, everything goes into
+     * {@link SyncLane#BULK}, and only size orders transfers.
+     */
+    public void setPrioritizer(SyncPrioritizer prioritizer) {
+        this.prioritizer = prioritizer;
+    }
+
+    /**
+     * Set what merges files changed on both sides. Merge bases are only kept from then on, a file
+     * is merged once it went through a pass with the merger set.
+     */
+    public void setMerger(SyncMerger merger) {
+        this.merger = merger;
+    }
+
+    /**
+     * Cap the combined rate of the uploads and downloads of a lane. Takes effect for transfers
+     * that start afterwards.
+     *
+     * @param bytesPerSecond maximum rate, or 0 to remove the cap
+     */
+    public void setBandwidthLimit(SyncLane lane, long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Bandwidth limit can't be negative");
+
+        synchronized (bandwidthLimiters) {
+            if (bytesPerSecond == 0)
+                bandwidthLimiters.remove(lane);
+            else
+                bandwidthLimiters.put(lane, new BandwidthLimiter(bytesPerSecond));
+        }
+    }
+
+    /**
+     * Set the maximum number of uploads and downloads that run at the same time. Takes effect
+     * from the next pass.
+     */
+    public void setTransferConcurrency(int transferConcurrency) {
+        if (transferConcurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.transferConcurrency = transferConcurrency;
+    }
+
+    /**
+     * Run a synchronization pass, blocking until it is done. Remote folders are only all listed
+     * if no such scan happened in the last {@link #REMOTE_SCAN_INTERVAL}, or not at all once the
+     * backend reports remote changes.
+     *
+     * @throws IOException if the backend failed, in which case the pass is incomplete
+     */
+    public void synchronize() throws IOException {
+        synchronize(false);
+    }
+
+    /**
+     * Run a synchronization pass, blocking until it is done.
+     *
+     * @param forceRemoteScan list every remote folder, picking up remote changes even in
+     *                        folders that didn't change locally
+     * @throws IOException if the backend failed, in which case the pass is incomplete
+     */
+    public void synchronize(boolean forceRemoteScan) throws IOException {
+        synchronize(forceRemoteScan, null);
+    }
+
+    /**
+     * Like {@link #synchronize(boolean)}, stopping early once signal is cancelled
+     *
+     * @throws InterruptedIOException if the pass was cancelled
+     */
+    public void synchronize(boolean forceRemoteScan, CancellationSignal signal)
+            throws IOException {
+        cancellation = signal;
+        try {
+            resumeInterruptedPass();
+            long passStart = System.currentTimeMillis();
+            boolean remoteScanDue = !canFollowChanges()
+                    && passStart - manifest.getLastRemoteScan() > REMOTE_SCAN_INTERVAL;
+
+            runPass(forceRemoteScan || remoteScanDue || manifest.isEmpty(),
+                    Collections.singletonList(""));
+        } finally {
+            cancellation = null;
+        }
+    }
+
+    /**
+     * Run a synchronization pass that only visits the given local folders and what they
+     * contain, blocking until it is done. Remote changes elsewhere are only picked up if the
+     * backend reports them.
+     *
+     * @param changedSubtrees local folders, inside the synced folder, where changes happened
+     * @throws IOException if the backend failed, in which case the pass is incomplete
+     */
+    public void synchronize(Collection<File> changedSubtrees) throws IOException {
+        synchronize(changedSubtrees, null);
+    }
+
+    /**
+     * Like {@link #synchronize(Collection)}, stopping early once signal is cancelled
+     *
+     * @throws InterruptedIOException if the pass was cancelled
+     */
+    public void synchronize(Collection<File> changedSubtrees, CancellationSignal signal)
+            throws IOException {
+        cancellation = signal;
+        try {
+            resumeInterruptedPass();
+            if (manifest.isEmpty()) {
+                // nothing to compare against yet
+                runPass(true, Collections.singletonList(""));
+                return;
+            }
+
+            Set<String> scope = new HashSet<>();
+            for (File subtree : changedSubtrees) {
+                scope.add(closestKnownFolder(relativePath(subtree)));
+            }
+            runPass(false, outermostPaths(scope));
+        } finally {
+            cancellation = null;
+        }
+    }
+
+    // stop the pass if it was cancelled
+    private void checkCancelled() throws InterruptedIOException {
+        CancellationSignal signal = cancellation;
+        if (signal != null && signal.isCanceled())
+            throw new InterruptedIOException("Sync cancelled");
+    }
+
+    // check if the remote changes since the last pass can be asked for
+    private boolean canFollowChanges() {
+        return changeFeed != null && manifest.getChangeCursor() != null;
+    }
+
+    // synchronize the given subtrees, either by listing all their remote folders or only the
+    // ones that changed locally or, as the backend reports, remotely
+    private void runPass(boolean remoteScan, List<String> scope) throws IOException {
+        Log.v(TAG, "Starting synchronization of " + localRoot.getPath() + ", scope " + scope);
+
+        long passStart = System.currentTimeMillis();
+        transfers = new TransferScheduler(transferConcurrency);
+        metrics.startPass();
+        metrics.startPhase(SyncMetrics.Phase.SCANNING);
+        reportProgress(true);
+
+        boolean success = false;
+        try {
+            String changeCursor = manifest.getChangeCursor();
+            RemoteChanges remoteChanges = null;
+            if (!remoteScan && canFollowChanges()) {
+                backend.prepare();
+                remoteChanges = changeFeed.getChangesSince(changeCursor);
+                if (remoteChanges == null) {
+                    Log.i(TAG, "Change cursor expired, listing every remote folder");
+                    remoteScan = true;
+                }
+            } else if (remoteScan) {
+                backend.prepare();
+            }
+            flushTombstones();
+
+            if (remoteScan) {
+                // anything changed while listing is reported after this cursor
+                changeCursor = changeFeed != null ? changeFeed.getStartCursor() : null;
+                syncFolders(localRoot, "", backend.getRootFolder(), true);
+                manifest.setLastRemoteScan(passStart);
+                stagedTransfers.discardStale();
+            } else {
+                List<String> changedFolders = findLocallyChangedFolders(scope);
+                Log.v(TAG, changedFolders.size() + " folders changed locally");
+
+                List<RemoteChange> changes = remoteChanges != null
+                        ? remoteChanges.getChanges() : Collections.<RemoteChange>emptyList();
+                if (!syncChangedFolders(changedFolders, changes)) {
+                    // list everything next time instead
+                    changeCursor = null;
+                    manifest.setLastRemoteScan(0);
+                } else if (remoteChanges != null) {
+                    changeCursor = remoteChanges.getCursor();
+                }
+            }
+            journal.walkComplete(manifest.getLastRemoteScan());
+
+            metrics.startPhase(SyncMetrics.Phase.TRANSFERRING);
+            transfers.awaitCompletion();
+            // only move past changes once they are all carried out
+            if (changeCursor == null ? manifest.getChangeCursor() != null
+                    : !changeCursor.equals(manifest.getChangeCursor()))
+                manifest.setChangeCursor(changeCursor);
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            // the manifest may be out of date with remote, make the next pass check everything
+            manifest.setLastRemoteScan(0);
+            throw e;
+        } finally {
+            transfers.shutdown();
+            metrics.startPhase(SyncMetrics.Phase.SAVING);
+            try {
+                manifest.save();
+                journal.reset();
+            } finally {
+                finishMetrics(success);
+            }
+        }
+    }
+
+    // sync the folders that changed locally, and those the given remote changes touched, each
+    // without visiting its sub-folders. Returns false if some remote changes couldn't be placed
+    // in the known tree.
+    private boolean syncChangedFolders(List<String> locallyChangedFolders,
+                                       List<RemoteChange> remoteChanges) throws IOException {
+        Set<String> changedFolders = new HashSet<>(locallyChangedFolders);
+        List<RemoteChange> unplacedChanges = placeRemoteChanges(remoteChanges, changedFolders);
+        if (!remoteChanges.isEmpty())
+            Log.v(TAG, remoteChanges.size() + " remote changes, " + changedFolders.size()
+                    + " folders to sync");
+
+        listedFolders = new HashSet<>();
+        try {
+            while (!changedFolders.isEmpty()) {
+                // parents first, so folders gone since are skipped
+                List<String> sortedFolders = new ArrayList<>(changedFolders);
+                Collections.sort(sortedFolders);
+                for (String folderPath : sortedFolders) {
+                    SyncManifest.Entry entry = manifest.get(folderPath);
+                    boolean known = folderPath.isEmpty() || (entry != null && entry.folder);
+                    if (!known || !localFile(folderPath).isDirectory()
+                            || listedFolders.contains(folderPath))
+                        continue;
+                    syncFolders(localFile(folderPath), folderPath,
+                            knownRemoteFolder(folderPath), false);
+                }
+                changedFolders.clear();
+
+                // changes inside folders that were new until now can be placed, those that were
+                // downloaded whole need nothing more
+                if (unplacedChanges.isEmpty())
+                    break;
+                unplacedChanges = placeRemoteChanges(unplacedChanges, changedFolders);
+                changedFolders.removeAll(listedFolders);
+            }
+        } finally {
+            listedFolders = null;
+        }
+
+        if (!unplacedChanges.isEmpty())
+            Log.w(TAG, unplacedChanges.size() + " remote changes outside the known tree");
+        return unplacedChanges.isEmpty();
+    }
+
+    private void noteListed(String path) {
+        if (listedFolders != null)
+            listedFolders.add(path);
+    }
+
+    // add the paths of the folders the given remote changes touched, where they were at the
+    // last pass and where they are now, returning the changes whose folder isn't known
+    private List<RemoteChange> placeRemoteChanges(List<RemoteChange> remoteChanges,
+                                                  Set<String> changedFolders) throws IOException {
+        Map<String, String> pathsByRemoteId = manifest.getPathsByRemoteId();
+        pathsByRemoteId.put(backend.getRootFolder().getId(), "");
+        Set<String> removedIds = new HashSet<>();
+        for (RemoteChange change : remoteChanges) {
+            if (change.isRemoved())
+                removedIds.add(change.getRemoteId());
+        }
+
+        List<RemoteChange> unplacedChanges = new ArrayList<>();
+        for (RemoteChange change : remoteChanges) {
+            String knownPath = pathsByRemoteId.get(change.getRemoteId());
+            if (knownPath != null && !knownPath.isEmpty())
+                changedFolders.add(parentPath(knownPath));
+
+            String parentPath = change.getParentId() == null ? null
+                    : pathsByRemoteId.get(change.getParentId());
+            if (parentPath != null)
+                changedFolders.add(parentPath);
+            else if (!change.isRemoved() && !removedIds.contains(change.getParentId()))
+                unplacedChanges.add(change);
+        }
+        return unplacedChanges;
+    }
+
+    // carry out the transfers planned by a pass that was interrupted by the process dying, as
+    // recovered from the journal, and save the manifest it left behind
+    private void resumeInterruptedPass() throws IOException {
+        if (interruptedOperations == null)
+            return;
+        List<SyncJournal.Operation> operations = interruptedOperations;
+        interruptedOperations = null;
+        Log.i(TAG, "Resuming interrupted pass, " + operations.size() + " transfers left");
+
+        transfers = new TransferScheduler(transferConcurrency);
+        metrics.startPass();
+        metrics.startPhase(SyncMetrics.Phase.TRANSFERRING);
+        reportProgress(true);
+
+        boolean success = false;
+        try {
+            for (SyncJournal.Operation operation : operations) {
+                resumeOperation(operation);
+            }
+            transfers.awaitCompletion();
+
+            // the remote changes the interrupted pass found were only all planned if it got to
+            // the end of its walk
+            long remoteScan = journal.getRecoveredRemoteScan();
+            manifest.setLastRemoteScan(remoteScan >= 0 ? remoteScan : 0);
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            manifest.setLastRemoteScan(0);
+            throw e;
+        } finally {
+            transfers.shutdown();
+            metrics.startPhase(SyncMetrics.Phase.SAVING);
+            try {
+                manifest.save();
+                journal.reset();
+            } finally {
+                finishMetrics(success);
+            }
+        }
+    }
+
+    // queue a transfer recovered from the journal again, unless the local side it involves is
+    // gone since. The next pass sorts those out.
+    private void resumeOperation(SyncJournal.Operation operation) {
+        File localFile = localFile(operation.path);
+        if (operation.upload) {
+            if (!localFile.isFile()) {
+                Log.w(TAG, "Dropping upload of vanished " + operation.path);
+                return;
+            }
+            RemoteFile remoteFolder = new RemoteFile(operation.remoteFolderId,
+                    localFile.getParentFile().getName(), true, 0, 0, null, null);
+            queueUpload(localFile, operation.path, remoteFolder, operation.remoteFile, operation);
+        } else {
+            if (!localFile.getParentFile().isDirectory()) {
+                Log.w(TAG, "Dropping download into vanished folder of " + operation.path);
+                return;
+            }
+            queueDownload(operation.remoteFile, operation.path, localFile.getParentFile(),
+                    operation);
+        }
+    }
+
+    // close the measurements of a pass, persist them and tell the listener
+    private void finishMetrics(boolean success) {
+        metrics.endPass(success);
+        Log.i(TAG, metrics.toString());
+        try {
+            metrics.writeTo(metricsFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write sync metrics: " + e);
+        }
+        reportProgress(true);
+    }
+
+    // tell the listener about progress, at most every PROGRESS_INTERVAL_MILLIS unless forced
+    private void reportProgress(boolean force) {
+        SyncProgressListener listener = progressListener;
+        if (listener == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        long lastReport = lastProgressReport.get();
+        if (!force && (now - lastReport < PROGRESS_INTERVAL_MILLIS
+                || !lastProgressReport.compareAndSet(lastReport, now)))
+            return;
+        lastProgressReport.set(now);
+
+        listener.syncProgressChanged(metrics);
+    }
+
+    /**
+     * Record that a local file or folder was deleted, so that the next pass deletes its remote
+     * copy instead of downloading it again. Unlike {@link #deleteRemoteEquivalent(File)}, this
+     * doesn't contact the backend and may be called while a pass runs.
+     *
+     * @param deletedFile local file or folder, already deleted
+     */
+    public void recordDeletion(File deletedFile) throws IOException {
+        if (manifest.addTombstone(relativePath(deletedFile)))
+            manifest.save();
+    }
+
+    /**
+     * Deletes the remote equivalent (the synced version) of a local file or folder. The remote
+     * id recorded by the last pass is used when known, making this a single backend call.
+     *
+     * @param deleteTarget local file whose remote equivalent should be deleted
+     */
+    public void deleteRemoteEquivalent(File deleteTarget) throws IOException {
+        SyncManifest.Entry entry = manifest.get(relativePath(deleteTarget));
+        if (entry != null) {
+            RemoteFile remoteCopy = new RemoteFile(entry.remoteId, deleteTarget.getName(),
+                    entry.folder, entry.modifiedTime, entry.size, entry.revision, null);
+            try {
+                backend.delete(remoteCopy);
+                forget(deleteTarget);
+                return;
+            } catch (IOException e) {
+                // the recorded id is stale if another device re-created the file since
+                Log.w(TAG, "Couldn't delete recorded " + remoteCopy + ", searching by name: " + e);
+            }
+        }
+
+        deleteByTraversal(deleteTarget);
+    }
+
+    // find the remote equivalent of a local file by listing its remote parents, then delete it
+    private void deleteByTraversal(File deleteTarget) throws IOException {
+        List<File> localHierarchy = new LinkedList<>();
+        getFolderHierarchy(deleteTarget, localHierarchy);
+        RemoteFile remoteFolder = traverseHierarchy(backend.getRootFolder(), localHierarchy);
+
+        if (deleteTarget.isFile()) {
+            for (RemoteFile remoteFile : backend.listChildren(remoteFolder)) {
+                if (remoteFile.getTitle().equals(deleteTarget.getName())) {
+                    backend.delete(remoteFile);
+                    forget(deleteTarget);
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Found remote folder, but it doesn't have the file");
+        } else {
+            backend.delete(remoteFolder);
+            forget(deleteTarget);
+        }
+    }
+
+    // synchronize a local folder with its remote equivalent. When not recursive, sub-folders that
+    // exist on both sides are not visited.
+    private void syncFolders(File localFolder, String path, RemoteFile remoteFolder,
+                             boolean recursive) throws IOException {
+        checkCancelled();
+        List<RemoteFile> remoteFiles = new ArrayList<>(backend.listChildren(remoteFolder));
+        noteListed(path);
+        File[] localFiles = localFolder.listFiles(SYNCED_FILES);
+        Arrays.sort(localFiles, FILES_FIRST);
+        Collections.sort(remoteFiles, REMOTE_FILES_FIRST);
+
+        // index both sides by name once, so matching is linear in the size of the folder
+        Map<String, RemoteFile> remoteFilesByName = indexRemoteFiles(remoteFiles);
+        Map<String, File> localFilesByName = indexLocalFiles(localFiles);
+        Set<String> alreadyExaminedFiles = new HashSet<>();
+        pruneTombstones(path, remoteFilesByName);
+        // recorded children gone from both sides would make every later pass find the folder
+        // changed
+        Set<String> presentNames = new HashSet<>(localFilesByName.keySet());
+        presentNames.addAll(remoteFilesByName.keySet());
+        manifest.retainChildren(path, presentNames);
+
+        for (File file : localFiles) {
+            String childPath = childPath(path, file.getName());
+            RemoteFile remoteCopy = remoteFilesByName.get(file.getName());
+
+            if (file.isFile()) {
+                if (remoteCopy != null) {
+                    reconcileFile(file, childPath, remoteCopy, remoteFolder);
+                } else if (deletedRemotely(file, childPath)) {
+                    deleteLocalCopy(file, childPath);
+                } else {
+                    // file in local, but not in remote
+                    uploadFile(file, childPath, remoteFolder);
+                }
+            } else {
+                if (remoteCopy != null) {
+                    visitFolder(file, childPath, remoteCopy, recursive);
+                } else if (deletedRemotely(file, childPath)) {
+                    deleteLocalCopy(file, childPath);
+                } else {
+                    uploadFolder(file, childPath, remoteFolder);
+                }
+            }
+
+            if (remoteCopy != null)
+                alreadyExaminedFiles.add(remoteCopy.getId());
+        }
+
+        Log.v(TAG, "start checking remote files");
+        for (RemoteFile remoteFile : remoteFiles) {
+            if (alreadyExaminedFiles.contains(remoteFile.getId())
+                    || MiscFile.isTemporaryFileName(remoteFile.getTitle()))
+                continue;
+
+            String childPath = childPath(path, remoteFile.getTitle());
+            File localCopy = localFilesByName.get(remoteFile.getTitle());
+            SyncManifest.Entry tombstone = manifest.getTombstone(childPath);
+            if (tombstone != null && tombstone.remoteId.equals(remoteFile.getId())) {
+                // its deletion failed, it is retried with the next tombstones
+                continue;
+            }
+
+            if (!remoteFile.isFolder()) {
+                if (localCopy != null && localCopy.isFile()) {
+                    reconcileFile(localCopy, childPath, remoteFile, remoteFolder);
+                } else if (localCopy == null && deletedLocally(childPath, remoteFile)) {
+                    deleteRemoteCopy(childPath);
+                } else {
+                    downloadFile(remoteFile, childPath, localFolder);
+                }
+            } else {
+                if (localCopy != null && !localCopy.isFile()) {
+                    visitFolder(localCopy, childPath, remoteFile, recursive);
+                } else if (localCopy == null && deletedLocally(childPath, remoteFile)) {
+                    deleteRemoteCopy(childPath);
+                } else {
+                    downloadFolder(remoteFile, childPath, localFolder);
+                }
+            }
+        }
+    }
+
+    // check if a file or folder that only exists on remote was synced before, and is unchanged
+    // on remote since: its local copy was deleted
+    private boolean deletedLocally(String path, RemoteFile remoteCopy) {
+        SyncManifest.Entry entry = manifest.get(path);
+        if (entry == null || entry.folder != remoteCopy.isFolder())
+            return false;
+        return entry.folder ? entry.remoteId.equals(remoteCopy.getId())
+                : entry.matchesRemote(remoteCopy);
+    }
+
+    // check if a file or folder that only exists locally was synced before, and is unchanged
+    // locally since: its remote copy was deleted
+    private boolean deletedRemotely(File localCopy, String path) {
+        SyncManifest.Entry entry = manifest.get(path);
+        if (entry == null || entry.folder == localCopy.isFile())
+            return false;
+        return entry.folder ? unchangedSinceLastPass(localCopy, path)
+                : entry.matchesLocal(localCopy);
+    }
+
+    // check that a local folder holds exactly what the manifest recorded
+    private boolean unchangedSinceLastPass(File folder, String path) {
+        File[] children = folder.listFiles(SYNCED_FILES);
+        if (children == null)
+            return false;
+
+        for (File child : children) {
+            String childPath = childPath(path, child.getName());
+            SyncManifest.Entry entry = manifest.get(childPath);
+            if (entry == null || entry.folder == child.isFile())
+                return false;
+            if (child.isFile() ? !entry.matchesLocal(child)
+                    : !unchangedSinceLastPass(child, childPath))
+                return false;
+        }
+
+        // anything recorded but no longer present was deleted since
+        String prefix = path + "/";
+        for (String recordedPath : manifest.getPaths()) {
+            if (recordedPath.startsWith(prefix)
+                    && !localFile(recordedPath).exists())
+                return false;
+        }
+        return true;
+    }
+
+    // apply a remote deletion to the local copy of a file or folder
+    private void deleteLocalCopy(File localCopy, String path) {
+        Log.d(TAG, "Deleted on remote, deleting local copy of " + path);
+        selfWrites.begin(localCopy);
+        try {
+            if (localCopy.isFile())
+                localCopy.delete();
+            else
+                MiscFile.deleteDir(localCopy);
+        } finally {
+            selfWrites.end(localCopy);
+        }
+        manifest.removeSubtree(path);
+        mergeBases.discard(path);
+    }
+
+    // turn a file or folder deleted locally into a tombstone, and queue its remote deletion
+    private void deleteRemoteCopy(String path) {
+        if (manifest.addTombstone(path))
+            queueRemoteDeletion(manifest.getTombstone(path));
+        mergeBases.discard(path);
+    }
+
+    // delete the remote copies of everything deleted locally before the pass started, waiting for
+    // all deletions to complete so the walk doesn't find them
+    private void flushTombstones() throws IOException {
+        List<SyncManifest.Entry> tombstones = manifest.getTombstones();
+        if (tombstones.isEmpty())
+            return;
+
+        Log.v(TAG, "Flushing " + tombstones.size() + " deletions");
+        for (SyncManifest.Entry tombstone : tombstones) {
+            queueRemoteDeletion(tombstone);
+        }
+        transfers.awaitCompletion();
+    }
+
+    // delete the remote copy recorded in a tombstone by its id. A failed deletion keeps its
+    // tombstone and is retried next pass, without failing this one.
+    private void queueRemoteDeletion(final SyncManifest.Entry tombstone) {
+        submitTransfer(tombstone.path, 0, new TransferScheduler.Transfer() {
+            @Override
+            public long run() throws IOException {
+                RemoteFile remoteCopy = new RemoteFile(tombstone.remoteId,
+                        localFile(tombstone.path).getName(), tombstone.folder,
+                        tombstone.modifiedTime, tombstone.size, tombstone.revision, null);
+                try {
+                    backend.delete(remoteCopy);
+                    manifest.removeTombstone(tombstone.path);
+                    Log.d(TAG, "Deleted remote copy of " + tombstone.path);
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't delete remote copy of " + tombstone.path + ": " + e);
+                }
+                return 0;
+            }
+        });
+    }
+
+    // drop the tombstones of files and folders of a remote folder that no longer hold anything
+    // to delete: already gone, or replaced by another remote file since
+    private void pruneTombstones(String path, Map<String, RemoteFile> remoteFilesByName) {
+        for (SyncManifest.Entry tombstone : manifest.getTombstones()) {
+            if (!parentPath(tombstone.path).equals(path) || tombstone.path.equals(path))
+                continue;
+
+            RemoteFile remoteCopy = remoteFilesByName.get(localFile(tombstone.path).getName());
+            if (remoteCopy == null || !remoteCopy.getId().equals(tombstone.remoteId))
+                manifest.removeTombstone(tombstone.path);
+        }
+    }
+
+    // record a folder that exists on both sides, descending into it if required
+    private void visitFolder(File localFolder, String path, RemoteFile remoteFolder,
+                             boolean recursive) throws IOException {
+        record(SyncManifest.Entry.forFolder(path, remoteFolder), null);
+        if (recursive)
+            syncFolders(localFolder, path, remoteFolder, true);
+    }
+
+    // bring a file that exists on both sides up to date, using the manifest to find out which
+    // side changed since the last pass
+    private void reconcileFile(File localCopy, String path, RemoteFile remoteCopy,
+                               RemoteFile remoteDir) throws IOException {
+        SyncManifest.Entry entry = manifest.get(path);
+        if (entry == null || entry.revision == null) {
+            resolveConflict(localCopy, path, remoteCopy, remoteDir);
+            return;
+        }
+
+        boolean localChanged = !entry.matchesLocal(localCopy);
+        boolean remoteChanged = !entry.matchesRemote(remoteCopy);
+
+        // the merge runs later, with the merger checked here even if it is replaced meanwhile
+        SyncMerger currentMerger = merger;
+        if (localChanged && remoteChanged && currentMerger != null && currentMerger.canMerge(path)
+                && mergeBases.get(path) != null) {
+            queueMerge(currentMerger, localCopy, path, remoteCopy, remoteDir);
+        } else if (localChanged && remoteChanged) {
+            resolveConflict(localCopy, path, remoteCopy, remoteDir);
+        } else if (localChanged) {
+            overwriteRemote(localCopy, path, remoteCopy, remoteDir);
+        } else if (remoteChanged) {
+            overwriteLocal(localCopy, path, remoteCopy);
+        } else {
+            Log.v(TAG, "File unchanged since last sync " + localCopy.getPath());
+        }
+    }
+
+    // resolve conflict when two versions of a file exist, both local and remote. One with most
+    // recent modification date is prefered.
+    private void resolveConflict(File localCopy, String path, RemoteFile remoteCopy,
+                                 RemoteFile remoteDir) throws IOException {
+        Log.v(TAG, "Starting conflict resolution");
+        long localModified = localCopy.lastModified();
+        long remoteModified = remoteCopy.getModifiedTime();
+
+        if (localModified > remoteModified) {
+            overwriteRemote(localCopy, path, remoteCopy, remoteDir);
+        } else if (remoteModified > localModified) {
+            overwriteLocal(localCopy, path, remoteCopy);
+        } else {
+            // already synced do nothing
+            Log.v(TAG, "File matches remote " + localCopy.getPath());
+            record(SyncManifest.Entry.forFile(path, localCopy, remoteCopy,
+                    cachedLocalHash(localCopy, path)), null);
+        }
+    }
+
+    // queue the merge of a file changed on both sides. Merges aren't journaled: an interrupted one
+    // leaves both copies changed, and the next pass merges them again.
+    private void queueMerge(final SyncMerger merger, final File localCopy, final String path,
+                            final RemoteFile remoteCopy, final RemoteFile remoteDir) {
+        Log.d(TAG, "Merging local and remote changes of " + path);
+        submitTransfer(path, remoteCopy.getSize(), new TransferScheduler.Transfer() {
+            @Override
+            public long run() throws IOException {
+                if (reconcileIdenticalContents(localCopy, path, remoteCopy, null))
+                    return 0;
+                return transferMerge(merger, localCopy, path, remoteCopy, remoteDir);
+            }
+        });
+    }
+
+    // download the remote copy of a file, merge it with the local copy and upload the result,
+    // returning the number of bytes moved. If the merger gives up, the most recently modified
+    // copy wins.
+    private long transferMerge(SyncMerger merger, File localCopy, String path,
+                               RemoteFile remoteCopy, RemoteFile remoteDir) throws IOException {
+        File remoteVersion = mergeBases.scratchFile(path, ".remote");
+        File merged = mergeBases.scratchFile(path, ".merged");
+        try {
+            StagedTransfers.Result download = stagedTransfers.download(remoteCopy, path,
+                    remoteVersion, bandwidthLimiterFor(path));
+            metrics.recordDownload(download.transferredBytes);
+
+            boolean preferLocal = localCopy.lastModified() >= remoteCopy.getModifiedTime();
+            if (merger.merge(mergeBases.get(path), localCopy, remoteVersion, merged,
+                    preferLocal)) {
+                moveIntoPlace(merged, localCopy);
+            } else if (preferLocal) {
+                Log.w(TAG, "Couldn't merge " + path + ", keeping local copy");
+            } else {
+                Log.w(TAG, "Couldn't merge " + path + ", keeping remote copy");
+                moveIntoPlace(remoteVersion, localCopy);
+                record(SyncManifest.Entry.forFile(path, localCopy, remoteCopy, download.hash),
+                        null);
+                return download.transferredBytes;
+            }
+
+            return download.transferredBytes
+                    + transferUpload(localCopy, path, remoteDir, remoteCopy, null);
+        } finally {
+            remoteVersion.delete();
+            merged.delete();
+        }
+    }
+
+    // replace a local file with one from the state folder
+    private void moveIntoPlace(File replacement, File localCopy) throws IOException {
+        selfWrites.begin(localCopy);
+        try {
+            if (!replacement.renameTo(localCopy))
+                throw new IOException("Couldn't move " + replacement.getName()
+                        + " into place: " + localCopy);
+        } finally {
+            selfWrites.end(localCopy);
+        }
+    }
+
+    private boolean canMerge(String path) {
+        SyncMerger currentMerger = merger;
+        return currentMerger != null && currentMerger.canMerge(path);
+    }
+
+    // when both copies of a file hold the same bytes, only their timestamps differ: align the
+    // local modification time with remote instead of transferring the file. Returns false if the
+    // contents differ or can't be compared.
+    private boolean reconcileIdenticalContents(File localCopy, String path, RemoteFile remoteCopy,
+                                               SyncJournal.Operation operation)
+            throws IOException {
+        if (remoteCopy.getChecksum() == null || localCopy.length() != remoteCopy.getSize())
+            return false;
+
+        String localHash = localHash(localCopy, path);
+        if (!localHash.equals(remoteCopy.getChecksum()))
+            return false;
+
+        Log.v(TAG, "Contents identical, only reconciling timestamps of " + localCopy.getPath());
+        if (localCopy.lastModified() != remoteCopy.getModifiedTime()) {
+            boolean timeChanged;
+            selfWrites.begin(localCopy);
+            try {
+                timeChanged = localCopy.setLastModified(remoteCopy.getModifiedTime());
+            } finally {
+                selfWrites.end(localCopy);
+            }
+            // some filesystems refuse to change modification times, move the remote one instead
+            if (!timeChanged)
+                backend.setModifiedTime(remoteCopy, localCopy.lastModified());
+        }
+        record(SyncManifest.Entry.forFile(path, localCopy, remoteCopy, localHash), operation);
+        return true;
+    }
+
+    // returns the digest of a local file, reusing the one in the manifest if the file didn't
+    // change since it was computed
+    private String localHash(File localFile, String path) throws IOException {
+        String hash = cachedLocalHash(localFile, path);
+        if (hash != null)
+            return hash;
+
+        long start = System.currentTimeMillis();
+        hash = ContentHash.of(localFile);
+        metrics.recordHashing(System.currentTimeMillis() - start);
+        return hash;
+    }
+
+    private String cachedLocalHash(File localFile, String path) {
+        SyncManifest.Entry entry = manifest.get(path);
+        if (entry != null && entry.hash != null && entry.matchesLocal(localFile))
+            return entry.hash;
+        return null;
+    }
+
+    private void overwriteRemote(File localCopy, String path, RemoteFile remoteCopy,
+                                 RemoteFile remoteDir) throws IOException {
+        Log.d(TAG, "Overwriting remote with local");
+        queueUpload(localCopy, path, remoteDir, remoteCopy,
+                journal.planUpload(path, remoteDir, remoteCopy));
+    }
+
+    private void overwriteLocal(File localCopy, String path, RemoteFile remoteCopy)
+            throws IOException {
+        Log.d(TAG, "Overwriting local with remote");
+        queueDownload(remoteCopy, path, localCopy.getParentFile(),
+                journal.planDownload(path, remoteCopy));
+    }
+
+    // download a remote folder into a local folder
+    private void downloadFolder(RemoteFile remoteFolder, String path, File localFolderBeingSynced)
+            throws IOException {
+        checkCancelled();
+        File folderBeingDownloaded = new File(localFolderBeingSynced, remoteFolder.getTitle());
+        selfWrites.begin(folderBeingDownloaded);
+        try {
+            if (!folderBeingDownloaded.mkdir() && !folderBeingDownloaded.isDirectory())
+                throw new IOException("Couldn't create folder " + folderBeingDownloaded);
+        } finally {
+            selfWrites.end(folderBeingDownloaded);
+        }
+        record(SyncManifest.Entry.forFolder(path, remoteFolder), null);
+
+        List<RemoteFile> remoteFiles = new ArrayList<>(backend.listChildren(remoteFolder));
+        noteListed(path);
+        Collections.sort(remoteFiles, REMOTE_FILES_FIRST);
+        for (RemoteFile remoteFile : remoteFiles) {
+            String childPath = childPath(path, remoteFile.getTitle());
+            if (!remoteFile.isFolder()) {
+                downloadFile(remoteFile, childPath, folderBeingDownloaded);
+            } else {
+                downloadFolder(remoteFile, childPath, folderBeingDownloaded);
+            }
+        }
+    }
+
+    // upload a local folder into a remote folder
+    private void uploadFolder(File folder, String path, RemoteFile remoteFolderBeingSynced)
+            throws IOException {
+        checkCancelled();
+        Log.d(TAG, "Uploading folder: " + folder.getPath());
+        RemoteFile createdFolder = backend.createFolder(remoteFolderBeingSynced, folder.getName());
+        record(SyncManifest.Entry.forFolder(path, createdFolder), null);
+
+        File[] files = folder.listFiles(SYNCED_FILES);
+        Arrays.sort(files, FILES_FIRST);
+        for (File file : files) {
+            String childPath = childPath(path, file.getName());
+            if (file.isFile()) {
+                uploadFile(file, childPath, createdFolder);
+            } else {
+                uploadFolder(file, childPath, createdFolder);
+            }
+        }
+    }
+
+    // queue the download of a remote file into a local folder
+    private void downloadFile(RemoteFile remoteFile, String path, File localFolderBeingSynced)
+            throws IOException {
+        queueDownload(remoteFile, path, localFolderBeingSynced,
+                journal.planDownload(path, remoteFile));
+    }
+
+    // queue the upload of a local file to a remote folder
+    private void uploadFile(File localFile, String path, RemoteFile remoteFolder)
+            throws IOException {
+        queueUpload(localFile, path, remoteFolder, null,
+                journal.planUpload(path, remoteFolder, null));
+    }
+
+    // queue a planned upload, overwriting existingCopy if not null. Rewriting the contents keeps
+    // the remote id, other devices never see a deletion.
+    private void queueUpload(final File localFile, final String path,
+                             final RemoteFile remoteFolder, final RemoteFile existingCopy,
+                             final SyncJournal.Operation operation) {
+        submitTransfer(path, localFile.length(), new TransferScheduler.Transfer() {
+            @Override
+            public long run() throws IOException {
+                if (existingCopy != null
+                        && reconcileIdenticalContents(localFile, path, existingCopy, operation))
+                    return 0;
+                return transferUpload(localFile, path, remoteFolder, existingCopy, operation);
+            }
+        });
+    }
+
+    // queue a planned download. An existing local copy is only replaced once the download is
+    // complete.
+    private void queueDownload(final RemoteFile remoteFile, final String path,
+                               final File localFolder, final SyncJournal.Operation operation) {
+        submitTransfer(path, remoteFile.getSize(), new TransferScheduler.Transfer() {
+            @Override
+            public long run() throws IOException {
+                File localCopy = new File(localFolder, remoteFile.getTitle());
+                if (localCopy.isFile()
+                        && reconcileIdenticalContents(localCopy, path, remoteFile, operation))
+                    return 0;
+                return transferDownload(remoteFile, path, localFolder, operation);
+            }
+        });
+    }
+
+    // queue a transfer of the file at path in its lane, counting it towards the progress of the
+    // pass
+    private void submitTransfer(String path, final long expectedBytes,
+                                final TransferScheduler.Transfer transfer) {
+        metrics.transferQueued(expectedBytes);
+        transfers.submit(new TransferScheduler.Transfer() {
+            @Override
+            public long run() throws IOException {
+                checkCancelled();
+                long start = System.currentTimeMillis();
+                long transferredBytes = transfer.run();
+                metrics.transferFinished(expectedBytes, System.currentTimeMillis() - start);
+                reportProgress(false);
+                return transferredBytes;
+            }
+        }, laneFor(path), expectedBytes);
+    }
+
+    private SyncLane laneFor(String path) {
+        SyncPrioritizer currentPrioritizer = prioritizer;
+        return currentPrioritizer == null ? SyncLane.BULK : currentPrioritizer.laneFor(path);
+    }
+
+    // returns what caps the bandwidth of transfers of the file at path, or null
+    private BandwidthLimiter bandwidthLimiterFor(String path) {
+        synchronized (bandwidthLimiters) {
+            if (bandwidthLimiters.isEmpty())
+                return null;
+            return bandwidthLimiters.get(laneFor(path));
+        }
+    }
+
+    // download a remote file into a local folder, returning the number of bytes downloaded
+    private long transferDownload(RemoteFile remoteFile, String path, File localFolderBeingSynced,
+                                  SyncJournal.Operation operation) throws IOException {
+        Log.d(TAG, "Downloading file: " + remoteFile.getTitle());
+
+        File fileBeingDownloaded = new File(localFolderBeingSynced, remoteFile.getTitle());
+        StagedTransfers.Result result;
+        selfWrites.begin(fileBeingDownloaded);
+        try {
+            result = stagedTransfers.download(remoteFile, path, fileBeingDownloaded,
+                    bandwidthLimiterFor(path));
+        } finally {
+            selfWrites.end(fileBeingDownloaded);
+        }
+
+        record(SyncManifest.Entry.forFile(path, fileBeingDownloaded, remoteFile, result.hash),
+                operation);
+        metrics.recordDownload(result.transferredBytes);
+        Log.d(TAG, "Download complete.");
+        return result.transferredBytes;
+    }
+
+    // upload local file to remote folder, overwriting existingCopy if not null. Returns the
+    // number of bytes uploaded.
+    private long transferUpload(File localFile, String path, RemoteFile remoteFolder,
+                                RemoteFile existingCopy, SyncJournal.Operation operation)
+            throws IOException {
+        Log.d(TAG, "Uploading file: " + localFile.getPath());
+
+        StagedTransfers.Result result = stagedTransfers.upload(localFile, path, remoteFolder,
+                existingCopy, bandwidthLimiterFor(path));
+
+        record(SyncManifest.Entry.forFile(path, localFile, result.remoteFile, result.hash),
+                operation);
+        metrics.recordUpload(result.transferredBytes);
+        Log.d(TAG, "Upload success");
+        return result.transferredBytes;
+    }
+
+    // put an entry in the manifest, and in the journal in case the pass is interrupted.
+    // operation is the transfer this entry completes, or null.
+    private void record(SyncManifest.Entry entry, SyncJournal.Operation operation)
+            throws IOException {
+        manifest.put(entry);
+        journal.record(entry, operation);
+        // both sides now hold this version of the file, it is what later edits are merged against
+        if (!entry.folder && canMerge(entry.path))
+            mergeBases.keep(entry.path, localFile(entry.path));
+    }
+
+    // compare the given subtrees of the local tree against the manifest, returning the paths of
+    // folders that gained, lost or modified a direct child since the last pass. Parents come
+    // before their children.
+    private List<String> findLocallyChangedFolders(List<String> scope) {
+        Set<String> changedFolders = new HashSet<>();
+        Set<String> seenPaths = new HashSet<>();
+        for (String subtree : scope) {
+            seenPaths.add(subtree);
+            findLocallyChangedFolders(localFile(subtree), subtree, changedFolders, seenPaths);
+        }
+
+        // anything recorded but no longer present was deleted from its closest surviving parent
+        for (String recordedPath : manifest.getPaths()) {
+            if (!seenPaths.contains(recordedPath) && isInside(recordedPath, scope)) {
+                String parent = parentPath(recordedPath);
+                while (!parent.isEmpty() && !seenPaths.contains(parent)) {
+                    parent = parentPath(parent);
+                }
+                changedFolders.add(parent);
+            }
+        }
+
+        List<String> sortedFolders = new ArrayList<>(changedFolders);
+        Collections.sort(sortedFolders);
+        return sortedFolders;
+    }
+
+    private void findLocallyChangedFolders(File folder, String path, Set<String> changedFolders,
+                                           Set<String> seenPaths) {
+        File[] children = folder.listFiles(SYNCED_FILES);
+        if (children == null)
+            return;
+
+        for (File child : children) {
+            String childPath = childPath(path, child.getName());
+            SyncManifest.Entry entry = manifest.get(childPath);
+
+            if (entry == null || entry.folder == child.isFile()) {
+                // new file or folder, syncing its parent will upload it
+                changedFolders.add(path);
+                continue;
+            }
+
+            seenPaths.add(childPath);
+            if (child.isFile()) {
+                if (!entry.matchesLocal(child))
+                    changedFolders.add(path);
+            } else {
+                findLocallyChangedFolders(child, childPath, changedFolders, seenPaths);
+            }
+        }
+    }
+
+    // returns the given path if it is a folder known to the manifest, or its closest such parent
+    private String closestKnownFolder(String path) {
+        while (!path.isEmpty()) {
+            SyncManifest.Entry entry = manifest.get(path);
+            if (entry != null && entry.folder && localFile(path).isDirectory())
+                return path;
+            path = parentPath(path);
+        }
+        return path;
+    }
+
+    // drop paths that are inside another one of the given paths, sorting the rest
+    private static List<String> outermostPaths(Set<String> paths) {
+        List<String> outermost = new ArrayList<>();
+        for (String path : paths) {
+            if (!isInside(parentPathOrNull(path), paths))
+                outermost.add(path);
+        }
+        Collections.sort(outermost);
+        return outermost;
+    }
+
+    // check if a path is one of, or inside one of, the given folder paths
+    private static boolean isInside(String path, Collection<String> folders) {
+        while (path != null) {
+            if (folders.contains(path))
+                return true;
+            path = parentPathOrNull(path);
+        }
+        return false;
+    }
+
+    // returns the remote folder recorded in the manifest for a local folder path
+    private RemoteFile knownRemoteFolder(String path) throws IOException {
+        if (path.isEmpty())
+            return backend.getRootFolder();
+
+        SyncManifest.Entry entry = manifest.get(path);
+        if (entry == null || !entry.folder)
+            throw new IllegalStateException("No remote folder recorded for " + path);
+
+        return new RemoteFile(entry.remoteId, localFile(path).getName(), true, 0, 0, null, null);
+    }
+
+    // drop a deleted file or folder from the manifest
+    private void forget(File localFile) throws IOException {
+        manifest.removeSubtree(relativePath(localFile));
+        manifest.save();
+    }
+
+    private File localFile(String path) {
+        return path.isEmpty() ? localRoot : new File(localRoot, path);
+    }
+
+    private String relativePath(File localFile) {
+        String rootPath = localRoot.getAbsolutePath();
+        String filePath = localFile.getAbsolutePath();
+        if (filePath.equals(rootPath))
+            return "";
+        if (!filePath.startsWith(rootPath + File.separator))
+            throw new IllegalArgumentException("File isn't inside synced folder: " + filePath);
+
+        return filePath.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    private static String childPath(String parentPath, String name) {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    private static String parentPath(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator == -1 ? "" : path.substring(0, separator);
+    }
+
+    // like parentPath, but returns null for the synced folder itself
+    private static String parentPathOrNull(String path) {
+        return path == null || path.isEmpty() ? null : parentPath(path);
+    }
+
+    // returns a list of parent folders that contain the given file or folder
+    private void getFolderHierarchy(File folder, List<File> hierarchy) {
+        if (folder.equals(localRoot))
+            return;
+
+        if (!folder.isFile())
+            hierarchy.add(folder);
+        getFolderHierarchy(folder.getParentFile(), hierarchy);
+    }
+
+    // traverse a list of local folders, provided by getFolderHierarchy, and return the remote
+    // folder that has the same parents as the local folder
+    private RemoteFile traverseHierarchy(RemoteFile currentFolder, List<File> hierarchy)
+            throws IOException {
+        if (hierarchy.size() == 0)
+            return currentFolder;
+
+        // shallowest level is stored at end
+        File lastElement = hierarchy.remove(hierarchy.size() - 1);
+
+        for (RemoteFile remoteFile : backend.listChildren(currentFolder)) {
+            if (remoteFile.getTitle().equals(lastElement.getName())) {
+                return traverseHierarchy(remoteFile, hierarchy);
+            }
+        }
+
+        throw new IllegalArgumentException("No equivalent remote folder found");
+    }
+
+    // map remote titles to files. Remote folders may hold several files with the same title, the
+    // first one listed is the one that is synced.
+    private static Map<String, RemoteFile> indexRemoteFiles(List<RemoteFile> remoteFiles) {
+        Map<String, RemoteFile> filesByName = new HashMap<>(remoteFiles.size() * 2);
+        for (RemoteFile remoteFile : remoteFiles) {
+            if (!filesByName.containsKey(remoteFile.getTitle()))
+                filesByName.put(remoteFile.getTitle(), remoteFile);
+        }
+        return filesByName;
+    }
+
+    private static Map<String, File> indexLocalFiles(File[] localFiles) {
+        Map<String, File> filesByName = new HashMap<>(localFiles.length * 2);
+        for (File localFile : localFiles) {
+            filesByName.put(localFile.getName(), localFile);
+        }
+        return filesByName;
+    }
+}
@@ -7,50 +7,90 @@ import android.util.Log;
 import org.physical_web.cms.beacons.Beacon;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.util.Scanner;
+import java.io.Reader;
+import java.nio.charset.Charset;
 
 public class MiscFile {
     private static final String TAG = MiscFile.class.getSimpleName();
     private static final int BUFFER_SIZE = 8 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEMPORARY_FILE_PREFIX = ".";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
 
     /**
-     * Overwrite file with string
+     * Overwrite file with string, encoded as UTF-8
      * @param file
      * @param string
      * @throws IOException
      */
     public static void writeToFile(File file, String string) throws IOException {
-        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(new FileOutputStream(file));
-        outputStreamWriter.write(string);
-        outputStreamWriter.close();
+        OutputStreamWriter outputStreamWriter =
+                new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try {
+            outputStreamWriter.write(string);
+        } finally {
+            outputStreamWriter.close();
+        }
+    }
+
+    /**
+     * Overwrite file with contents, all at once: they are written to a hidden file next to it,
+     * synced to disk and renamed over the file, so readers see either the old contents or the
+     * new ones
+     */
+    public static void writeToFileAtomically(File file, byte[] contents) throws IOException {
+        File temporaryFile = new File(file.getParentFile(),
+                TEMPORARY_FILE_PREFIX + file.getName() + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(contents);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Couldn't move " + temporaryFile.getPath() + " into place");
+        }
+    }
+
+    /**
+     * Returns true if a file name is that of the hidden file an atomic write goes through, which
+     * only exists until it is renamed over its target
+     */
+    public static boolean isTemporaryFileName(String name) {
+        return name.startsWith(TEMPORARY_FILE_PREFIX) && name.endsWith(TEMPORARY_FILE_SUFFIX);
     }
 
     /**
-     * Read file into string
+     * Read file into string, decoded as UTF-8. Use {@link
+     * org.physical_web.cms.exhibits.MetadataCodec} to read JSON metadata, which needs no copy of
+     * the whole file.
      * @param file
      * @return
      * @throws IOException
      */
     public static String readFile(File file) throws IOException {
         StringBuilder fileContents = new StringBuilder((int) file.length());
-        Scanner scanner = new Scanner(file);
-        String lineSeparator = System.getProperty("line.separator");
+        Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
 
         try {
-            while (scanner.hasNextLine()) {
-                fileContents.append(scanner.nextLine());
-                // avoid extra line separator at end of file
-                if (scanner.hasNextLine())
-                    fileContents.append(lineSeparator);
+            char[] buffer = new char[BUFFER_SIZE];
+            int charsRead;
+            while ((charsRead = reader.read(buffer)) != -1) {
+                fileContents.append(buffer, 0, charsRead);
             }
             return fileContents.toString();
         } finally {
-            scanner.close();
+            reader.close();
         }
     }
 
@@ -3,30 +3,53 @@ package util;
 import android.os.FileObserver;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Stack;
 
 /**
  * A FileObserver that observes all the files/folders within given directory
  * recursively. It automatically starts/stops monitoring new folders/files
- * created after starting the watch. Source:
+ * created after starting the watch. Based on:
  * https://gist.github.com/gitanuj/888ef7592be1d3f617f6
+ * <p>
+ * inotify only watches single folders, so every folder holds one watch. Watches are kept in a
+ * trie mirroring the folder tree: the tree is only walked once, by {@link #startWatching()},
+ * and afterwards folders created, moved or deleted add or remove the watches of their own
+ * subtree only.
  */
 public class RecursiveFileObserver extends FileObserver {
+    // events every watch needs to keep the trie in step with the folder tree
+    private static final int TREE_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
 
-    private final Map<String, FileObserver> mObservers = new HashMap<>();
+    private final Object                    mLock = new Object();
 
     private String                          mPath;
 
+    // events the listener is told about
     private int                             mMask;
 
     private FolderListener mListener;
 
+    // watch of the observed folder, null while not watching
+    private WatchNode                       mRoot;
+
+    private int                             mWatchCount;
+
+    private long                            mRegistrationMillis;
+
     public interface FolderListener {
         void onFolderEvent(int event, File file);
     }
 
+    // a watched folder, and the watched folders inside it by name
+    private static class WatchNode {
+        final Map<String, WatchNode> children = new HashMap<>();
+        FileObserver observer;
+    }
+
     public RecursiveFileObserver(String path, FolderListener listener) {
         this(path, ALL_EVENTS, listener);
     }
@@ -38,61 +61,163 @@ public class RecursiveFileObserver extends FileObserver {
         mListener = listener;
     }
 
-    private void startWatching(String path) {
-        synchronized (mObservers) {
-            FileObserver observer = mObservers.remove(path);
-            if (observer != null) {
-                observer.stopWatching();
-            }
-            observer = new SingleFileObserver(path, mMask);
-            observer.startWatching();
-            mObservers.put(path, observer);
+    /**
+     * Watch every folder of the tree. Does nothing if already watching, new folders are picked
+     * up as they appear.
+     */
+    @Override
+    public void startWatching() {
+        synchronized (mLock) {
+            if (mRoot != null)
+                return;
+
+            long start = System.nanoTime();
+            mRoot = new WatchNode();
+            register(mRoot, new File(mPath), "");
+            mRegistrationMillis = (System.nanoTime() - start) / 1000000;
         }
     }
 
     @Override
-    public void startWatching() {
-        Stack<String> stack = new Stack<>();
-        stack.push(mPath);
-
-        // Recursively watch all child directories
-        while (!stack.empty()) {
-            String parent = stack.pop();
-            startWatching(parent);
-
-            File path = new File(parent);
-            File[] files = path.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (watch(file)) {
-                        stack.push(file.getAbsolutePath());
-                    }
-                }
+    public void stopWatching() {
+        synchronized (mLock) {
+            if (mRoot == null)
+                return;
+
+            unregister(mRoot);
+            mRoot = null;
+        }
+    }
+
+    /**
+     * Returns the number of folders watched, each costing an inotify watch
+     */
+    public int getWatchCount() {
+        synchronized (mLock) {
+            return mWatchCount;
+        }
+    }
+
+    /**
+     * Returns how long the last {@link #startWatching()} took to walk the tree and watch it
+     */
+    public long getRegistrationMillis() {
+        synchronized (mLock) {
+            return mRegistrationMillis;
+        }
+    }
+
+    // watch a folder and every folder inside it, adding them to the trie under node
+    private void register(WatchNode node, File folder, String relativePath) {
+        Deque<WatchNode> nodes = new ArrayDeque<>();
+        Deque<File> folders = new ArrayDeque<>();
+        Deque<String> relativePaths = new ArrayDeque<>();
+        nodes.push(node);
+        folders.push(folder);
+        relativePaths.push(relativePath);
+
+        while (!nodes.isEmpty()) {
+            WatchNode current = nodes.pop();
+            File currentFolder = folders.pop();
+            String currentPath = relativePaths.pop();
+
+            // watch before listing, so folders created meanwhile aren't missed
+            current.observer = new SingleFileObserver(currentFolder.getAbsolutePath(),
+                    currentPath, mMask | TREE_EVENTS);
+            current.observer.startWatching();
+            mWatchCount++;
+
+            File[] files = currentFolder.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                if (!watch(file) || current.children.containsKey(file.getName()))
+                    continue;
+                WatchNode child = new WatchNode();
+                current.children.put(file.getName(), child);
+                nodes.push(child);
+                folders.push(file);
+                relativePaths.push(childPath(currentPath, file.getName()));
             }
         }
     }
 
+    // stop the watches of node and everything under it
+    private void unregister(WatchNode node) {
+        Deque<WatchNode> nodes = new ArrayDeque<>();
+        nodes.push(node);
+        while (!nodes.isEmpty()) {
+            WatchNode current = nodes.pop();
+            if (current.observer != null) {
+                current.observer.stopWatching();
+                current.observer = null;
+                mWatchCount--;
+            }
+            for (WatchNode child : current.children.values()) {
+                nodes.push(child);
+            }
+            current.children.clear();
+        }
+    }
+
     private boolean watch(File file) {
         return file.isDirectory() && !file.getName().equals(".") && !file.getName().equals("..");
     }
 
-    private void stopWatching(String path) {
-        synchronized (mObservers) {
-            FileObserver observer = mObservers.remove(path);
-            if (observer != null) {
-                observer.stopWatching();
-            }
+    // a folder appeared inside a watched one
+    private void folderAdded(String parentPath, File folder) {
+        synchronized (mLock) {
+            WatchNode parent = find(parentPath);
+            if (parent == null || parent.children.containsKey(folder.getName()))
+                return;
+
+            WatchNode child = new WatchNode();
+            parent.children.put(folder.getName(), child);
+            register(child, folder, childPath(parentPath, folder.getName()));
         }
     }
 
-    @Override
-    public void stopWatching() {
-        synchronized (mObservers) {
-            for (FileObserver observer : mObservers.values()) {
-                observer.stopWatching();
-            }
-            mObservers.clear();
+    // a folder inside a watched one went away
+    private void folderRemoved(String parentPath, String name) {
+        synchronized (mLock) {
+            WatchNode parent = find(parentPath);
+            if (parent == null)
+                return;
+
+            WatchNode child = parent.children.remove(name);
+            if (child != null)
+                unregister(child);
+        }
+    }
+
+    // a watched folder was deleted
+    private void folderDeleted(String relativePath) {
+        if (relativePath.isEmpty()) {
+            stopWatching();
+            return;
+        }
+
+        int separator = relativePath.lastIndexOf('/');
+        String parentPath = separator == -1 ? "" : relativePath.substring(0, separator);
+        folderRemoved(parentPath, relativePath.substring(separator + 1));
+    }
+
+    // returns the node of a folder, or null if it isn't watched
+    private WatchNode find(String relativePath) {
+        WatchNode node = mRoot;
+        if (node == null || relativePath.isEmpty())
+            return node;
+
+        for (String name : relativePath.split("/")) {
+            node = node.children.get(name);
+            if (node == null)
+                return null;
         }
+        return node;
+    }
+
+    private static String childPath(String parentPath, String name) {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
     }
 
     @Override
@@ -107,7 +232,7 @@ public class RecursiveFileObserver extends FileObserver {
     }
 
     private void notify(int event, File file) {
-        if (mListener != null) {
+        if (mListener != null && (event & mMask) != 0) {
             mListener.onFolderEvent(event & FileObserver.ALL_EVENTS, file);
         }
     }
@@ -115,9 +240,13 @@ public class RecursiveFileObserver extends FileObserver {
     private class SingleFileObserver extends FileObserver {
         private String filePath;
 
-        public SingleFileObserver(String path, int mask) {
+        // path relative to the observed folder, locating this watch in the trie
+        private String relativePath;
+
+        public SingleFileObserver(String path, String relativePath, int mask) {
             super(path, mask);
             filePath = path;
+            this.relativePath = relativePath;
         }
 
         @Override
@@ -131,11 +260,18 @@ public class RecursiveFileObserver extends FileObserver {
 
             switch (event & FileObserver.ALL_EVENTS) {
             case DELETE_SELF:
-                RecursiveFileObserver.this.stopWatching(filePath);
+                folderDeleted(relativePath);
                 break;
             case CREATE:
+            case MOVED_TO:
                 if (watch(file)) {
-                    RecursiveFileObserver.this.startWatching(file.getAbsolutePath());
+                    folderAdded(relativePath, file);
+                }
+                break;
+            case DELETE:
+            case MOVED_FROM:
+                if (path != null) {
+                    folderRemoved(relativePath, path);
                 }
                 break;
             }
@@ -143,4 +279,4 @@ public class RecursiveFileObserver extends FileObserver {
             RecursiveFileObserver.this.notify(event, file);
         }
     }
-}
\ No newline at end of file
+}